@@ -21,6 +21,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
+import java.util.List;
 import java.util.Set;
 
 import javax.swing.*;
@@ -32,6 +33,7 @@ import org.slf4j.LoggerFactory;
 import io.mygupsql.backend.SQLExecRequest;
 import io.mygupsql.backend.SQLExecResponse;
 import io.mygupsql.backend.SQLExecutor;
+import io.mygupsql.backend.SQLPager;
 import io.mygupsql.widgets.command.CommandBoard;
 import io.mygupsql.widgets.conns.ConnsManager;
 import io.mygupsql.widgets.results.SQLResultsTable;
@@ -52,12 +54,16 @@ public final class MyGupSql {
 
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MyGupSql.class);
+    private static final String UI_MAX_FPS_KEY = "ui.max.fps";
+    private static final int DEFAULT_UI_MAX_FPS = 30;
 
 
     private final ConnsManager conns;
     private final SQLExecutor executor;
     private final CommandBoard commands;
     private final SQLResultsTable results;
+    private final UpdateScheduler resultsUpdates;
+    private String resultsKey; // key of the request whose results are shown
     private final JMenuItem toggleConnsWidget;
     private final JMenuItem toggleConn;
 
@@ -74,6 +80,7 @@ public final class MyGupSql {
         commands = new CommandBoard(this::dispatchEvent);
         commands.setPreferredSize(new Dimension(0, dividerHeight));
         results = new SQLResultsTable(width, dividerHeight);
+        resultsUpdates = new UpdateScheduler(Math.max(1, Integer.getInteger(UI_MAX_FPS_KEY, DEFAULT_UI_MAX_FPS)));
         frame.setTitle(String.format("%s %s [store: %s]", NAME, VERSION, conns.getStorePath()));
 
         // menu bar
@@ -180,7 +187,14 @@ public final class MyGupSql {
                     onToggleConnEvent(null);
                 }
                 results.close();
-                executor.submit(req, this::dispatchEvent);
+                resultsKey = req.getKey();
+                if (results.isPaged() && SQLPager.isPageable(req)) {
+                    SQLPager pager = new SQLPager(executor, req, this::dispatchEvent);
+                    results.setPager(pager);
+                    pager.start();
+                } else {
+                    executor.submit(req, this::dispatchEvent);
+                }
                 break;
 
             case COMMAND_CANCEL:
@@ -193,28 +207,48 @@ public final class MyGupSql {
         }
     }
 
+    /**
+     * Executor events arrive in bursts while rows are fetched. The updates they
+     * cause are merged, at most once per frame, the stats and the rows of each
+     * request are updated to their latest state. The rows update notifies all
+     * the rows added since the previous update, whatever the range of the
+     * latest response, which may be empty. Updates for a request whose results
+     * are no longer shown are dropped.
+     */
     private void onSQLExecutorEvent(SQLExecutor.EventType event, SQLExecResponse res) {
-        GTk.invokeLater(() -> results.updateStats(event.name(), res));
+        postResultsUpdate(res, "stats", () -> results.updateStats(event.name(), res));
         switch (event) {
             case STARTED:
-                GTk.invokeLater(results::showInfiniteSpinner);
+                postResultsUpdate(res, event, results::showInfiniteSpinner);
                 break;
 
             case RESULTS_AVAILABLE:
             case COMPLETED:
-                GTk.invokeLater(() -> results.onRowsAddedEvent(res));
+            case TRUNCATED:
+                postResultsUpdate(res, "rows", () -> results.onRowsAddedEvent(res));
                 break;
 
             case CANCELLED:
-                GTk.invokeLater(results::close);
+                postResultsUpdate(res, event, results::close);
                 break;
 
             case FAILURE:
-                GTk.invokeLater(results::close, () -> results.displayError(res.getError()));
+                postResultsUpdate(res, event, () -> {
+                    results.close();
+                    results.displayError(res.getError());
+                });
                 break;
         }
     }
 
+    private void postResultsUpdate(SQLExecResponse res, Object kind, Runnable update) {
+        resultsUpdates.post(List.of(res.getKey(), kind), () -> {
+            if (res.getKey().equals(resultsKey)) {
+                update.run();
+            }
+        });
+    }
+
     private void onDBConnectionManagerEvent(ConnsManager.EventType event, Object data) {
         switch (event) {
             case CONNECTION_SELECTED:
@@ -258,6 +292,7 @@ public final class MyGupSql {
         executor.close();
         conns.close();
         results.close();
+        resultsUpdates.close();
     }
 
     /**
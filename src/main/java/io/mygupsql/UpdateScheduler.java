@@ -0,0 +1,123 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql;
+
+import java.awt.EventQueue;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Runs GUI updates posted from any thread on the AWT event dispatch thread, at
+ * most once per frame, so that bursts of updates do not flood the event queue
+ * and input events, such as typing, are not delayed behind them.
+ * <p>
+ * Updates are posted by key. An update replaces the pending update with the
+ * same key, if any, in its place in the order, so that only the latest state
+ * is applied. Updates with different keys run in the order they were first
+ * posted, all of them within the same event. The first update after a quiet
+ * period runs as soon as possible, those that follow within a frame wait for
+ * the next frame. Updates always run in a later event, even when posted from
+ * the event dispatch thread.
+ */
+final class UpdateScheduler implements Closeable {
+
+    private final long frameNanos;
+    private final ScheduledExecutorService timer;
+    private final LinkedHashMap<Object, Runnable> pending;
+    private long lastRunNanos;
+    private boolean isScheduled;
+
+    /**
+     * Constructor.
+     *
+     * @param maxFps max number of times per second updates are run
+     */
+    UpdateScheduler(int maxFps) {
+        if (maxFps < 1) {
+            throw new IllegalArgumentException("maxFps must be greater than 0");
+        }
+        frameNanos = TimeUnit.SECONDS.toNanos(1L) / maxFps;
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, getClass().getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pending = new LinkedHashMap<>();
+        lastRunNanos = System.nanoTime() - frameNanos;
+    }
+
+    /**
+     * Posts an update that is never replaced.
+     *
+     * @param update the update
+     */
+    void post(Runnable update) {
+        post(new Object(), update);
+    }
+
+    /**
+     * Posts an update, which replaces the pending update with the same key.
+     *
+     * @param key    identity of the state the update applies
+     * @param update the update
+     */
+    void post(Object key, Runnable update) {
+        long delayNanos;
+        synchronized (this) {
+            pending.put(key, update);
+            if (isScheduled) {
+                return;
+            }
+            isScheduled = true;
+            delayNanos = lastRunNanos + frameNanos - System.nanoTime();
+        }
+        if (delayNanos <= 0L) {
+            EventQueue.invokeLater(this::runPending);
+        } else {
+            try {
+                timer.schedule(() -> EventQueue.invokeLater(this::runPending), delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException closed) {
+                EventQueue.invokeLater(this::runPending);
+            }
+        }
+    }
+
+    private void runPending() {
+        List<Runnable> updates;
+        synchronized (this) {
+            updates = new ArrayList<>(pending.values());
+            pending.clear();
+            isScheduled = false;
+            lastRunNanos = System.nanoTime();
+        }
+        for (Runnable update : updates) {
+            update.run();
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,1487 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+import java.util.function.Predicate;
+
+
+/**
+ * Columnar storage of the values of one column of a {@link SQLTable}. Values
+ * are kept in chunks of {@link Column#CHUNK_SIZE} rows, in primitive arrays
+ * where the column's SQL type allows it:
+ * <ul>
+ * <li>BIGINT: long[].</li>
+ * <li>INTEGER, SMALLINT, TINYINT: int[].</li>
+ * <li>DOUBLE, FLOAT, REAL: double[].</li>
+ * <li>TIMESTAMP, TIMESTAMP_WITH_TIMEZONE: long[], microseconds since the
+ * epoch.</li>
+ * <li>BOOLEAN, BIT: bitsets.</li>
+ * <li>VARCHAR, CHAR: dictionary encoded, each row a 16 bit code into a
+ * dictionary of the distinct values, while there are no more than
+ * {@link #MAX_DICTIONARY_SIZE} of them, otherwise char slabs, one per chunk,
+ * with the offsets of each value.</li>
+ * <li>OTHER, ARRAY, JAVA_OBJECT, STRUCT: the values' text, as the database
+ * sends them (objects, JSON, arrays), the strings read from the driver.</li>
+ * <li>Any other type: Object[].</li>
+ * </ul>
+ * Values are read from a result-set with {@link #read(ResultSet, int, int)},
+ * which columns of primitive storage implement with the getter of their type
+ * and wasNull, so that no objects are created, while OTHER and ARRAY values
+ * are read as text, the driver does not build objects for them.
+ * Nulls are tracked in bitsets, allocated for the chunks that have nulls.
+ * Values that do not fit the column's storage are rejected by
+ * {@link #set(int, Object)}, in which case the table moves the column to more
+ * general storage with {@link #promote(int, int)}: dictionary encoded strings
+ * to char slabs, anything else to Object[].
+ * <p>
+ * Rows are appended in order, by a single writer. Readers do not lock, they
+ * only read rows the writer has published (see {@link SQLTable#size()}). Array
+ * slots are written in place before the row is published, while arrays that
+ * are replaced, because they had to grow, are replaced in copies of their
+ * parent array published through volatile fields, so that readers always see
+ * them fully populated.
+ * <p>
+ * Chunks can be dropped from the heap with {@link #dropChunk(int)}, once the
+ * table has written them to a {@link SpillFile}, after which their rows read
+ * as {@link #SPILLED}. Columns write and read their values in the spill file's
+ * row format with {@link #writeValue(int, SpillFile.Out)} and
+ * {@link #readValue(ByteBuffer)}.
+ * <p>
+ * Columns whose values order like longs (numbers, timestamps, booleans, and
+ * dictionary encoded strings, by the rank of their value in the dictionary)
+ * provide {@link #sortKeys()}, so that rows can be sorted without creating
+ * objects, and dictionary encoded columns filter rows by their codes, with
+ * {@link #matchRows(Predicate)}, each distinct value is tested once.
+ */
+abstract class Column {
+
+    static final int CHUNK_BITS = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS; // 4096 rows
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_CHUNKS = 4;
+    private static final int MIN_CHUNK_LEN = 64;
+    private static final int REF_BYTES = 4;
+    private static final int ARRAY_BYTES = 16;
+    private static final int STRING_OVERHEAD_BYTES = 40;
+    static final int MAX_DICTIONARY_SIZE = 1 << 12;
+
+    /**
+     * Value of the rows of dropped chunks, to be read from the spill file.
+     */
+    static final Object SPILLED = new Object() {
+        @Override
+        public String toString() {
+            return "SPILLED";
+        }
+    };
+
+    /**
+     * @param sqlType column's SQL type, as defined in {@link java.sql.Types}
+     * @return the column best suited to store values of the type
+     */
+    static Column of(int sqlType) {
+        return of(sqlType, 0);
+    }
+
+    /**
+     * @param sqlType   column's SQL type, as defined in {@link java.sql.Types}
+     * @param precision column's precision, as reported by the result-set's
+     *                  metadata, 0 when not known
+     * @return the column best suited to store values of the type
+     */
+    static Column of(int sqlType, int precision) {
+        switch (sqlType) {
+            case Types.BIGINT:
+                return new LongColumn(sqlType);
+
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return new IntColumn(sqlType);
+
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return new DoubleColumn(sqlType);
+
+            case Types.TIMESTAMP:
+            case Types.TIMESTAMP_WITH_TIMEZONE:
+                return new TimestampColumn(sqlType);
+
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return new BooleanColumn(sqlType, sqlType == Types.BOOLEAN || precision == 1);
+
+            case Types.VARCHAR:
+            case Types.CHAR:
+            case Types.LONGVARCHAR:
+            case Types.NVARCHAR:
+            case Types.NCHAR:
+                return new DictionaryColumn(sqlType);
+
+            case Types.OTHER:
+            case Types.ARRAY:
+            case Types.JAVA_OBJECT:
+            case Types.STRUCT:
+                return new TextColumn(sqlType);
+
+            default:
+                return new ObjectColumn(sqlType);
+        }
+    }
+
+    final int sqlType;
+    private volatile long[][] nulls;
+    long estimatedBytes;
+
+    Column(int sqlType) {
+        this.sqlType = sqlType;
+        nulls = new long[INITIAL_CHUNKS][];
+    }
+
+    /**
+     * Sets the value of a row. Rows are set in order, each once.
+     * 
+     * @param rowIdx index of the row
+     * @param value  the value, may be null
+     * @return false if the value does not fit the column's storage, nothing is set
+     */
+    final boolean set(int rowIdx, Object value) {
+        if (value == null) {
+            int word = (rowIdx & CHUNK_MASK) >>> 6;
+            long[][] n = ensureChunk(nulls, rowIdx >>> CHUNK_BITS, word, CHUNK_SIZE / Long.SIZE, this);
+            if (n != nulls) {
+                nulls = n;
+            }
+            n[rowIdx >>> CHUNK_BITS][word] |= 1L << rowIdx; // shift is mod 64
+            setNull(rowIdx);
+            return true;
+        }
+        return setValue(rowIdx, value);
+    }
+
+    /**
+     * Reads the value of a column of the result-set's current row, and sets it
+     * as the value of a row, in order, like {@link #set(int, Object)}. Reads with
+     * getObject, columns override it to read with the getter of their type.
+     * 
+     * @param rs     result-set positioned at the row
+     * @param colIdx index of the column in the result-set, 1 based
+     * @param rowIdx index of the row
+     * @return false if the value does not fit the column's storage, nothing is set
+     * @throws SQLException could not access the result-set's data
+     */
+    boolean read(ResultSet rs, int colIdx, int rowIdx) throws SQLException {
+        return set(rowIdx, rs.getObject(colIdx));
+    }
+
+    /**
+     * @param rowIdx index of the row
+     * @return the value of the row, null if the value is null, or
+     *         {@link #SPILLED} if its chunk has been dropped
+     */
+    final Object get(int rowIdx) {
+        return isNull(rowIdx) ? null : getValue(rowIdx);
+    }
+
+    /**
+     * @param rowIdx index of the row
+     * @return true if the value of the row is null
+     */
+    final boolean isNull(int rowIdx) {
+        return isNull(nulls, rowIdx);
+    }
+
+    /**
+     * @return the rows whose values are null, as of the call, rows in chunks
+     *         dropped later are still reported
+     */
+    final IntPredicate nullRows() {
+        long[][] n = nulls;
+        return rowIdx -> isNull(n, rowIdx);
+    }
+
+    private static boolean isNull(long[][] n, int rowIdx) {
+        int chunkIdx = rowIdx >>> CHUNK_BITS;
+        if (chunkIdx >= n.length) {
+            return false;
+        }
+        long[] chunk = n[chunkIdx];
+        int word = (rowIdx & CHUNK_MASK) >>> 6;
+        return chunk != null && word < chunk.length && (chunk[word] & (1L << rowIdx)) != 0L;
+    }
+
+    /**
+     * Sort keys are longs that order the same as the values they stand for.
+     * They are read from the chunks as of the call, rows in chunks dropped later
+     * can still be read, rows in chunks dropped before cannot.
+     * 
+     * @return row index to sort key, defined for the rows that are not null, or
+     *         null if the column's values do not order like longs
+     */
+    IntToLongFunction sortKeys() {
+        return null;
+    }
+
+    /**
+     * Like {@link #sortKeys()}, the rows are read from the chunks as of the call.
+     * 
+     * @param predicate tests values, and null
+     * @return the rows whose values match, or null if the column cannot match
+     *         rows without reading their values
+     */
+    IntPredicate matchRows(Predicate<Object> predicate) {
+        return null;
+    }
+
+    /**
+     * Adds the value of a row, which has just been set, to the column's
+     * statistics. Columns of primitive storage add the primitive value.
+     * 
+     * @param rowIdx index of the row
+     * @param stats  the column's statistics
+     */
+    void addStats(int rowIdx, ColumnStats.Accumulator stats) {
+        if (isNull(rowIdx)) {
+            stats.addNull();
+        }
+        else {
+            stats.add(rowIdx, getValue(rowIdx));
+        }
+    }
+
+    /**
+     * @return rough estimate of the heap used by the column, in bytes
+     */
+    final long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * @param from first row, chunk aligned, rows before it are in dropped chunks
+     * @param size number of rows in the column
+     * @return a column with more general storage holding the same values, where
+     *         the rows before from read as {@link #SPILLED}
+     */
+    Column promote(int from, int size) {
+        return copyInto(new ObjectColumn(sqlType), from, size);
+    }
+
+    final Column copyInto(Column column, int from, int size) {
+        for (int i = from; i < size; i++) {
+            column.set(i, get(i));
+        }
+        return column;
+    }
+
+    /**
+     * @return an empty column of the same kind, which can read the values this
+     *         column writes to the spill file
+     */
+    final Column codec() {
+        return this instanceof ObjectColumn ? new ObjectColumn(sqlType) : of(sqlType);
+    }
+
+    /**
+     * Drops a chunk, whose rows have been written to the spill file, from the
+     * heap. Its rows read as {@link #SPILLED} from then on. The values are
+     * dropped before the nulls, a reader that finds the nulls dropped, and so
+     * takes the row for not null, reads {@link #SPILLED} rather than the value
+     * left in the primitive storage of a null row.
+     * 
+     * @param chunkIdx index of the chunk
+     */
+    final void dropChunk(int chunkIdx) {
+        dropValues(chunkIdx);
+        long[][] n = nulls;
+        if (chunkIdx < n.length && n[chunkIdx] != null) {
+            estimatedBytes -= arrayBytes(n[chunkIdx].length, Long.BYTES);
+            n = n.clone();
+            n[chunkIdx] = null;
+            nulls = n;
+        }
+    }
+
+    static long arrayBytes(int len, int elementBytes) {
+        return ARRAY_BYTES + (long) elementBytes * len;
+    }
+
+    /**
+     * Drops the values of a chunk, by nulling the chunk in a copy of the chunks
+     * which is then published.
+     */
+    abstract void dropValues(int chunkIdx);
+
+    /**
+     * Writes the value of a row known not to be null, in the spill file's row
+     * format.
+     */
+    abstract void writeValue(int rowIdx, SpillFile.Out out);
+
+    /**
+     * Reads a value written by {@link #writeValue(int, SpillFile.Out)}.
+     * 
+     * @param in positioned at the value, it is left after the value
+     * @return the value
+     */
+    abstract Object readValue(ByteBuffer in);
+
+    /**
+     * Skips a value written by {@link #writeValue(int, SpillFile.Out)}.
+     * 
+     * @param in positioned at the value, it is left after the value
+     */
+    void skipValue(ByteBuffer in) {
+        readValue(in);
+    }
+
+    /**
+     * Keeps space for the row, whose value is null.
+     */
+    abstract void setNull(int rowIdx);
+
+    /**
+     * @return false if the value does not fit the column's storage
+     */
+    abstract boolean setValue(int rowIdx, Object value);
+
+    /**
+     * @return the value of a row known not to be null
+     */
+    abstract Object getValue(int rowIdx);
+
+    /**
+     * Chunks start small and double in length, up to maxLen, so that small
+     * results take little memory. A chunk that grows is replaced in a copy of
+     * the chunks, which the caller publishes.
+     * 
+     * @return the chunks, or a copy of them if a chunk had to be replaced, where
+     *         chunk chunkIdx has room for index idx
+     */
+    static long[][] ensureChunk(long[][] chunks, int chunkIdx, int idx, int maxLen, Column column) {
+        long[][] c = growChunks(chunks, chunkIdx, column);
+        long[] chunk = c[chunkIdx];
+        int len = chunk == null ? 0 : chunk.length;
+        if (idx >= len) {
+            int newLen = chunkLen(len, idx, maxLen);
+            if (c == chunks) {
+                c = c.clone();
+            }
+            c[chunkIdx] = chunk == null ? new long[newLen] : Arrays.copyOf(chunk, newLen);
+            column.estimatedBytes += (len == 0 ? ARRAY_BYTES : 0) + (long) Long.BYTES * (newLen - len);
+        }
+        return c;
+    }
+
+    static int[][] ensureChunk(int[][] chunks, int chunkIdx, int idx, int maxLen, Column column) {
+        int[][] c = growChunks(chunks, chunkIdx, column);
+        int[] chunk = c[chunkIdx];
+        int len = chunk == null ? 0 : chunk.length;
+        if (idx >= len) {
+            int newLen = chunkLen(len, idx, maxLen);
+            if (c == chunks) {
+                c = c.clone();
+            }
+            c[chunkIdx] = chunk == null ? new int[newLen] : Arrays.copyOf(chunk, newLen);
+            column.estimatedBytes += (len == 0 ? ARRAY_BYTES : 0) + (long) Integer.BYTES * (newLen - len);
+        }
+        return c;
+    }
+
+    static char[][] ensureChunk(char[][] chunks, int chunkIdx, int idx, Column column) {
+        char[][] c = growChunks(chunks, chunkIdx, column);
+        char[] chunk = c[chunkIdx];
+        int len = chunk == null ? 0 : chunk.length;
+        if (idx >= len) {
+            int newLen = chunkLen(len, idx, CHUNK_SIZE);
+            if (c == chunks) {
+                c = c.clone();
+            }
+            c[chunkIdx] = chunk == null ? new char[newLen] : Arrays.copyOf(chunk, newLen);
+            column.estimatedBytes += (len == 0 ? ARRAY_BYTES : 0) + (long) Character.BYTES * (newLen - len);
+        }
+        return c;
+    }
+
+    static double[][] ensureChunk(double[][] chunks, int chunkIdx, int idx, Column column) {
+        double[][] c = growChunks(chunks, chunkIdx, column);
+        double[] chunk = c[chunkIdx];
+        int len = chunk == null ? 0 : chunk.length;
+        if (idx >= len) {
+            int newLen = chunkLen(len, idx, CHUNK_SIZE);
+            if (c == chunks) {
+                c = c.clone();
+            }
+            c[chunkIdx] = chunk == null ? new double[newLen] : Arrays.copyOf(chunk, newLen);
+            column.estimatedBytes += (len == 0 ? ARRAY_BYTES : 0) + (long) Double.BYTES * (newLen - len);
+        }
+        return c;
+    }
+
+    static Object[][] ensureChunk(Object[][] chunks, int chunkIdx, int idx, Column column) {
+        Object[][] c = growChunks(chunks, chunkIdx, column);
+        Object[] chunk = c[chunkIdx];
+        int len = chunk == null ? 0 : chunk.length;
+        if (idx >= len) {
+            int newLen = chunkLen(len, idx, CHUNK_SIZE);
+            if (c == chunks) {
+                c = c.clone();
+            }
+            c[chunkIdx] = chunk == null ? new Object[newLen] : Arrays.copyOf(chunk, newLen);
+            column.estimatedBytes += (len == 0 ? ARRAY_BYTES : 0) + (long) REF_BYTES * (newLen - len);
+        }
+        return c;
+    }
+
+    private static <T> T[] growChunks(T[] chunks, int chunkIdx, Column column) {
+        if (chunkIdx < chunks.length) {
+            return chunks;
+        }
+        T[] c = Arrays.copyOf(chunks, Math.max(chunkIdx + 1, chunks.length * 2));
+        column.estimatedBytes += (long) REF_BYTES * (c.length - chunks.length);
+        return c;
+    }
+
+    private static int chunkLen(int len, int idx, int maxLen) {
+        return Math.min(maxLen, Math.max(idx + 1, Math.max(MIN_CHUNK_LEN, len * 2)));
+    }
+
+    /**
+     * BIGINT.
+     */
+    static final class LongColumn extends Column {
+
+        private volatile long[][] chunks = new long[INITIAL_CHUNKS][];
+
+        LongColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        private long[] chunkOf(int rowIdx) {
+            long[][] c = ensureChunk(chunks, rowIdx >>> CHUNK_BITS, rowIdx & CHUNK_MASK, CHUNK_SIZE, this);
+            if (c != chunks) {
+                chunks = c;
+            }
+            return c[rowIdx >>> CHUNK_BITS];
+        }
+
+        @Override
+        void setNull(int rowIdx) {
+            chunkOf(rowIdx);
+        }
+
+        @Override
+        boolean setValue(int rowIdx, Object value) {
+            if (!(value instanceof Long)) {
+                return false;
+            }
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = (Long) value;
+            return true;
+        }
+
+        @Override
+        boolean read(ResultSet rs, int colIdx, int rowIdx) throws SQLException {
+            long value = rs.getLong(colIdx);
+            if (rs.wasNull()) {
+                return set(rowIdx, null);
+            }
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = value;
+            return true;
+        }
+
+        @Override
+        Object getValue(int rowIdx) {
+            long[] chunk = chunks[rowIdx >>> CHUNK_BITS];
+            return chunk != null ? (Object) chunk[rowIdx & CHUNK_MASK] : SPILLED;
+        }
+
+        @Override
+        IntToLongFunction sortKeys() {
+            long[][] c = chunks;
+            return rowIdx -> c[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK];
+        }
+
+        @Override
+        void addStats(int rowIdx, ColumnStats.Accumulator stats) {
+            if (isNull(rowIdx)) {
+                stats.addNull();
+            }
+            else {
+                stats.add(rowIdx, chunks[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]);
+            }
+        }
+
+        @Override
+        void dropValues(int chunkIdx) {
+            long[][] c = chunks.clone();
+            if (c[chunkIdx] != null) {
+                estimatedBytes -= arrayBytes(c[chunkIdx].length, Long.BYTES);
+                c[chunkIdx] = null;
+                chunks = c;
+            }
+        }
+
+        @Override
+        void writeValue(int rowIdx, SpillFile.Out out) {
+            out.putLong(chunks[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]);
+        }
+
+        @Override
+        Object readValue(ByteBuffer in) {
+            return in.getLong();
+        }
+    }
+
+    /**
+     * INTEGER, SMALLINT, TINYINT, values are read back as Integer.
+     */
+    static final class IntColumn extends Column {
+
+        private volatile int[][] chunks = new int[INITIAL_CHUNKS][];
+
+        IntColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        private int[] chunkOf(int rowIdx) {
+            int[][] c = ensureChunk(chunks, rowIdx >>> CHUNK_BITS, rowIdx & CHUNK_MASK, CHUNK_SIZE, this);
+            if (c != chunks) {
+                chunks = c;
+            }
+            return c[rowIdx >>> CHUNK_BITS];
+        }
+
+        @Override
+        void setNull(int rowIdx) {
+            chunkOf(rowIdx);
+        }
+
+        @Override
+        boolean setValue(int rowIdx, Object value) {
+            if (!(value instanceof Integer || value instanceof Short || value instanceof Byte)) {
+                return false;
+            }
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = ((Number) value).intValue();
+            return true;
+        }
+
+        @Override
+        boolean read(ResultSet rs, int colIdx, int rowIdx) throws SQLException {
+            int value = rs.getInt(colIdx);
+            if (rs.wasNull()) {
+                return set(rowIdx, null);
+            }
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = value;
+            return true;
+        }
+
+        @Override
+        Object getValue(int rowIdx) {
+            int[] chunk = chunks[rowIdx >>> CHUNK_BITS];
+            return chunk != null ? (Object) chunk[rowIdx & CHUNK_MASK] : SPILLED;
+        }
+
+        @Override
+        IntToLongFunction sortKeys() {
+            int[][] c = chunks;
+            return rowIdx -> c[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK];
+        }
+
+        @Override
+        void addStats(int rowIdx, ColumnStats.Accumulator stats) {
+            if (isNull(rowIdx)) {
+                stats.addNull();
+            }
+            else {
+                stats.add(rowIdx, (long) chunks[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]);
+            }
+        }
+
+        @Override
+        void dropValues(int chunkIdx) {
+            int[][] c = chunks.clone();
+            if (c[chunkIdx] != null) {
+                estimatedBytes -= arrayBytes(c[chunkIdx].length, Integer.BYTES);
+                c[chunkIdx] = null;
+                chunks = c;
+            }
+        }
+
+        @Override
+        void writeValue(int rowIdx, SpillFile.Out out) {
+            out.putInt(chunks[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]);
+        }
+
+        @Override
+        Object readValue(ByteBuffer in) {
+            return in.getInt();
+        }
+    }
+
+    /**
+     * DOUBLE, FLOAT, REAL. Values of REAL columns are read back as Float.
+     */
+    static final class DoubleColumn extends Column {
+
+        private final boolean isFloat;
+        private volatile double[][] chunks = new double[INITIAL_CHUNKS][];
+
+        DoubleColumn(int sqlType) {
+            super(sqlType);
+            isFloat = sqlType == Types.REAL;
+        }
+
+        private double[] chunkOf(int rowIdx) {
+            double[][] c = ensureChunk(chunks, rowIdx >>> CHUNK_BITS, rowIdx & CHUNK_MASK, this);
+            if (c != chunks) {
+                chunks = c;
+            }
+            return c[rowIdx >>> CHUNK_BITS];
+        }
+
+        @Override
+        void setNull(int rowIdx) {
+            chunkOf(rowIdx);
+        }
+
+        @Override
+        boolean setValue(int rowIdx, Object value) {
+            if (!(isFloat ? value instanceof Float : value instanceof Double)) {
+                return false;
+            }
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = ((Number) value).doubleValue();
+            return true;
+        }
+
+        @Override
+        boolean read(ResultSet rs, int colIdx, int rowIdx) throws SQLException {
+            double value = isFloat ? rs.getFloat(colIdx) : rs.getDouble(colIdx);
+            if (rs.wasNull()) {
+                return set(rowIdx, null);
+            }
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = value;
+            return true;
+        }
+
+        @Override
+        Object getValue(int rowIdx) {
+            double[] chunk = chunks[rowIdx >>> CHUNK_BITS];
+            if (chunk == null) {
+                return SPILLED;
+            }
+            return box(chunk[rowIdx & CHUNK_MASK]);
+        }
+
+        private Object box(double value) {
+            if (isFloat) {
+                return Float.valueOf((float) value); // not a ternary, it would promote to Double
+            }
+            return Double.valueOf(value);
+        }
+
+        /**
+         * The bits of negative values are flipped, but for the sign, so that
+         * keys order like the values, with NaN last.
+         */
+        @Override
+        IntToLongFunction sortKeys() {
+            double[][] c = chunks;
+            return rowIdx -> {
+                long bits = Double.doubleToLongBits(c[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]);
+                return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+            };
+        }
+
+        @Override
+        void addStats(int rowIdx, ColumnStats.Accumulator stats) {
+            if (isNull(rowIdx)) {
+                stats.addNull();
+            }
+            else {
+                stats.add(rowIdx, chunks[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]);
+            }
+        }
+
+        @Override
+        void dropValues(int chunkIdx) {
+            double[][] c = chunks.clone();
+            if (c[chunkIdx] != null) {
+                estimatedBytes -= arrayBytes(c[chunkIdx].length, Double.BYTES);
+                c[chunkIdx] = null;
+                chunks = c;
+            }
+        }
+
+        @Override
+        void writeValue(int rowIdx, SpillFile.Out out) {
+            out.putDouble(chunks[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]);
+        }
+
+        @Override
+        Object readValue(ByteBuffer in) {
+            return box(in.getDouble());
+        }
+    }
+
+    /**
+     * TIMESTAMP, TIMESTAMP_WITH_TIMEZONE, microseconds since the epoch. Values
+     * are read back as Timestamp.
+     * <p>
+     * The driver has no epoch getter for text results, the values are read as
+     * LocalDateTime, placed in the default time zone like getTimestamp would,
+     * or as OffsetDateTime, which skips building a Timestamp and a Calendar
+     * per value.
+     */
+    static final class TimestampColumn extends Column {
+
+        private static final long MAX_MILLIS = Long.MAX_VALUE / 1000L;
+        private static final long MIN_MILLIS = Long.MIN_VALUE / 1000L;
+        private static final long MAX_SECONDS = Long.MAX_VALUE / 1_000_000L;
+        private static final long MIN_SECONDS = Long.MIN_VALUE / 1_000_000L;
+
+        private final ZoneRules zoneRules = ZoneId.systemDefault().getRules();
+        private volatile long[][] chunks = new long[INITIAL_CHUNKS][];
+
+        TimestampColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        private long[] chunkOf(int rowIdx) {
+            long[][] c = ensureChunk(chunks, rowIdx >>> CHUNK_BITS, rowIdx & CHUNK_MASK, CHUNK_SIZE, this);
+            if (c != chunks) {
+                chunks = c;
+            }
+            return c[rowIdx >>> CHUNK_BITS];
+        }
+
+        @Override
+        void setNull(int rowIdx) {
+            chunkOf(rowIdx);
+        }
+
+        @Override
+        boolean setValue(int rowIdx, Object value) {
+            if (!(value instanceof Timestamp)) {
+                return false;
+            }
+            Timestamp ts = (Timestamp) value;
+            long millis = ts.getTime();
+            if (millis <= MIN_MILLIS || millis >= MAX_MILLIS || ts.getNanos() % 1000 != 0) {
+                return false; // infinity, or beyond microsecond precision
+            }
+            long seconds = Math.floorDiv(millis, 1000L);
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = seconds * 1_000_000L + ts.getNanos() / 1000;
+            return true;
+        }
+
+        @Override
+        boolean read(ResultSet rs, int colIdx, int rowIdx) throws SQLException {
+            long seconds;
+            int nanos;
+            if (sqlType == Types.TIMESTAMP_WITH_TIMEZONE) {
+                OffsetDateTime value = rs.getObject(colIdx, OffsetDateTime.class);
+                if (value == null) {
+                    return set(rowIdx, null);
+                }
+                seconds = value.toEpochSecond();
+                nanos = value.getNano();
+            }
+            else {
+                LocalDateTime value = rs.getObject(colIdx, LocalDateTime.class);
+                if (value == null) {
+                    return set(rowIdx, null);
+                }
+                seconds = value.toEpochSecond(zoneRules.getOffset(value));
+                nanos = value.getNano();
+            }
+            if (seconds <= MIN_SECONDS || seconds >= MAX_SECONDS || nanos % 1000 != 0) {
+                return false; // infinity, or beyond microsecond precision
+            }
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = seconds * 1_000_000L + nanos / 1000;
+            return true;
+        }
+
+        @Override
+        Object getValue(int rowIdx) {
+            long[] chunk = chunks[rowIdx >>> CHUNK_BITS];
+            return chunk != null ? toTimestamp(chunk[rowIdx & CHUNK_MASK]) : SPILLED;
+        }
+
+        @Override
+        IntToLongFunction sortKeys() {
+            long[][] c = chunks;
+            return rowIdx -> c[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK];
+        }
+
+        @Override
+        void addStats(int rowIdx, ColumnStats.Accumulator stats) {
+            if (isNull(rowIdx)) {
+                stats.addNull();
+            }
+            else {
+                stats.add(rowIdx, chunks[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]);
+            }
+        }
+
+        private static Timestamp toTimestamp(long micros) {
+            Timestamp ts = new Timestamp(Math.floorDiv(micros, 1_000_000L) * 1000L);
+            ts.setNanos((int) Math.floorMod(micros, 1_000_000L) * 1000);
+            return ts;
+        }
+
+        @Override
+        void dropValues(int chunkIdx) {
+            long[][] c = chunks.clone();
+            if (c[chunkIdx] != null) {
+                estimatedBytes -= arrayBytes(c[chunkIdx].length, Long.BYTES);
+                c[chunkIdx] = null;
+                chunks = c;
+            }
+        }
+
+        @Override
+        void writeValue(int rowIdx, SpillFile.Out out) {
+            out.putLong(chunks[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]);
+        }
+
+        @Override
+        Object readValue(ByteBuffer in) {
+            return toTimestamp(in.getLong());
+        }
+    }
+
+    /**
+     * BOOLEAN, BIT, a bitset.
+     */
+    static final class BooleanColumn extends Column {
+
+        private final boolean isBoolean;
+        private volatile long[][] chunks = new long[INITIAL_CHUNKS][];
+
+        /**
+         * @param sqlType   BOOLEAN or BIT
+         * @param isBoolean whether values are read with getBoolean, true for
+         *                  BOOLEAN and BIT(1), which is how the driver reports bool
+         */
+        BooleanColumn(int sqlType, boolean isBoolean) {
+            super(sqlType);
+            this.isBoolean = isBoolean;
+        }
+
+        private long[] chunkOf(int rowIdx) {
+            int word = (rowIdx & CHUNK_MASK) >>> 6;
+            long[][] c = ensureChunk(chunks, rowIdx >>> CHUNK_BITS, word, CHUNK_SIZE / Long.SIZE, this);
+            if (c != chunks) {
+                chunks = c;
+            }
+            return c[rowIdx >>> CHUNK_BITS];
+        }
+
+        @Override
+        void setNull(int rowIdx) {
+            chunkOf(rowIdx);
+        }
+
+        @Override
+        boolean setValue(int rowIdx, Object value) {
+            if (!(value instanceof Boolean)) {
+                return false;
+            }
+            long[] chunk = chunkOf(rowIdx);
+            if ((Boolean) value) {
+                chunk[(rowIdx & CHUNK_MASK) >>> 6] |= 1L << rowIdx; // shift is mod 64
+            }
+            return true;
+        }
+
+        /**
+         * BIT values wider than one bit, or of unknown width, are read with
+         * getObject, they may be bit strings.
+         */
+        @Override
+        boolean read(ResultSet rs, int colIdx, int rowIdx) throws SQLException {
+            if (!isBoolean) {
+                return super.read(rs, colIdx, rowIdx);
+            }
+            boolean value = rs.getBoolean(colIdx);
+            if (rs.wasNull()) {
+                return set(rowIdx, null);
+            }
+            long[] chunk = chunkOf(rowIdx);
+            if (value) {
+                chunk[(rowIdx & CHUNK_MASK) >>> 6] |= 1L << rowIdx; // shift is mod 64
+            }
+            return true;
+        }
+
+        @Override
+        Object getValue(int rowIdx) {
+            long[] chunk = chunks[rowIdx >>> CHUNK_BITS];
+            if (chunk == null) {
+                return SPILLED;
+            }
+            return (chunk[(rowIdx & CHUNK_MASK) >>> 6] & (1L << rowIdx)) != 0L;
+        }
+
+        @Override
+        IntToLongFunction sortKeys() {
+            long[][] c = chunks;
+            return rowIdx -> (c[rowIdx >>> CHUNK_BITS][(rowIdx & CHUNK_MASK) >>> 6] >>> rowIdx) & 1L;
+        }
+
+        @Override
+        void dropValues(int chunkIdx) {
+            long[][] c = chunks.clone();
+            if (c[chunkIdx] != null) {
+                estimatedBytes -= arrayBytes(c[chunkIdx].length, Long.BYTES);
+                c[chunkIdx] = null;
+                chunks = c;
+            }
+        }
+
+        @Override
+        void writeValue(int rowIdx, SpillFile.Out out) {
+            out.put((Boolean) getValue(rowIdx) ? (byte) 1 : (byte) 0);
+        }
+
+        @Override
+        Object readValue(ByteBuffer in) {
+            return in.get() != 0;
+        }
+    }
+
+    /**
+     * VARCHAR, CHAR, while the column has no more than
+     * {@link #MAX_DICTIONARY_SIZE} distinct values. Each row is a 16 bit code,
+     * the index of its value in the dictionary, and each distinct value is kept
+     * once. A value that would grow the dictionary beyond its max size is
+     * rejected, and the table promotes the column to a {@link StringColumn}.
+     */
+    static final class DictionaryColumn extends Column {
+
+        private static final int ENTRY_BYTES = 48; // map entry and boxed code
+
+        private volatile char[][] chunks = new char[INITIAL_CHUNKS][];
+        private volatile String[] dictionary = new String[16]; // grows, entries are only appended
+        private final Map<String, Integer> codes = new HashMap<>();
+
+        DictionaryColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        private char[] chunkOf(int rowIdx) {
+            char[][] c = ensureChunk(chunks, rowIdx >>> CHUNK_BITS, rowIdx & CHUNK_MASK, this);
+            if (c != chunks) {
+                chunks = c;
+            }
+            return c[rowIdx >>> CHUNK_BITS];
+        }
+
+        /**
+         * @return number of distinct values
+         */
+        int getDictionarySize() {
+            return codes.size();
+        }
+
+        @Override
+        void setNull(int rowIdx) {
+            chunkOf(rowIdx);
+        }
+
+        @Override
+        boolean setValue(int rowIdx, Object value) {
+            if (!(value instanceof String)) {
+                return false;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                int size = codes.size();
+                if (size >= MAX_DICTIONARY_SIZE) {
+                    return false;
+                }
+                String[] d = dictionary;
+                if (size == d.length) {
+                    d = Arrays.copyOf(d, size * 2);
+                    estimatedBytes += (long) REF_BYTES * size;
+                }
+                d[size] = (String) value;
+                if (d != dictionary) {
+                    dictionary = d;
+                }
+                code = size;
+                codes.put((String) value, code);
+                estimatedBytes += ENTRY_BYTES + STRING_OVERHEAD_BYTES + (long) Character.BYTES * d[size].length();
+            }
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = (char) code.intValue();
+            return true;
+        }
+
+        @Override
+        boolean read(ResultSet rs, int colIdx, int rowIdx) throws SQLException {
+            return set(rowIdx, rs.getString(colIdx));
+        }
+
+        @Override
+        Object getValue(int rowIdx) {
+            char[] chunk = chunks[rowIdx >>> CHUNK_BITS];
+            return chunk != null ? dictionary[chunk[rowIdx & CHUNK_MASK]] : SPILLED;
+        }
+
+        /**
+         * Keys are the ranks of the values in the sorted dictionary, which is
+         * small, so ranking it is cheap.
+         */
+        @Override
+        IntToLongFunction sortKeys() {
+            char[][] c = chunks;
+            String[] d = dictionary;
+            int size = 0;
+            while (size < d.length && d[size] != null) {
+                size++;
+            }
+            Integer[] byValue = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                byValue[i] = i;
+            }
+            Arrays.sort(byValue, (a, b) -> d[a].compareTo(d[b]));
+            int[] ranks = new int[size];
+            for (int i = 0; i < size; i++) {
+                ranks[byValue[i]] = i;
+            }
+            return rowIdx -> ranks[c[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]];
+        }
+
+        @Override
+        IntPredicate matchRows(Predicate<Object> predicate) {
+            IntPredicate isNull = nullRows();
+            char[][] c = chunks;
+            String[] d = dictionary;
+            boolean[] matches = new boolean[d.length];
+            for (int i = 0; i < d.length && d[i] != null; i++) {
+                matches[i] = predicate.test(d[i]);
+            }
+            boolean isNullMatch = predicate.test(null);
+            return rowIdx -> isNull.test(rowIdx) ? isNullMatch : matches[c[rowIdx >>> CHUNK_BITS][rowIdx & CHUNK_MASK]];
+        }
+
+        @Override
+        Column promote(int from, int size) {
+            return copyInto(new StringColumn(sqlType), from, size);
+        }
+
+        @Override
+        void dropValues(int chunkIdx) {
+            char[][] c = chunks.clone();
+            if (c[chunkIdx] != null) {
+                estimatedBytes -= arrayBytes(c[chunkIdx].length, Character.BYTES);
+                c[chunkIdx] = null;
+                chunks = c;
+            }
+        }
+
+        @Override
+        void writeValue(int rowIdx, SpillFile.Out out) {
+            out.putString((String) getValue(rowIdx));
+        }
+
+        @Override
+        Object readValue(ByteBuffer in) {
+            return SpillFile.getString(in);
+        }
+
+        @Override
+        void skipValue(ByteBuffer in) {
+            SpillFile.skipBytes(in);
+        }
+    }
+
+    /**
+     * VARCHAR, CHAR with many distinct values. The characters of the values of
+     * each chunk are kept in one slab, value i spans offsets[i] to offsets[i +
+     * 1].
+     */
+    static final class StringColumn extends Column {
+
+        private static final int INITIAL_SLAB_CHARS = 1024;
+
+        private volatile char[][] slabs = new char[INITIAL_CHUNKS][];
+        private volatile int[][] offsets = new int[INITIAL_CHUNKS][];
+
+        StringColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        @Override
+        void setNull(int rowIdx) {
+            append(rowIdx, "");
+        }
+
+        @Override
+        boolean setValue(int rowIdx, Object value) {
+            if (!(value instanceof String)) {
+                return false;
+            }
+            append(rowIdx, (String) value);
+            return true;
+        }
+
+        @Override
+        boolean read(ResultSet rs, int colIdx, int rowIdx) throws SQLException {
+            return set(rowIdx, rs.getString(colIdx));
+        }
+
+        private void append(int rowIdx, String value) {
+            int chunkIdx = rowIdx >>> CHUNK_BITS;
+            int i = rowIdx & CHUNK_MASK;
+            int[][] o = ensureChunk(offsets, chunkIdx, i + 1, CHUNK_SIZE + 1, this);
+            if (o != offsets) {
+                offsets = o;
+            }
+            char[][] s = slabs;
+            char[] slab = chunkIdx < s.length ? s[chunkIdx] : null;
+            int[] chunkOffsets = o[chunkIdx];
+            int start = chunkOffsets[i];
+            int end = start + value.length();
+            if (slab == null || end > slab.length) {
+                int newLen = Math.max(end, slab == null ? INITIAL_SLAB_CHARS : slab.length * 2);
+                estimatedBytes += (long) Character.BYTES * (newLen - (slab == null ? 0 : slab.length));
+                slab = slab == null ? new char[newLen] : Arrays.copyOf(slab, newLen);
+                s = Arrays.copyOf(s, Math.max(s.length, o.length));
+                s[chunkIdx] = slab;
+                slabs = s;
+            }
+            value.getChars(0, value.length(), slab, start);
+            chunkOffsets[i + 1] = end;
+        }
+
+        @Override
+        Object getValue(int rowIdx) {
+            int chunkIdx = rowIdx >>> CHUNK_BITS;
+            int i = rowIdx & CHUNK_MASK;
+            int[] chunkOffsets = offsets[chunkIdx];
+            char[] slab = slabs[chunkIdx];
+            if (chunkOffsets == null || slab == null) {
+                return SPILLED;
+            }
+            int start = chunkOffsets[i];
+            return new String(slab, start, chunkOffsets[i + 1] - start);
+        }
+
+        @Override
+        void dropValues(int chunkIdx) {
+            char[][] s = slabs.clone();
+            if (s[chunkIdx] != null) {
+                estimatedBytes -= (long) Character.BYTES * s[chunkIdx].length;
+                s[chunkIdx] = null;
+                slabs = s;
+            }
+            int[][] o = offsets.clone();
+            if (o[chunkIdx] != null) {
+                estimatedBytes -= arrayBytes(o[chunkIdx].length, Integer.BYTES);
+                o[chunkIdx] = null;
+                offsets = o;
+            }
+        }
+
+        @Override
+        void writeValue(int rowIdx, SpillFile.Out out) {
+            out.putString((String) getValue(rowIdx));
+        }
+
+        @Override
+        Object readValue(ByteBuffer in) {
+            return SpillFile.getString(in);
+        }
+
+        @Override
+        void skipValue(ByteBuffer in) {
+            SpillFile.skipBytes(in);
+        }
+    }
+
+    /**
+     * OTHER, ARRAY, JAVA_OBJECT, STRUCT, the values' text, read with getString so
+     * that the driver does not build objects for them. The strings are kept as
+     * the driver returns them.
+     */
+    static final class TextColumn extends Column {
+
+        private volatile Object[][] chunks = new Object[INITIAL_CHUNKS][];
+
+        TextColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        private Object[] chunkOf(int rowIdx) {
+            Object[][] c = ensureChunk(chunks, rowIdx >>> CHUNK_BITS, rowIdx & CHUNK_MASK, this);
+            if (c != chunks) {
+                chunks = c;
+            }
+            return c[rowIdx >>> CHUNK_BITS];
+        }
+
+        @Override
+        void setNull(int rowIdx) {
+            chunkOf(rowIdx);
+        }
+
+        @Override
+        boolean setValue(int rowIdx, Object value) {
+            if (!(value instanceof String)) {
+                return false;
+            }
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = value;
+            estimatedBytes += STRING_OVERHEAD_BYTES + (long) Character.BYTES * ((String) value).length();
+            return true;
+        }
+
+        @Override
+        boolean read(ResultSet rs, int colIdx, int rowIdx) throws SQLException {
+            return set(rowIdx, rs.getString(colIdx));
+        }
+
+        @Override
+        Object getValue(int rowIdx) {
+            Object[][] c = chunks;
+            int chunkIdx = rowIdx >>> CHUNK_BITS;
+            Object[] chunk = chunkIdx < c.length ? c[chunkIdx] : null;
+            return chunk != null ? chunk[rowIdx & CHUNK_MASK] : SPILLED;
+        }
+
+        @Override
+        void dropValues(int chunkIdx) {
+            Object[][] c = chunks.clone();
+            Object[] chunk = c[chunkIdx];
+            if (chunk != null) {
+                long bytes = arrayBytes(chunk.length, REF_BYTES);
+                for (Object value : chunk) {
+                    if (value != null) {
+                        bytes += STRING_OVERHEAD_BYTES + (long) Character.BYTES * ((String) value).length();
+                    }
+                }
+                estimatedBytes -= bytes;
+                c[chunkIdx] = null;
+                chunks = c;
+            }
+        }
+
+        @Override
+        void writeValue(int rowIdx, SpillFile.Out out) {
+            out.putString((String) getValue(rowIdx));
+        }
+
+        @Override
+        Object readValue(ByteBuffer in) {
+            return SpillFile.getString(in);
+        }
+
+        @Override
+        void skipValue(ByteBuffer in) {
+            SpillFile.skipBytes(in);
+        }
+    }
+
+    /**
+     * Any other type, values as they are.
+     */
+    static final class ObjectColumn extends Column {
+
+        private static final int BOXED_BYTES = 16;
+        private static final int TIMESTAMP_BYTES = 32;
+        private static final int OBJECT_BYTES = 64;
+        private static final byte TAG_LONG = 1;
+        private static final byte TAG_INT = 2;
+        private static final byte TAG_SHORT = 3;
+        private static final byte TAG_BYTE = 4;
+        private static final byte TAG_DOUBLE = 5;
+        private static final byte TAG_FLOAT = 6;
+        private static final byte TAG_TRUE = 7;
+        private static final byte TAG_FALSE = 8;
+        private static final byte TAG_TIMESTAMP = 9;
+        private static final byte TAG_DATE = 10;
+        private static final byte TAG_TIME = 11;
+        private static final byte TAG_DECIMAL = 12;
+        private static final byte TAG_BYTES = 13;
+        private static final byte TAG_STRING = 14;
+
+        private volatile Object[][] chunks = new Object[INITIAL_CHUNKS][];
+
+        ObjectColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        private Object[] chunkOf(int rowIdx) {
+            Object[][] c = ensureChunk(chunks, rowIdx >>> CHUNK_BITS, rowIdx & CHUNK_MASK, this);
+            if (c != chunks) {
+                chunks = c;
+            }
+            return c[rowIdx >>> CHUNK_BITS];
+        }
+
+        @Override
+        void setNull(int rowIdx) {
+            chunkOf(rowIdx);
+        }
+
+        @Override
+        boolean setValue(int rowIdx, Object value) {
+            chunkOf(rowIdx)[rowIdx & CHUNK_MASK] = value;
+            estimatedBytes += estimateBytes(value);
+            return true;
+        }
+
+        @Override
+        Object getValue(int rowIdx) {
+            Object[][] c = chunks;
+            int chunkIdx = rowIdx >>> CHUNK_BITS;
+            Object[] chunk = chunkIdx < c.length ? c[chunkIdx] : null;
+            return chunk != null ? chunk[rowIdx & CHUNK_MASK] : SPILLED;
+        }
+
+        @Override
+        void dropValues(int chunkIdx) {
+            Object[][] c = chunks.clone();
+            Object[] chunk = c[chunkIdx];
+            if (chunk != null) {
+                long bytes = arrayBytes(chunk.length, REF_BYTES);
+                for (Object value : chunk) {
+                    if (value != null) {
+                        bytes += estimateBytes(value);
+                    }
+                }
+                estimatedBytes -= bytes;
+                c[chunkIdx] = null;
+                chunks = c;
+            }
+        }
+
+        /**
+         * Values are written with a leading tag. Types without a tag are written as
+         * their string representation.
+         */
+        @Override
+        void writeValue(int rowIdx, SpillFile.Out out) {
+            Object value = getValue(rowIdx);
+            if (value instanceof Long) {
+                out.put(TAG_LONG);
+                out.putLong((Long) value);
+            }
+            else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                out.put(value instanceof Integer ? TAG_INT : value instanceof Short ? TAG_SHORT : TAG_BYTE);
+                out.putInt(((Number) value).intValue());
+            }
+            else if (value instanceof Double || value instanceof Float) {
+                out.put(value instanceof Double ? TAG_DOUBLE : TAG_FLOAT);
+                out.putDouble(((Number) value).doubleValue());
+            }
+            else if (value instanceof Boolean) {
+                out.put((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            }
+            else if (value instanceof Timestamp) {
+                out.put(TAG_TIMESTAMP);
+                out.putLong(((Timestamp) value).getTime());
+                out.putInt(((Timestamp) value).getNanos());
+            }
+            else if (value instanceof Date || value instanceof Time) {
+                out.put(value instanceof Date ? TAG_DATE : TAG_TIME);
+                out.putLong(((java.util.Date) value).getTime());
+            }
+            else if (value instanceof BigDecimal) {
+                out.put(TAG_DECIMAL);
+                out.putString(value.toString());
+            }
+            else if (value instanceof byte[]) {
+                out.put(TAG_BYTES);
+                out.putBytes((byte[]) value);
+            }
+            else {
+                out.put(TAG_STRING);
+                out.putString(value.toString());
+            }
+        }
+
+        @Override
+        Object readValue(ByteBuffer in) {
+            byte tag = in.get();
+            switch (tag) {
+                case TAG_LONG:
+                    return in.getLong();
+                case TAG_INT:
+                    return in.getInt();
+                case TAG_SHORT:
+                    return (short) in.getInt();
+                case TAG_BYTE:
+                    return (byte) in.getInt();
+                case TAG_DOUBLE:
+                    return in.getDouble();
+                case TAG_FLOAT:
+                    return (float) in.getDouble();
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_TIMESTAMP:
+                    Timestamp ts = new Timestamp(in.getLong());
+                    ts.setNanos(in.getInt());
+                    return ts;
+                case TAG_DATE:
+                    return new Date(in.getLong());
+                case TAG_TIME:
+                    return new Time(in.getLong());
+                case TAG_DECIMAL:
+                    return new BigDecimal(SpillFile.getString(in));
+                case TAG_BYTES:
+                    return SpillFile.getBytes(in);
+                case TAG_STRING:
+                    return SpillFile.getString(in);
+                default:
+                    throw new IllegalStateException("unknown tag: " + tag);
+            }
+        }
+
+        private static long estimateBytes(Object value) {
+            if (value instanceof String) {
+                return STRING_OVERHEAD_BYTES + ((String) value).length();
+            }
+            if (value instanceof Number || value instanceof Boolean) {
+                return BOXED_BYTES;
+            }
+            if (value instanceof Timestamp) {
+                return TIMESTAMP_BYTES;
+            }
+            return OBJECT_BYTES;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.sql.Types;
+import java.util.function.IntFunction;
+
+
+/**
+ * Statistics of the values of a column of a {@link SQLTable}, as of the time
+ * they were taken: null count, min and max, sum and mean of numeric columns,
+ * and an estimate of the number of distinct values, see {@link HyperLogLog}.
+ * They are maintained while rows are added, see
+ * {@link SQLTable#getColStats(int)}.
+ */
+public final class ColumnStats {
+
+    private final long count;
+    private final long nullCount;
+    private final Object min;
+    private final Object max;
+    private final boolean isNumeric;
+    private final double sum;
+    private final long distinctCount;
+
+    private ColumnStats(Accumulator acc, Object min, Object max) {
+        count = acc.count;
+        nullCount = acc.nullCount;
+        isNumeric = acc.isNumeric;
+        sum = acc.sum;
+        distinctCount = count > 0 ? Math.max(1L, Math.min(count, acc.distinct.estimate())) : 0L;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return number of values that are not null
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return number of values that are null
+     */
+    public long getNullCount() {
+        return nullCount;
+    }
+
+    /**
+     * @return the smallest value, or null if all values are null, or they do not
+     *         compare
+     */
+    public Object getMin() {
+        return min;
+    }
+
+    /**
+     * @return the largest value, or null if all values are null, or they do not
+     *         compare
+     */
+    public Object getMax() {
+        return max;
+    }
+
+    /**
+     * @return true if the column is numeric, and thus has a sum and a mean
+     */
+    public boolean isNumeric() {
+        return isNumeric;
+    }
+
+    /**
+     * @return sum of the values, 0 if the column is not numeric
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * @return mean of the values, NaN if there are none or the column is not
+     *         numeric
+     */
+    public double getMean() {
+        return isNumeric && count > 0 ? sum / count : Double.NaN;
+    }
+
+    /**
+     * @return estimated number of distinct values, nulls excluded
+     */
+    public long getDistinctCount() {
+        return distinctCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count: %d, nulls: %d, distinct: ~%d, min: %s, max: %s, sum: %s, mean: %s", count,
+            nullCount, distinctCount, min, max, isNumeric ? sum : "-", isNumeric ? getMean() : "-");
+    }
+
+    /**
+     * Running statistics, updated by the table's writer as each value is set.
+     * The min and max are tracked by row index, their values are read from the
+     * table when a snapshot is taken.
+     * <p>
+     * Not thread-safe.
+     */
+    static final class Accumulator {
+
+        private final boolean isNumeric;
+        private final HyperLogLog distinct;
+        private long count;
+        private long nullCount;
+        private double sum;
+        private int minRowIdx = -1;
+        private int maxRowIdx = -1;
+        private long minLong;
+        private long maxLong;
+        private double minDouble;
+        private double maxDouble;
+        private Object minValue;
+        private Object maxValue;
+
+        Accumulator(int sqlType) {
+            isNumeric = isNumeric(sqlType);
+            distinct = new HyperLogLog();
+        }
+
+        private static boolean isNumeric(int sqlType) {
+            switch (sqlType) {
+                case Types.BIGINT:
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                case Types.TINYINT:
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                case Types.REAL:
+                case Types.NUMERIC:
+                case Types.DECIMAL:
+                    return true;
+
+                default:
+                    return false;
+            }
+        }
+
+        void addNull() {
+            nullCount++;
+        }
+
+        void add(int rowIdx, long value) {
+            boolean isFirst = count++ == 0;
+            if (isFirst || value < minLong) {
+                minLong = value;
+                minRowIdx = rowIdx;
+            }
+            if (isFirst || value > maxLong) {
+                maxLong = value;
+                maxRowIdx = rowIdx;
+            }
+            if (isNumeric) {
+                sum += value;
+            }
+            distinct.add(HyperLogLog.hash(value));
+        }
+
+        void add(int rowIdx, double value) {
+            boolean isFirst = count++ == 0;
+            if (isFirst || Double.compare(value, minDouble) < 0) {
+                minDouble = value;
+                minRowIdx = rowIdx;
+            }
+            if (isFirst || Double.compare(value, maxDouble) > 0) {
+                maxDouble = value;
+                maxRowIdx = rowIdx;
+            }
+            sum += value;
+            distinct.add(HyperLogLog.hash(Double.doubleToLongBits(value)));
+        }
+
+        void add(int rowIdx, Object value) {
+            boolean isFirst = count++ == 0;
+            if (isFirst || RowOrder.compareValues(value, minValue) < 0) {
+                minValue = value;
+                minRowIdx = rowIdx;
+            }
+            if (isFirst || RowOrder.compareValues(value, maxValue) > 0) {
+                maxValue = value;
+                maxRowIdx = rowIdx;
+            }
+            if (isNumeric && value instanceof Number) {
+                sum += ((Number) value).doubleValue();
+            }
+            distinct.add(HyperLogLog.hash(value.hashCode()));
+        }
+
+        /**
+         * @param valueAt reads the value of a row
+         * @return a snapshot of the statistics
+         */
+        ColumnStats snapshot(IntFunction<Object> valueAt) {
+            Object min = minRowIdx != -1 ? valueAt.apply(minRowIdx) : null;
+            Object max = maxRowIdx != -1 ? valueAt.apply(maxRowIdx) : null;
+            return new ColumnStats(this, min, max);
+        }
+    }
+}
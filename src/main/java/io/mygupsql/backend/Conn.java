@@ -19,7 +19,14 @@ package io.mygupsql.backend;
 import java.io.Closeable;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
@@ -31,6 +38,12 @@ import org.slf4j.LoggerFactory;
  * provides persistence for the attributes. It adds logging and connectivity
  * methods to open/close the connection with the database and check its
  * validity.
+ * <p>
+ * Prepared statements are cached per connection, keyed by SQL text, in LRU
+ * order. A statement's text may start with a tag, a comment identifying the
+ * database job that runs it, which is not part of the key. The cache holds up to "conn.statement.cache.size" statements (system
+ * property, 32 by default), and it is emptied when the connection is closed or
+ * reopened.
  */
 public class Conn extends ConnAttrs implements Closeable {
 
@@ -40,10 +53,55 @@ public class Conn extends ConnAttrs implements Closeable {
      */
     private static final int ISVALID_TIMEOUT_SECS = 10;
 
+    /**
+     * Only CrateDB has this table.
+     */
+    private static final String CRATEDB_PROBE_SQL = "SELECT name FROM sys.cluster";
+
+    /**
+     * Product name reported by the PostgreSQL driver, for CrateDB too.
+     */
+    private static final String POSTGRESQL_PRODUCT_NAME = "PostgreSQL";
+
+    private static final String STATEMENT_CACHE_SIZE_KEY = "conn.statement.cache.size";
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger(STATEMENT_CACHE_SIZE_KEY, 32);
+
     // non persistent attributes, transient:
     private final transient Logger logger;
     private final transient AtomicBoolean isOpen;
     private transient Connection conn;
+    private transient volatile boolean isCrateDB;
+    private transient String crateDBProbedUri; // isCrateDB holds for this uri
+    private final transient Map<String, TaggedStatement> statementCache;
+
+    /**
+     * A cached prepared statement, and the tag its text starts with.
+     */
+    static final class TaggedStatement {
+
+        private final PreparedStatement stmt;
+        private final String tag;
+
+        TaggedStatement(PreparedStatement stmt, String tag) {
+            this.stmt = stmt;
+            this.tag = tag;
+        }
+
+        /**
+         * @return the statement, which must not be closed by the caller
+         */
+        PreparedStatement getStatement() {
+            return stmt;
+        }
+
+        /**
+         * @return the tag the statement's text starts with, that of the request
+         *         it was prepared for
+         */
+        String getTag() {
+            return tag;
+        }
+    }
 
     /**
      * Constructor.
@@ -53,6 +111,7 @@ public class Conn extends ConnAttrs implements Closeable {
     public Conn(String name) {
         super(name);
         isOpen = new AtomicBoolean();
+        statementCache = createStatementCache();
         logger = LoggerFactory.getLogger(String.format("%s [%s]", getClass().getSimpleName(), getKey()));
     }
 
@@ -83,6 +142,7 @@ public class Conn extends ConnAttrs implements Closeable {
     public Conn(StoreEntry other) {
         super(other);
         isOpen = new AtomicBoolean();
+        statementCache = createStatementCache();
         logger = LoggerFactory.getLogger(String.format("%s [%s]", getClass().getSimpleName(), getKey()));
     }
 
@@ -104,6 +164,49 @@ public class Conn extends ConnAttrs implements Closeable {
         return conn;
     }
 
+    /**
+     * @return true if the database on the other end of the connection is
+     *         CrateDB, as found out when the connection was first opened to
+     *         its uri
+     */
+    public boolean isCrateDB() {
+        return isCrateDB;
+    }
+
+    /**
+     * Returns the cached prepared statement for the SQL text, preparing it if it
+     * is not in the cache, with its text prefixed by the tag. The cache is keyed
+     * on the text without the tag, a cached statement keeps the tag it was
+     * prepared with. Cached statements are read only, forward only, and they
+     * must not be closed by the caller, the cache closes them when they are
+     * evicted.
+     * 
+     * @param sql SQL text, with JDBC parameter placeholders (?)
+     * @param tag prefix of the text sent to the database, may be empty
+     * @return the prepared statement, and the tag its text starts with
+     * @throws SQLException if the statement cannot be prepared
+     */
+    synchronized TaggedStatement prepareCached(String sql, String tag) throws SQLException {
+        Connection connection = getConnection();
+        if (connection == null) {
+            throw new SQLException(String.format("connection %s is not open", this));
+        }
+        TaggedStatement cached = statementCache.get(sql);
+        if (cached == null || cached.stmt.isClosed()) {
+            cached = new TaggedStatement(connection.prepareStatement(tag + sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY), tag);
+            statementCache.put(sql, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * @return number of prepared statements in the cache
+     */
+    public synchronized int getStatementCacheSize() {
+        return statementCache.size();
+    }
+
     /**
      * Returns true if the connection has not been closed and is still valid. The
      * driver shall submit a query on the connection or use some other mechanism
@@ -140,19 +243,88 @@ public class Conn extends ConnAttrs implements Closeable {
             return conn;
         }
         logger.info("Connecting");
-        conn = DriverManager.getConnection(getUri(), loginProperties());
+        evictStatementCache();
+        conn = connect();
         conn.setAutoCommit(true);
+        String uri = getUri();
+        if (!uri.equals(crateDBProbedUri)) { // reconnects do not probe again
+            isCrateDB = probeCrateDB(conn);
+            crateDBProbedUri = uri;
+        }
         isOpen.set(true);
-        logger.info("Connected");
+        logger.info("Connected{}", isCrateDB ? " to CrateDB" : "");
         return conn;
     }
 
+    /**
+     * Establishes a new JDBC connection with the database, through the driver
+     * manager.
+     * 
+     * @return the new connection, which the caller is to close
+     * @throws SQLException when the connection cannot be established
+     */
+    Connection connect() throws SQLException {
+        return DriverManager.getConnection(getUri(), loginProperties());
+    }
+
+    private Map<String, TaggedStatement> createStatementCache() {
+        return new LinkedHashMap<>(16, 0.75F, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TaggedStatement> eldest) {
+                if (size() > STATEMENT_CACHE_SIZE) {
+                    closeStatement(eldest.getValue().stmt);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private synchronized void evictStatementCache() {
+        List<TaggedStatement> stmts = new ArrayList<>(statementCache.values());
+        statementCache.clear();
+        stmts.forEach(cached -> closeStatement(cached.stmt));
+    }
+
+    private void closeStatement(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        }
+        catch (SQLException e) {
+            logger.warn("Could not close statement: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * The PostgreSQL driver reports the same product name for CrateDB, only
+     * databases reached through it are probed with a query.
+     */
+    private static boolean probeCrateDB(Connection conn) {
+        try {
+            String productName = conn.getMetaData().getDatabaseProductName();
+            if (!POSTGRESQL_PRODUCT_NAME.equals(productName)) {
+                return productName != null && productName.toLowerCase().contains("crate");
+            }
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(CRATEDB_PROBE_SQL);
+                return true;
+            }
+        }
+        catch (SQLException notCrateDB) {
+            return false;
+        }
+    }
+
     /**
      * Closes the connection.
      */
     @Override
     public synchronized void close() {
         try {
+            evictStatementCache();
             if (conn != null && !conn.isClosed()) {
                 logger.info("Closing");
                 conn.close();
@@ -178,7 +350,7 @@ public class Conn extends ConnAttrs implements Closeable {
     public void testConnectivity() throws SQLException {
         Connection testConn = null;
         try {
-            testConn = DriverManager.getConnection(getUri(), loginProperties());
+            testConn = connect();
             if (!testConn.isValid(ISVALID_TIMEOUT_SECS)) {
                 throw new SQLException(
                     String.format("connection with %s is not valid (tried for %d secs)", this, ISVALID_TIMEOUT_SECS));
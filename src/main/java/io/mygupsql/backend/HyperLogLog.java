@@ -0,0 +1,81 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+/**
+ * Approximate count of distinct values, in constant memory. Values are added
+ * by their 64 bit hash, whose first {@link #P} bits pick one of 2^P registers,
+ * and the register keeps the max position of the first set bit in the rest of
+ * the hash. The standard error of the estimate is 1.04 / sqrt(2^P), about
+ * 1.6%, in 4KB. Small counts are estimated by linear counting of the empty
+ * registers, which is close to exact.
+ * <p>
+ * Not thread-safe.
+ */
+final class HyperLogLog {
+
+    static final int P = 12;
+    private static final int M = 1 << P; // number of registers
+    private static final double ALPHA_MM = 0.7213 / (1.0 + 1.079 / M) * M * M;
+
+    private final byte[] registers = new byte[M];
+
+    /**
+     * @param hash 64 bit hash of the value, well mixed, see {@link #hash(long)}
+     */
+    void add(long hash) {
+        int idx = (int) (hash >>> (Long.SIZE - P));
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1);
+        if (rank > registers[idx]) {
+            registers[idx] = rank;
+        }
+    }
+
+    /**
+     * @return estimated number of distinct values added
+     */
+    long estimate() {
+        double sum = 0.0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA_MM / sum;
+        if (estimate <= 2.5 * M && zeros > 0) {
+            estimate = M * Math.log((double) M / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @param value bits of a value
+     * @return the bits mixed so that they can be added, the finalizer of
+     *         MurmurHash3
+     */
+    static long hash(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
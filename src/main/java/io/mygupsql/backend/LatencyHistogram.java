@@ -0,0 +1,148 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Histogram of non negative long values, latencies in milliseconds, with a
+ * bounded relative error, in the style of HdrHistogram: values below 128 are
+ * counted exactly, larger values land in buckets whose width grows with the
+ * magnitude of the value, 64 buckets per power of two, so that any value is
+ * reported within 1.6% of its actual value. Recording is lock free and
+ * allocation free, the memory footprint is fixed (~30KB).
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS; // 128
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2; // 64
+    private static final int MAX_SHIFT = 63 - (SUB_BUCKET_BITS - 1);
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_SHIFT * SUB_BUCKET_HALF_COUNT;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount;
+    private final AtomicLong sum;
+    private final AtomicLong min;
+    private final AtomicLong max;
+
+    LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+        totalCount = new AtomicLong();
+        sum = new AtomicLong();
+        min = new AtomicLong(Long.MAX_VALUE);
+        max = new AtomicLong();
+    }
+
+    /**
+     * @param value value to record, negative values are ignored
+     */
+    void record(long value) {
+        if (value < 0L) {
+            return;
+        }
+        counts.incrementAndGet(bucketIdx(value));
+        totalCount.incrementAndGet();
+        sum.addAndGet(value);
+        min.accumulateAndGet(value, Math::min);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return smallest recorded value, 0 if none
+     */
+    long getMin() {
+        return getCount() > 0L ? min.get() : 0L;
+    }
+
+    /**
+     * @return largest recorded value, 0 if none
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return mean of the recorded values, 0 if none
+     */
+    double getMean() {
+        long count = getCount();
+        return count > 0L ? (double) sum.get() / count : 0.0;
+    }
+
+    /**
+     * @param percentile in the range [0, 100]
+     * @return the value at the percentile, the highest value equivalent to it
+     *         within the precision of the histogram, 0 if there are no values
+     */
+    long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * count));
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0L);
+        }
+        totalCount.set(0L);
+        sum.set(0L);
+        min.set(Long.MAX_VALUE);
+        max.set(0L);
+    }
+
+    static int bucketIdx(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT
+            + (int) ((value >>> shift) - SUB_BUCKET_HALF_COUNT);
+    }
+
+    static long highestEquivalentValue(int bucketIdx) {
+        if (bucketIdx < SUB_BUCKET_COUNT) {
+            return bucketIdx;
+        }
+        int offset = bucketIdx - SUB_BUCKET_COUNT;
+        int shift = offset / SUB_BUCKET_HALF_COUNT + 1;
+        long lowest = (long) (offset % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT) << shift;
+        return lowest + (1L << shift) - 1L;
+    }
+}
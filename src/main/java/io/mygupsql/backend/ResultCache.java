@@ -0,0 +1,183 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * Client side cache of the results of read queries, keyed by connection key,
+ * normalised SQL text and parameter values. Entries expire after a time to
+ * live, and the least recently used entries are evicted when the estimated
+ * size of the cached tables exceeds the capacity. Writes over a connection
+ * invalidate the connection's entries.
+ * <p>
+ * Tables are copied in and out of the cache, outside of its monitor, consumers
+ * are free to clear the tables they receive. This class is thread-safe.
+ */
+final class ResultCache {
+
+    private static class Entry {
+
+        private final String connKey;
+        private final SQLTable table;
+        private final long bytes;
+        private final long expiresAtNanos;
+
+        private Entry(String connKey, SQLTable table, long expiresAtNanos) {
+            this.connKey = connKey;
+            this.table = table;
+            this.bytes = table.getEstimatedBytes();
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final long capacityBytes;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private long sizeBytes;
+
+    /**
+     * Constructor.
+     * 
+     * @param capacityBytes max estimated size of the cached tables
+     * @param ttlNanos      time to live of each entry
+     */
+    ResultCache(long capacityBytes, long ttlNanos) {
+        this.capacityBytes = capacityBytes;
+        this.ttlNanos = ttlNanos;
+        entries = new LinkedHashMap<>(16, 0.75F, true);
+    }
+
+    /**
+     * @param req the request
+     * @return true if the request's results can be cached, it is a single plain
+     *         read query, see {@link SQLText#isPlainReadQuery(String)}
+     */
+    static boolean isCacheable(SQLExecRequest req) {
+        return SQLText.isPlainReadQuery(req.getSQL()) && SQLText.splitStatements(req.getSQL()).size() == 1;
+    }
+
+    /**
+     * @param req the request
+     * @return a copy of the cached results, keyed with the request's key, or null
+     *         if there are none, or they have expired
+     */
+    SQLTable get(SQLExecRequest req) {
+        SQLTable table = lookup(req);
+        return table != null ? table.copy(req.getKey()) : null;
+    }
+
+    /**
+     * @param req the request
+     * @return the cached results, or null if there are none, or they have
+     *         expired. The table is shared, it must be copied, not modified
+     */
+    synchronized SQLTable lookup(SQLExecRequest req) {
+        String key = cacheKey(req);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAtNanos >= 0L) {
+            remove(key);
+            return null;
+        }
+        return entry.table;
+    }
+
+    /**
+     * Caches a copy of the results of the request, unless they would take more
+     * than the capacity.
+     * 
+     * @param req   the request
+     * @param table its complete results
+     */
+    void put(SQLExecRequest req, SQLTable table) {
+        if (table.getEstimatedBytes() > capacityBytes || table.getSpilledBytes() > 0L) {
+            return;
+        }
+        String key = cacheKey(req);
+        Entry entry = new Entry(req.getConnection().getKey(), table.copy(key), System.nanoTime() + ttlNanos);
+        synchronized (this) {
+            remove(key);
+            entries.put(key, entry);
+            sizeBytes += entry.bytes;
+            Iterator<Entry> it = entries.values().iterator();
+            while (sizeBytes > capacityBytes && it.hasNext()) {
+                sizeBytes -= it.next().bytes; // least recently used first
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the cached results of queries over the connection.
+     * 
+     * @param connKey key of the connection
+     */
+    synchronized void invalidate(String connKey) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.connKey.equals(connKey)) {
+                sizeBytes -= entry.bytes;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all cached results.
+     */
+    synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0L;
+    }
+
+    /**
+     * @return number of cached results
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            sizeBytes -= entry.bytes;
+        }
+    }
+
+    private static String cacheKey(SQLExecRequest req) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(req.getConnection().getKey()).append('\n').append(SQLText.normalize(req.getSQL()));
+        for (Object param : req.getParams()) {
+            sb.append('\n').append(param);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * For the log.
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %d of %d bytes", entries.size(), sizeBytes, capacityBytes);
+    }
+}
@@ -0,0 +1,173 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+
+/**
+ * Predicate over the values of a {@link SQLTable}'s cells, parsed from a filter
+ * expression:
+ * <ul>
+ * <li><b>null</b>, <b>!null</b>: the value is null, is not null.</li>
+ * <li><b>/regex/</b>: the value's text contains a match of the regular
+ * expression.</li>
+ * <li><b>from..to</b>: the value is a number within the range, both ends
+ * included, either end may be omitted.</li>
+ * <li>any other text: the value's text contains the text, ignoring case.
+ * Double quotes around the text are removed, so that "null" is a substring
+ * filter.</li>
+ * </ul>
+ * Rows are filtered with {@link SQLTable#filterRows(RowFilter, int, int[])},
+ * which scans ranges of rows in parallel.
+ */
+public final class RowFilter {
+
+    private static final int RANGE_SIZE = Column.CHUNK_SIZE; // rows scanned by one task
+    private static final Pattern NUMERIC_RANGE = Pattern.compile("^([^.]*(?:\\.\\d+)?)\\s*\\.\\.\\s*(.*)$");
+
+    /**
+     * @param expression the filter expression
+     * @return the filter
+     * @throws IllegalArgumentException the expression is empty, or is not a valid
+     *                                  regular expression
+     */
+    public static RowFilter parse(String expression) {
+        String expr = expression != null ? expression.trim() : "";
+        if (expr.isEmpty()) {
+            throw new IllegalArgumentException("empty filter");
+        }
+        if (expr.equalsIgnoreCase("null")) {
+            return new RowFilter(expression, value -> value == null);
+        }
+        if (expr.equalsIgnoreCase("!null")) {
+            return new RowFilter(expression, value -> value != null);
+        }
+        if (expr.length() > 2 && expr.startsWith("/") && expr.endsWith("/")) {
+            Pattern pattern = Pattern.compile(expr.substring(1, expr.length() - 1)); // throws IllegalArgumentException
+            return new RowFilter(expression, value -> value != null && pattern.matcher(value.toString()).find());
+        }
+        Matcher range = NUMERIC_RANGE.matcher(expr);
+        Double from = range.matches() ? parseBound(range.group(1), Double.NEGATIVE_INFINITY) : null;
+        Double to = range.matches() ? parseBound(range.group(2), Double.POSITIVE_INFINITY) : null;
+        if (from != null && to != null && !(from.isInfinite() && to.isInfinite())) {
+            return new RowFilter(expression, value -> {
+                if (!(value instanceof Number)) {
+                    return false;
+                }
+                double d = ((Number) value).doubleValue();
+                return d >= from && d <= to;
+            });
+        }
+        if (expr.length() > 1 && expr.startsWith("\"") && expr.endsWith("\"")) {
+            expr = expr.substring(1, expr.length() - 1);
+        }
+        String text = expr;
+        return new RowFilter(expression, value -> value != null && containsIgnoreCase(value.toString(), text));
+    }
+
+    /**
+     * @return the bound, ifEmpty if the bound is empty, or null if it is not a
+     *         number, in which case the expression is not a range
+     */
+    private static Double parseBound(String bound, double ifEmpty) {
+        String b = bound.trim();
+        if (b.isEmpty()) {
+            return ifEmpty;
+        }
+        try {
+            return Double.parseDouble(b);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean containsIgnoreCase(String value, String text) {
+        int len = text.length();
+        for (int i = 0, last = value.length() - len; i <= last; i++) {
+            if (value.regionMatches(true, i, text, 0, len)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans ranges of rows in parallel, each range collects its matching rows,
+     * and the ranges are joined in order.
+     *
+     * @param size    number of rows to scan
+     * @param rowIdxs indexes of the rows to scan, in order, or null for rows 0
+     *                to size
+     * @param matches the rows that match
+     * @return the indexes of the rows that match, in scan order
+     */
+    static int[] select(int size, int[] rowIdxs, IntPredicate matches) {
+        int ranges = (size + RANGE_SIZE - 1) / RANGE_SIZE;
+        int[][] selected = IntStream.range(0, ranges).parallel().mapToObj(range -> {
+            int from = range * RANGE_SIZE;
+            int to = Math.min(size, from + RANGE_SIZE);
+            int[] s = new int[to - from];
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                int rowIdx = rowIdxs != null ? rowIdxs[i] : i;
+                if (matches.test(rowIdx)) {
+                    s[n++] = rowIdx;
+                }
+            }
+            return n < s.length ? Arrays.copyOf(s, n) : s;
+        }).toArray(int[][]::new);
+        int total = 0;
+        for (int[] s : selected) {
+            total += s.length;
+        }
+        int[] result = new int[total];
+        int offset = 0;
+        for (int[] s : selected) {
+            System.arraycopy(s, 0, result, offset, s.length);
+            offset += s.length;
+        }
+        return result;
+    }
+
+    private final String expression;
+    private final Predicate<Object> predicate;
+
+    private RowFilter(String expression, Predicate<Object> predicate) {
+        this.expression = expression;
+        this.predicate = predicate;
+    }
+
+    /**
+     * @param value a cell's value, may be null
+     * @return true if the value matches
+     */
+    public boolean test(Object value) {
+        return predicate.test(value);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -0,0 +1,220 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.util.Arrays;
+import java.util.LongSummaryStatistics;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+import java.util.stream.IntStream;
+
+
+/**
+ * Sorts the rows of a {@link SQLTable} by the values of a column, without
+ * moving them. The result is a permutation of the row indexes, in order. Sort
+ * keys are gathered, and the permutation merge sorted, in parallel in the
+ * common fork-join pool. The sort is stable, rows of equal value keep their
+ * relative order. Nulls order after any other value, as in the database, they
+ * come last in ascending order and first in descending order.
+ * <p>
+ * When the sort keys of a column span less than 2^31 values, as those of ints,
+ * booleans, dictionary encoded strings and most timestamps do, the key and row
+ * index of each row are packed in a long, and the longs sorted with
+ * {@link Arrays#parallelSort(long[])}, which is much faster than comparing rows
+ * through their keys.
+ */
+final class RowOrder {
+
+    private static final int PARALLEL_THRESHOLD = 1 << 13; // ranges of fewer rows are sorted by one thread
+    private static final int INSERTION_THRESHOLD = 32;
+
+    /**
+     * Compares rows, by index.
+     */
+    @FunctionalInterface
+    interface RowComparator {
+        int compare(int rowIdx1, int rowIdx2);
+    }
+
+    /**
+     * @param size        number of rows
+     * @param isNull      rows whose value is null
+     * @param keys        sort keys, longs that order like the values
+     * @param isAscending sort order
+     * @return the indexes of the rows, in order
+     */
+    static int[] sort(int size, IntPredicate isNull, IntToLongFunction keys, boolean isAscending) {
+        long[] k = new long[size];
+        boolean[] nulls = new boolean[size];
+        IntStream.range(0, size).parallel().forEach(i -> {
+            if (isNull.test(i)) {
+                nulls[i] = true;
+            }
+            else {
+                k[i] = keys.applyAsLong(i);
+            }
+        });
+        LongSummaryStatistics stats = IntStream.range(0, size).parallel().filter(i -> !nulls[i]).mapToLong(i -> k[i])
+            .summaryStatistics();
+        long min = stats.getCount() > 0 ? stats.getMin() : 0L;
+        long max = stats.getCount() > 0 ? stats.getMax() : 0L;
+        long range = max - min; // negative on overflow
+        if (range >= 0L && range < Integer.MAX_VALUE) {
+            return sortPacked(k, nulls, min, max, isAscending);
+        }
+        return sort(size, (a, b) -> {
+            if (nulls[a] || nulls[b]) {
+                return Boolean.compare(nulls[a], nulls[b]);
+            }
+            return Long.compare(k[a], k[b]);
+        }, isAscending);
+    }
+
+    /**
+     * Each key is replaced by the row's rank, in sort order, in the high 32 bits,
+     * and the row's index in the low 32 bits, rows of equal rank thus keep their
+     * relative order.
+     */
+    private static int[] sortPacked(long[] k, boolean[] nulls, long min, long max, boolean isAscending) {
+        long nullRank = isAscending ? max - min + 1 : 0L;
+        Arrays.parallelSetAll(k, i -> {
+            long rank = nulls[i] ? nullRank : isAscending ? k[i] - min : max - k[i] + 1;
+            return rank << 32 | i;
+        });
+        Arrays.parallelSort(k);
+        int[] rowIdxs = new int[k.length];
+        Arrays.parallelSetAll(rowIdxs, i -> (int) k[i]);
+        return rowIdxs;
+    }
+
+    /**
+     * Values that are not of the same class are compared as numbers if both are
+     * numbers, otherwise as strings.
+     *
+     * @param size        number of rows
+     * @param values      the values of the rows
+     * @param isAscending sort order
+     * @return the indexes of the rows, in order
+     */
+    static int[] sort(int size, IntFunction<Object> values, boolean isAscending) {
+        Object[] v = new Object[size];
+        Arrays.parallelSetAll(v, values);
+        return sort(size, (a, b) -> compareValues(v[a], v[b]), isAscending);
+    }
+
+    private static int[] sort(int size, RowComparator cmp, boolean isAscending) {
+        int[] rowIdxs = new int[size];
+        Arrays.parallelSetAll(rowIdxs, i -> i);
+        RowComparator order = isAscending ? cmp : (a, b) -> cmp.compare(b, a);
+        ForkJoinPool.commonPool().invoke(new MergeSort(rowIdxs, new int[size], 0, size, order));
+        return rowIdxs;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return Boolean.compare(a == null, b == null);
+        }
+        if (a.getClass() == b.getClass() && a instanceof Comparable) {
+            return ((Comparable) a).compareTo(b);
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    /**
+     * Sorts a range, by sorting its halves in parallel and then merging them.
+     */
+    private static final class MergeSort extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] rowIdxs;
+        private final int[] tmp;
+        private final int lo;
+        private final int hi;
+        private final RowComparator cmp;
+
+        private MergeSort(int[] rowIdxs, int[] tmp, int lo, int hi, RowComparator cmp) {
+            this.rowIdxs = rowIdxs;
+            this.tmp = tmp;
+            this.lo = lo;
+            this.hi = hi;
+            this.cmp = cmp;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= PARALLEL_THRESHOLD) {
+                sort(rowIdxs, tmp, lo, hi, cmp);
+            }
+            else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new MergeSort(rowIdxs, tmp, lo, mid, cmp), new MergeSort(rowIdxs, tmp, mid, hi, cmp));
+                merge(rowIdxs, tmp, lo, mid, hi, cmp);
+            }
+        }
+    }
+
+    private static void sort(int[] a, int[] tmp, int lo, int hi, RowComparator cmp) {
+        if (hi - lo <= INSERTION_THRESHOLD) {
+            for (int i = lo + 1; i < hi; i++) {
+                int rowIdx = a[i];
+                int j = i - 1;
+                while (j >= lo && cmp.compare(a[j], rowIdx) > 0) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = rowIdx;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        sort(a, tmp, lo, mid, cmp);
+        sort(a, tmp, mid, hi, cmp);
+        merge(a, tmp, lo, mid, hi, cmp);
+    }
+
+    /**
+     * Merges sorted ranges [lo, mid) and [mid, hi), only the first is copied
+     * aside, the merged rows never overtake the second.
+     */
+    private static void merge(int[] a, int[] tmp, int lo, int mid, int hi, RowComparator cmp) {
+        if (cmp.compare(a[mid - 1], a[mid]) <= 0) {
+            return; // already in order
+        }
+        System.arraycopy(a, lo, tmp, lo, mid - lo);
+        int i = lo;
+        int j = mid;
+        int k = lo;
+        while (i < mid && j < hi) {
+            a[k++] = cmp.compare(a[j], tmp[i]) < 0 ? a[j++] : tmp[i++];
+        }
+        while (i < mid) {
+            a[k++] = tmp[i++];
+        }
+    }
+
+    private RowOrder() {
+        throw new IllegalStateException("not meant to be instantiated");
+    }
+}
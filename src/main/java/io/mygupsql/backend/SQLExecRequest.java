@@ -16,6 +16,9 @@
 
 package io.mygupsql.backend;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import io.mygupsql.WithKey;
@@ -30,13 +33,82 @@ import io.mygupsql.WithKey;
  * {@link SQLTable}, whether it be empty or filled with data. The potentially
  * many responses that result from a request contain the full results, whereas a
  * single response in that set will contain a partial view on the full results.
+ * <p>
+ * The SQL may contain parameter placeholders, either JDBC style (?) or
+ * numbered ($1, $2, ...), in which case the request carries the parameter
+ * values. Parameterised requests run as prepared statements, which the
+ * connection caches, unless the request is not meant to be repeated.
+ * <p>
+ * Requests may carry {@link Limits} on the results they fetch. When a limit is
+ * reached, fetching stops and the execution finishes as TRUNCATED.
  */
 public class SQLExecRequest implements WithKey {
 
+    /**
+     * Limits on the results fetched for a request. A value of zero or less means
+     * no limit.
+     */
+    public static class Limits {
+
+        /**
+         * No limits, beyond those of the {@link SQLExecutor}.
+         */
+        public static final Limits NONE = new Limits(0L, 0L, 0L);
+
+        private final long maxRows;
+        private final long maxBytes;
+        private final long maxFetchMs;
+
+        /**
+         * Constructor.
+         * 
+         * @param maxRows    max number of rows
+         * @param maxBytes   max estimated size of the results table in the heap,
+         *                   in bytes
+         * @param maxFetchMs max time spent fetching, in milliseconds
+         */
+        public Limits(long maxRows, long maxBytes, long maxFetchMs) {
+            this.maxRows = maxRows;
+            this.maxBytes = maxBytes;
+            this.maxFetchMs = maxFetchMs;
+        }
+
+        /**
+         * @return max number of rows, zero or less for no limit
+         */
+        public long getMaxRows() {
+            return maxRows;
+        }
+
+        /**
+         * @return max estimated size of the results table, in bytes, zero or less
+         *         for no limit
+         */
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        /**
+         * @return max time spent fetching, in milliseconds, zero or less for no
+         *         limit
+         */
+        public long getMaxFetchMs() {
+            return maxFetchMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("maxRows: %d, maxBytes: %d, maxFetchMs: %d", maxRows, maxBytes, maxFetchMs);
+        }
+    }
+
     private final String sourceId;
     private final String key;
     private final Conn conn;
     private final String sql;
+    private final Limits limits;
+    private final List<Object> params;
+    private final boolean isStatementCached;
 
     /**
      * Constructor used by {@link SQLExecResponse} to keep the relation between
@@ -46,18 +118,73 @@ public class SQLExecRequest implements WithKey {
      * @param request original request
      */
     public SQLExecRequest(String sourceId, Conn conn, String command) {
-        this(sourceId, UUID.randomUUID().toString(), conn, command);
+        this(sourceId, UUID.randomUUID().toString(), conn, command, Limits.NONE, null, true);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param sourceId identity of the request's source
+     * @param conn     database connection
+     * @param command  the SQL to execute
+     * @param limits   limits on the results fetched
+     */
+    public SQLExecRequest(String sourceId, Conn conn, String command, Limits limits) {
+        this(sourceId, UUID.randomUUID().toString(), conn, command, limits, null, true);
+    }
+
+    /**
+     * Constructor for parameterised SQL.
+     * 
+     * @param sourceId identity of the request's source
+     * @param conn     database connection
+     * @param command  the SQL to execute, with ? or $n parameter placeholders
+     * @param limits   limits on the results fetched
+     * @param params   parameter values, in order ($n refers to the n-th value)
+     */
+    public SQLExecRequest(String sourceId, Conn conn, String command, Limits limits, List<?> params) {
+        this(sourceId, UUID.randomUUID().toString(), conn, command, limits, params, true);
+    }
+
+    /**
+     * Constructor for parameterised SQL that is not meant to be repeated, and
+     * thus not worth a place in the connection's statement cache.
+     * 
+     * @param sourceId          identity of the request's source
+     * @param conn              database connection
+     * @param command           the SQL to execute, with ? or $n parameter
+     *                          placeholders
+     * @param limits            limits on the results fetched
+     * @param params            parameter values, in order ($n refers to the n-th
+     *                          value)
+     * @param isStatementCached if false, the prepared statement is closed after
+     *                          execution
+     */
+    SQLExecRequest(String sourceId, Conn conn, String command, Limits limits, List<?> params,
+        boolean isStatementCached) {
+        this(sourceId, UUID.randomUUID().toString(), conn, command, limits, params, isStatementCached);
     }
 
     SQLExecRequest(SQLExecRequest request) {
-        this(request.sourceId, request.key, request.conn, request.sql);
+        this.sourceId = request.sourceId;
+        this.key = request.key;
+        this.conn = request.conn;
+        this.sql = request.sql;
+        this.limits = request.limits;
+        this.params = request.params;
+        this.isStatementCached = request.isStatementCached;
     }
 
-    private SQLExecRequest(String sourceId, String key, Conn conn, String command) {
+    private SQLExecRequest(String sourceId, String key, Conn conn, String command, Limits limits, List<?> params,
+        boolean isStatementCached) {
         this.sourceId = sourceId;
         this.key = key;
         this.conn = conn;
         this.sql = command;
+        this.limits = limits != null ? limits : Limits.NONE;
+        this.params = params != null && !params.isEmpty()
+            ? Collections.unmodifiableList(new ArrayList<Object>(params)) : Collections.emptyList();
+        this.isStatementCached = isStatementCached;
     }
 
     /**
@@ -74,6 +201,36 @@ public class SQLExecRequest implements WithKey {
         return sql;
     }
 
+    /**
+     * @return the parameter values, read only, empty when the SQL is not
+     *         parameterised
+     */
+    public List<Object> getParams() {
+        return params;
+    }
+
+    /**
+     * @return true if the SQL is parameterised
+     */
+    public boolean hasParams() {
+        return !params.isEmpty();
+    }
+
+    /**
+     * @return true if, being parameterised, the request runs as a prepared
+     *         statement cached by the connection
+     */
+    boolean isStatementCached() {
+        return isStatementCached;
+    }
+
+    /**
+     * @return limits on the results fetched, never null
+     */
+    public Limits getLimits() {
+        return limits;
+    }
+
     /**
      * @return database connection
      */
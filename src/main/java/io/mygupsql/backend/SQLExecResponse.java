@@ -23,7 +23,12 @@ package io.mygupsql.backend;
  * Each request carries a SQL query. When it is executed, the progress is
  * progressively notified to the listener, by means of instances of this class.
  * Responses carry an instance of {@link SQLTable}, whether it be empty or
- * filled with data.
+ * filled with data. The table keeps growing while results are being fetched,
+ * each response also carries the range of rows appended to the table since the
+ * previous response, so that consumers can process only new rows.
+ * <p>
+ * A response may be served from the executor's result cache, in which case no
+ * round trip to the database took place and {@link #isCached()} is true.
  */
 public class SQLExecResponse extends SQLExecRequest {
 
@@ -32,15 +37,35 @@ public class SQLExecResponse extends SQLExecRequest {
     private final long executionMs;
     private final long fetchMs;
     private final Throwable error;
+    private final int fromRowIdx;
+    private final int toRowIdx;
+    private final boolean isCached;
 
     SQLExecResponse(SQLExecRequest req, Conn conn, String query, long totalMs, long execMs, long fetchMs,
         SQLTable table) {
+        this(req, conn, query, totalMs, execMs, fetchMs, table, 0, 0);
+    }
+
+    SQLExecResponse(SQLExecRequest req, Conn conn, String query, long totalMs, long execMs, long fetchMs,
+        SQLTable table, int fromRowIdx, int toRowIdx) {
+        this(req, totalMs, execMs, fetchMs, table, fromRowIdx, toRowIdx, false);
+    }
+
+    SQLExecResponse(SQLExecRequest req, long totalMs, SQLTable cachedTable, int toRowIdx) {
+        this(req, totalMs, 0L, 0L, cachedTable, 0, toRowIdx, true);
+    }
+
+    private SQLExecResponse(SQLExecRequest req, long totalMs, long execMs, long fetchMs, SQLTable table,
+        int fromRowIdx, int toRowIdx, boolean isCached) {
         super(req);
         this.table = table;
         this.error = null;
         this.totalMs = totalMs;
         this.executionMs = execMs;
         this.fetchMs = fetchMs;
+        this.fromRowIdx = fromRowIdx;
+        this.toRowIdx = toRowIdx;
+        this.isCached = isCached;
     }
 
     SQLExecResponse(SQLExecRequest request, long totalMs, Throwable error, SQLTable table) {
@@ -50,6 +75,9 @@ public class SQLExecResponse extends SQLExecRequest {
         this.table = table;
         this.executionMs = -1L;
         this.fetchMs = -1L;
+        this.fromRowIdx = 0;
+        this.toRowIdx = 0;
+        this.isCached = false;
     }
 
     /**
@@ -59,6 +87,36 @@ public class SQLExecResponse extends SQLExecRequest {
         return table;
     }
 
+    /**
+     * @return index of the first row appended to the table since the previous
+     *         response
+     */
+    public int getFromRowIdx() {
+        return fromRowIdx;
+    }
+
+    /**
+     * @return index of the last row, excluded, appended to the table since the
+     *         previous response
+     */
+    public int getToRowIdx() {
+        return toRowIdx;
+    }
+
+    /**
+     * @return true if rows were appended to the table since the previous response
+     */
+    public boolean hasNewRows() {
+        return toRowIdx > fromRowIdx;
+    }
+
+    /**
+     * @return true if the results were served from the executor's result cache
+     */
+    public boolean isCached() {
+        return isCached;
+    }
+
     /**
      * @return the error, null if none
      */
@@ -17,16 +17,27 @@
 package io.mygupsql.backend;
 
 import java.io.Closeable;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.mygupsql.EventConsumer;
 import io.mygupsql.EventProducer;
@@ -35,12 +46,73 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * Single threaded SQL statements executor. The daemon thread serialises
- * execution of SQL statements, identifying each by source id. For a given
- * source, only one SQL execution request is allowed to run at the time.
- * Submitting a new request will result in terminating an already running
- * request, or if the request has not been executed yet it will be preempted
- * from running and the new request will take its place.
+ * Multi-lane SQL statements executor. Each database connection gets its own
+ * lane, which serialises execution of the SQL statements submitted over that
+ * connection, while lanes run independently of each other on a bounded pool
+ * of daemon worker threads. A slow query on one connection does not block
+ * queries on other connections.
+ * <p>
+ * Requests are identified by source id. For a given source, only one SQL
+ * execution request is allowed to run at the time. Submitting a new request
+ * will result in terminating an already running request, or if the request
+ * has not been executed yet it will be preempted from running and the new
+ * request will take its place.
+ * <p>
+ * The number of workers and the depth of each lane's queue can be set with
+ * system properties "executor.max.workers" and "executor.lane.queue.depth".
+ * When system property "executor.virtual.threads" is true, and the JVM supports
+ * them (Java 21+), each request runs on its own virtual thread instead, and the
+ * number of workers does not apply. Lanes still serialise requests per
+ * connection.
+ * <p>
+ * Read queries are streamed (system property "executor.streaming", true by
+ * default): they run within a transaction so that the driver fetches rows
+ * through a server side cursor, "executor.fetch.size" rows at the time, instead
+ * of buffering the whole result.
+ * <p>
+ * Fetching stops, and the execution finishes as TRUNCATED, when the results
+ * reach the {@link SQLExecRequest.Limits} of the request. Where the request
+ * does not set a limit, the executor's defaults apply: system properties
+ * "executor.max.rows" and "executor.max.fetch.ms", unlimited by default, and
+ * "executor.fetch.max.mb", a quarter of the max heap by default, which bounds
+ * the rows held in the heap. Rows spilled to disk are bounded separately, by
+ * "executor.fetch.max.disk.mb", 8 GB by default.
+ * <p>
+ * While fetching, RESULTS_AVAILABLE events are emitted as soon as 20_000 rows
+ * have been appended to the results table, or "executor.batch.ms" (50 ms by
+ * default) have elapsed since the previous event, whichever comes first, and,
+ * when streaming, at the end of each fetch, before the driver blocks on the
+ * next. Each event carries the range of rows appended since the previous
+ * event.
+ * <p>
+ * Requests whose SQL holds more than one statement, separated by semicolons,
+ * run as a script. Consecutive inserts, updates and deletes are sent to the
+ * database in JDBC batches of up to "executor.script.batch.size" statements
+ * (1000 by default), every other statement runs on its own. The results table
+ * reports the outcome of each statement. The script stops at the first failure,
+ * the statements that follow are reported as skipped, and it ends with a
+ * FAILURE event carrying the error and the outcomes.
+ * <p>
+ * Cancelling a running request reaches the database: the in-flight statement
+ * is cancelled from a separate thread and, for CrateDB, the query's job is
+ * also killed. Over CrateDB connections, the SQL sent carries a comment with
+ * the key of a request, which tells its job apart from jobs of the same SQL.
+ * A cached statement keeps the comment of the request it was prepared for,
+ * its jobs are told apart by it, as the connection runs one at the time.
+ * <p>
+ * Queries run as prepared statements, cached by the connection, so that
+ * running the same SQL again, such as refreshing a dashboard query, reuses
+ * the statement.
+ * <p>
+ * Results of read queries can be cached client side, opt-in, by setting system
+ * property "executor.result.cache.mb" to the capacity of the cache. Entries
+ * live for "executor.result.cache.ttl.ms" (60 seconds by default), and any other
+ * statement over a connection drops the connection's entries. Cache hits are
+ * copied by a worker, outside the connection's lane, and answered with STARTED
+ * and COMPLETED events marked as cached.
+ * <p>
+ * The responses that end each execution feed the executor's {@link SQLMetrics},
+ * which is exposed over JMX while the executor is running.
  */
 public class SQLExecutor implements EventProducer<SQLExecutor.EventType>, Closeable {
 
@@ -60,6 +132,11 @@ public class SQLExecutor implements EventProducer<SQLExecutor.EventType>, Closea
          * Query execution went well, all results have been collected.
          */
         COMPLETED,
+        /**
+         * Query execution went well, results have been collected up to the limits
+         * of the request, or of the executor.
+         */
+        TRUNCATED,
         /**
          * Query execution was cancelled.
          */
@@ -73,19 +150,136 @@ public class SQLExecutor implements EventProducer<SQLExecutor.EventType>, Closea
     private static final Logger LOGGER = LoggerFactory.getLogger(SQLExecutor.class);
     static final int QUERY_EXECUTION_TIMEOUT_SECS = 60;
     static final int MAX_BATCH_SIZE = 20_000;
-    private static final int START_BATCH_SIZE = 100;
+    private static final String MAX_WORKERS_KEY = "executor.max.workers";
+    private static final String LANE_QUEUE_DEPTH_KEY = "executor.lane.queue.depth";
+    private static final String VIRTUAL_THREADS_KEY = "executor.virtual.threads";
+    private static final int DEFAULT_MAX_WORKERS = 4;
+    private static final int DEFAULT_LANE_QUEUE_DEPTH = 8;
+    private static final String STREAMING_KEY = "executor.streaming";
+    private static final String FETCH_SIZE_KEY = "executor.fetch.size";
+    private static final String FETCH_MAX_MB_KEY = "executor.fetch.max.mb";
+    private static final String FETCH_MAX_DISK_MB_KEY = "executor.fetch.max.disk.mb";
+    private static final long DEFAULT_FETCH_MAX_DISK_MB = 8L * 1024;
+    private static final int DEFAULT_FETCH_SIZE = 1_000;
+    private static final String MAX_ROWS_KEY = "executor.max.rows";
+    private static final String MAX_FETCH_MS_KEY = "executor.max.fetch.ms";
+    private static final String BATCH_MS_KEY = "executor.batch.ms";
+    private static final long DEFAULT_BATCH_MS = 50L;
+    private static final long FETCH_BUFFER_MAX_BYTES = 32L * 1024 * 1024; // rows held by the driver per fetch
+    private static final String RESULT_CACHE_MB_KEY = "executor.result.cache.mb";
+    private static final String RESULT_CACHE_TTL_MS_KEY = "executor.result.cache.ttl.ms";
+    private static final long DEFAULT_RESULT_CACHE_TTL_MS = 60_000L;
+    private static final String SCRIPT_BATCH_SIZE_KEY = "executor.script.batch.size";
+    private static final int DEFAULT_SCRIPT_BATCH_SIZE = 1_000;
+    private static final String[] SCRIPT_COL_NAMES = {"#", "Statement", "Outcome", "Rows"};
+    private static final int[] SCRIPT_COL_TYPES = {Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.BIGINT};
+    private static final int SCRIPT_STATEMENT_MAX_LEN = 120;
 
-    private final ConcurrentMap<String, Future<?>> runningQueries;
+    private final int maxWorkers;
+    private final int laneQueueDepth;
+    private final boolean useVirtualThreads;
+    private final boolean isStreaming;
+    private final int fetchSize;
+    private final long fetchMaxBytes;
+    private final long fetchMaxDiskBytes;
+    private final long maxRows;
+    private final long maxFetchMs;
+    private final long batchNanos;
+    private final int scriptBatchSize;
+    private final ConcurrentMap<String, Execution> runningQueries;
     private final ConcurrentMap<String, String> cancelRequests;
+    private final ConcurrentMap<String, Statement> runningStatements;
+    private final ConcurrentMap<String, String> runningJobTags; // request key to the tag of its SQL, CrateDB only
+    private final ConcurrentMap<String, Lane> lanes;
+    private final SQLMetrics metrics;
+    private final ResultCache resultCache; // null when disabled
     private ExecutorService executor;
+    private ExecutorService canceller;
 
+    /**
+     * Constructor. The number of workers and the depth of each lane's queue are
+     * taken from system properties "executor.max.workers" and
+     * "executor.lane.queue.depth", defaulting to 4 and 8 respectively. Virtual
+     * threads are used when system property "executor.virtual.threads" is true.
+     */
     public SQLExecutor() {
+        this(Integer.getInteger(MAX_WORKERS_KEY, DEFAULT_MAX_WORKERS),
+            Integer.getInteger(LANE_QUEUE_DEPTH_KEY, DEFAULT_LANE_QUEUE_DEPTH),
+            Boolean.getBoolean(VIRTUAL_THREADS_KEY));
+    }
+
+    /**
+     * Constructor, platform threads.
+     * 
+     * @param maxWorkers     max number of worker threads shared by all lanes,
+     *                       which is the max number of queries that can run
+     *                       concurrently
+     * @param laneQueueDepth max number of requests waiting to be executed in
+     *                       each lane, further requests are rejected
+     */
+    public SQLExecutor(int maxWorkers, int laneQueueDepth) {
+        this(maxWorkers, laneQueueDepth, false);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param maxWorkers        max number of worker threads shared by all lanes,
+     *                          which is the max number of queries that can run
+     *                          concurrently
+     * @param laneQueueDepth    max number of requests waiting to be executed in
+     *                          each lane, further requests are rejected
+     * @param useVirtualThreads if true, and the JVM supports them, each request
+     *                          runs on its own virtual thread and maxWorkers is
+     *                          ignored
+     */
+    public SQLExecutor(int maxWorkers, int laneQueueDepth, boolean useVirtualThreads) {
+        if (maxWorkers < 1) {
+            throw new IllegalArgumentException("maxWorkers must be greater than 0");
+        }
+        if (laneQueueDepth < 1) {
+            throw new IllegalArgumentException("laneQueueDepth must be greater than 0");
+        }
+        this.maxWorkers = maxWorkers;
+        this.laneQueueDepth = laneQueueDepth;
+        if (useVirtualThreads && !VirtualThreads.isSupported()) {
+            LOGGER.warn("Virtual threads are not supported by Java {}, using platform threads",
+                System.getProperty("java.specification.version"));
+            useVirtualThreads = false;
+        }
+        this.useVirtualThreads = useVirtualThreads;
+        isStreaming = Boolean.parseBoolean(System.getProperty(STREAMING_KEY, "true"));
+        fetchSize = Math.max(1, Integer.getInteger(FETCH_SIZE_KEY, DEFAULT_FETCH_SIZE));
+        long defaultFetchMaxMb = Runtime.getRuntime().maxMemory() / (4L * 1024 * 1024);
+        fetchMaxBytes = Math.max(1L, Long.getLong(FETCH_MAX_MB_KEY, defaultFetchMaxMb)) * 1024 * 1024;
+        fetchMaxDiskBytes = Math.max(1L, Long.getLong(FETCH_MAX_DISK_MB_KEY, DEFAULT_FETCH_MAX_DISK_MB)) * 1024 * 1024;
+        maxRows = Long.getLong(MAX_ROWS_KEY, 0L);
+        maxFetchMs = Long.getLong(MAX_FETCH_MS_KEY, 0L);
+        batchNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, Long.getLong(BATCH_MS_KEY, DEFAULT_BATCH_MS)));
+        scriptBatchSize = Math.max(1, Integer.getInteger(SCRIPT_BATCH_SIZE_KEY, DEFAULT_SCRIPT_BATCH_SIZE));
         runningQueries = new ConcurrentHashMap<>();
         cancelRequests = new ConcurrentHashMap<>();
+        runningStatements = new ConcurrentHashMap<>();
+        runningJobTags = new ConcurrentHashMap<>();
+        lanes = new ConcurrentHashMap<>();
+        metrics = new SQLMetrics();
+        long resultCacheMb = Long.getLong(RESULT_CACHE_MB_KEY, 0L);
+        resultCache = resultCacheMb > 0L ? new ResultCache(resultCacheMb * 1024 * 1024,
+            TimeUnit.MILLISECONDS.toNanos(Math.max(1L, Long.getLong(RESULT_CACHE_TTL_MS_KEY, DEFAULT_RESULT_CACHE_TTL_MS))))
+            : null;
+    }
+
+    /**
+     * @return latency histograms, throughput and failure counters of the
+     *         executions
+     */
+    public SQLMetrics getMetrics() {
+        return metrics;
     }
 
     /**
-     * Starts the single daemon thread pool executor.
+     * Starts the daemon thread pool executor, or the virtual thread per task
+     * executor.
      */
     public synchronized void start() {
         if (executor != null) {
@@ -93,19 +287,34 @@ public class SQLExecutor implements EventProducer<SQLExecutor.EventType>, Closea
         }
         runningQueries.clear();
         cancelRequests.clear();
-        ThreadFactory threads = Executors.defaultThreadFactory();
+        runningStatements.clear();
+        runningJobTags.clear();
+        lanes.clear();
+        metrics.register();
         String name = getClass().getSimpleName();
-        executor = Executors.newFixedThreadPool(1, runnable -> {
+        canceller = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name + "-canceller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (useVirtualThreads) {
+            executor = VirtualThreads.newThreadPerTaskExecutor(name);
+            LOGGER.info("{} is running on virtual threads, lane queue depth {}", name, laneQueueDepth);
+            return;
+        }
+        ThreadFactory threads = Executors.defaultThreadFactory();
+        AtomicInteger threadId = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(maxWorkers, runnable -> {
             Thread thread = threads.newThread(runnable);
             thread.setDaemon(true);
-            thread.setName(name);
+            thread.setName(name + "-" + threadId.getAndIncrement());
             return thread;
         });
-        LOGGER.info("{} is running", name);
+        LOGGER.info("{} is running with {} workers, lane queue depth {}", name, maxWorkers, laneQueueDepth);
     }
 
     /**
-     * Terminates the single daemon thread pool executor, cancelling all submitted
+     * Terminates the daemon thread pool executor, cancelling all submitted
      * queries.
      */
     @Override
@@ -119,6 +328,10 @@ public class SQLExecutor implements EventProducer<SQLExecutor.EventType>, Closea
                 query.cancel(true);
             }
         }
+        for (Statement stmt : runningStatements.values()) {
+            canceller.execute(() -> cancelStatement(stmt));
+        }
+        canceller.shutdown();
         executor.shutdownNow();
         try {
             executor.awaitTermination(200L, TimeUnit.MILLISECONDS);
@@ -128,8 +341,16 @@ public class SQLExecutor implements EventProducer<SQLExecutor.EventType>, Closea
         }
         finally {
             executor = null;
+            canceller = null;
             runningQueries.clear();
             cancelRequests.clear();
+            runningStatements.clear();
+            runningJobTags.clear();
+            lanes.clear();
+            metrics.unregister();
+            if (resultCache != null) {
+                resultCache.clear();
+            }
             LOGGER.info("has finished");
         }
     }
@@ -138,6 +359,9 @@ public class SQLExecutor implements EventProducer<SQLExecutor.EventType>, Closea
      * Submits a SQL execution request. Executions are identified by the request's
      * source id. If a request by the same source has already been submitted, it is
      * preempted from running, or cancelled if running.
+     * <p>
+     * The request is queued in the lane of its connection. If the lane's queue is
+     * full, the request is rejected and the consumer receives a FAILURE event.
      * 
      * @param req           contains the SQL to be executed
      * @param eventConsumer receiver of responses to the request
@@ -150,47 +374,101 @@ public class SQLExecutor implements EventProducer<SQLExecutor.EventType>, Closea
             throw new IllegalStateException("eventListener cannot be null");
         }
         cancelSubmittedRequest(req);
+        EventConsumer<SQLExecutor, SQLExecResponse> consumer = (source, eventType, res) -> {
+            metrics.onSourceEvent(source, eventType, res);
+            eventConsumer.onSourceEvent(source, eventType, res);
+        };
         String sourceId = req.getSourceId();
-        runningQueries.put(sourceId, executor.submit(() -> executeRequest(req, eventConsumer)));
-        LOGGER.info("Execution submitted [{}] from [{}]", req.getKey(), sourceId);
+        SQLTable cached = resultCache != null && ResultCache.isCacheable(req) ? resultCache.lookup(req) : null;
+        if (cached != null) {
+            // served by a worker, the lane is not involved as there is no round trip
+            Execution task = new Execution(req, () -> executeCached(req, cached, consumer));
+            runningQueries.put(sourceId, task);
+            executor.execute(task);
+            LOGGER.info("Execution submitted [{}] from [{}], cached", req.getKey(), sourceId);
+            return;
+        }
+        String laneKey = req.getConnection().getKey();
+        Lane lane = lanes.computeIfAbsent(laneKey, k -> new Lane(k, executor));
+        Execution task = new Execution(req, () -> executeRequest(req, consumer));
+        if (!lane.offer(task, laneQueueDepth)) {
+            LOGGER.error("Rejected [{}] from [{}], lane [{}] is full", req.getKey(), sourceId, laneKey);
+            RuntimeException fail = new RejectedExecutionException(String.format(
+                "Too many queries waiting on connection [%s], max %d", laneKey, laneQueueDepth));
+            consumer.onSourceEvent(this, EventType.FAILURE, new SQLExecResponse(req, 0L, fail, new SQLTable(req.getKey())));
+            return;
+        }
+        runningQueries.put(sourceId, task);
+        LOGGER.info("Execution submitted [{}] from [{}] to lane [{}]", req.getKey(), sourceId, laneKey);
     }
 
     /**
-     * @param req contains the source id and request key
+     * Cancels the request submitted by the source, if any. If it has not started
+     * yet, it is preempted from running. Otherwise its statement is cancelled
+     * in the database, asynchronously.
+     * 
+     * @param req contains the source id
      */
     public synchronized void cancelSubmittedRequest(SQLExecRequest req) {
         if (executor == null) {
             throw new IllegalStateException("not started");
         }
         String sourceId = req.getSourceId();
-        Future<?> exec = runningQueries.remove(sourceId);
+        Execution exec = runningQueries.remove(sourceId);
         if (exec != null && !exec.isDone() && !exec.isCancelled()) {
-            cancelRequests.put(sourceId, req.getKey());
-            LOGGER.info("Cancelling [{}] from [{}]", req.getKey(), sourceId);
+            SQLExecRequest running = exec.req;
+            cancelRequests.put(sourceId, running.getKey());
+            LOGGER.info("Cancelling [{}] from [{}]", running.getKey(), sourceId);
             exec.cancel(true);
+            Statement stmt = runningStatements.get(running.getKey());
+            if (stmt != null) {
+                canceller.execute(() -> {
+                    if (runningStatements.get(running.getKey()) != stmt) {
+                        return; // done, a cached statement may be running another request by now
+                    }
+                    String tag = runningJobTags.get(running.getKey());
+                    cancelStatement(stmt);
+                    if (tag != null) {
+                        killCrateDBJob(running.getConnection(), tag);
+                    }
+                });
+            }
         }
     }
 
+    private void executeCached(SQLExecRequest req, SQLTable cached,
+        EventConsumer<SQLExecutor, SQLExecResponse> eventListener) {
+        final long start = System.nanoTime();
+        SQLTable table = cached.copy(req.getKey());
+        eventListener.onSourceEvent(SQLExecutor.this, EventType.STARTED,
+            new SQLExecResponse(req, ms(System.nanoTime() - start), table, 0));
+        removeRunning(req);
+        EventType eventType = isCancelRequested(req, true) ? EventType.CANCELLED : EventType.COMPLETED;
+        long totalMs = ms(System.nanoTime() - start);
+        LOGGER.info("{} [{}] from [{}], cached, {} rows, {} ms", eventType.name(), req.getKey(), req.getSourceId(),
+            table.size(), totalMs);
+        eventListener.onSourceEvent(SQLExecutor.this, eventType, new SQLExecResponse(req, totalMs, table, table.size()));
+    }
+
     private void executeRequest(SQLExecRequest req, EventConsumer<SQLExecutor, SQLExecResponse> eventListener) {
         final long start = System.nanoTime();
         String sourceId = req.getSourceId();
         Conn conn = req.getConnection();
         String query = req.getSQL();
-        SQLTable table = new SQLTable(req.getKey());
+        SQLTable table = newTable(req);
         if (!conn.isValid()) {
-            runningQueries.remove(sourceId);
-            cancelRequests.remove(sourceId);
+            removeRunning(req);
+            isCancelRequested(req, true);
             LOGGER.error("Failed [{}] from [{}], lost connection: {}", req.getKey(), sourceId, conn);
             RuntimeException fail = new RuntimeException(String.format("Connection [%s] is not valid", conn));
             eventListener.onSourceEvent(SQLExecutor.this, EventType.FAILURE,
                 new SQLExecResponse(req, ms(System.nanoTime() - start), fail, table));
             return;
         }
-        String reqKey = cancelRequests.remove(sourceId);
-        if (reqKey != null && reqKey.equals(req.getKey())) {
-            runningQueries.remove(sourceId);
+        if (isCancelRequested(req, true)) {
+            removeRunning(req);
             long totalMs = ms(System.nanoTime() - start);
-            LOGGER.info("Cancelled [{}] from [{}], {} ms", reqKey, sourceId, totalMs);
+            LOGGER.info("Cancelled [{}] from [{}], {} ms", req.getKey(), sourceId, totalMs);
             eventListener.onSourceEvent(SQLExecutor.this, EventType.CANCELLED,
                 new SQLExecResponse(req, conn, query, totalMs, 0L, 0L, table));
         }
@@ -198,57 +476,573 @@ public class SQLExecutor implements EventProducer<SQLExecutor.EventType>, Closea
             LOGGER.info("Executing [{}] from [{}] over [{}]: {}", req.getKey(), sourceId, conn.getKey(), query);
             eventListener.onSourceEvent(SQLExecutor.this, EventType.STARTED,
                 new SQLExecResponse(req, conn, query, ms(System.nanoTime() - start), 0L, 0L, table));
+            if (resultCache != null && !ResultCache.isCacheable(req)) {
+                resultCache.invalidate(conn.getKey()); // it may write
+            }
+            if (!req.hasParams()) {
+                List<String> statements = SQLText.splitStatements(query);
+                if (statements.size() > 1) {
+                    executeScript(req, statements, start, table, eventListener);
+                    return;
+                }
+            }
             final long fetchStart;
             final long execMs;
-            long rowId = 0;
-            int batchSize = START_BATCH_SIZE;
-            try (Statement stmt = conn.getConnection().createStatement()) {
+            int rowIdx = 0;
+            int batchStartIdx = 0;
+            int rsFetchSize = fetchSize;
+            int fetchEndIdx = fetchSize; // rows up to here are in the driver's buffer, when streaming
+            String truncation = null;
+            SQLExecRequest.Limits limits = req.getLimits();
+            long rowsLimit = limit(limits.getMaxRows(), maxRows);
+            long bytesLimit = Math.min(limit(limits.getMaxBytes(), fetchMaxBytes), fetchMaxBytes);
+            long fetchNanosLimit = TimeUnit.MILLISECONDS.toNanos(limit(limits.getMaxFetchMs(), maxFetchMs));
+            Connection connection = conn.getConnection();
+            boolean streaming = isStreaming && SQLText.isReadQuery(query);
+            boolean isStatementCached = req.isStatementCached();
+            PreparedStatement stmt = null;
+            try {
+                if (streaming) {
+                    // the driver only uses cursors, honouring the fetch size, within a transaction
+                    connection.setAutoCommit(false);
+                }
+                Conn.TaggedStatement prepared = prepare(req, jobTag(req), isStatementCached);
+                stmt = prepared.getStatement();
+                runningStatements.put(req.getKey(), stmt);
+                if (!prepared.getTag().isEmpty()) {
+                    runningJobTags.put(req.getKey(), prepared.getTag()); // a cached statement keeps its first tag
+                }
                 stmt.setQueryTimeout(QUERY_EXECUTION_TIMEOUT_SECS); // limit query execution time
-                boolean returnsResults = stmt.execute(query);
+                stmt.setFetchSize(streaming ? fetchSize : 0);
+                // the database produces no more rows than needed, plus one to tell truncation
+                stmt.setMaxRows(rowsLimit < Integer.MAX_VALUE ? (int) rowsLimit + 1 : 0);
+                boolean returnsResults = stmt.execute();
                 fetchStart = System.nanoTime();
                 execMs = ms(fetchStart - start);
+                long batchStart = fetchStart;
                 if (returnsResults) {
-                    for (ResultSet rs = stmt.getResultSet(); rs.next();) {
-                        reqKey = cancelRequests.get(sourceId);
-                        if (reqKey != null && reqKey.equals(req.getKey())) {
-                            break;
-                        }
-                        long fetchChk = System.nanoTime();
-                        if (!table.hasColMetadata()) {
-                            table.setColMetadata(rs);
+                    try (ResultSet rs = stmt.getResultSet()) {
+                        if (rs.getMetaData().getColumnCount() > 0) {
+                            table.setColMetadata(rs); // also when there are no rows
                         }
-                        table.addRow(String.valueOf(rowId++), rs);
-                        if (0 == rowId % batchSize) {
-                            batchSize = Math.min(batchSize * 2, MAX_BATCH_SIZE);
-                            long totalMs = ms(fetchChk - start);
-                            long fetchMs = ms(fetchChk - fetchStart);
-                            eventListener.onSourceEvent(SQLExecutor.this, EventType.RESULTS_AVAILABLE,
-                                new SQLExecResponse(req, conn, query, totalMs, execMs, fetchMs, table));
+                        while (rs.next()) {
+                            if (isCancelRequested(req, false)) {
+                                break;
+                            }
+                            long fetchChk = System.nanoTime();
+                            if (rowIdx >= rowsLimit) {
+                                truncation = String.format("max rows %d reached", rowsLimit);
+                                break;
+                            }
+                            if (table.getEstimatedBytes() >= bytesLimit) {
+                                truncation = String.format("max bytes %d reached", bytesLimit);
+                                break;
+                            }
+                            if (table.getSpilledBytes() >= fetchMaxDiskBytes) {
+                                truncation = String.format("max spilled bytes %d reached", fetchMaxDiskBytes);
+                                break;
+                            }
+                            if (fetchChk - fetchStart >= fetchNanosLimit) {
+                                truncation = String.format("max fetch time %d ms reached", ms(fetchNanosLimit));
+                                break;
+                            }
+                            table.addRow(rs);
+                            rowIdx++;
+                            boolean isFetchEnd = streaming && rowIdx == fetchEndIdx;
+                            if (isFetchEnd) {
+                                // the next row is a round trip away, publish the rows of this fetch first
+                                if (rowIdx == fetchSize) {
+                                    rsFetchSize = boundFetchSize(rs, table);
+                                }
+                                fetchEndIdx += rsFetchSize;
+                            }
+                            if (isFetchEnd || rowIdx - batchStartIdx >= MAX_BATCH_SIZE
+                                || fetchChk - batchStart >= batchNanos) {
+                                long totalMs = ms(fetchChk - start);
+                                long fetchMs = ms(fetchChk - fetchStart);
+                                eventListener.onSourceEvent(SQLExecutor.this, EventType.RESULTS_AVAILABLE,
+                                    new SQLExecResponse(req, conn, query, totalMs, execMs, fetchMs, table, batchStartIdx, rowIdx));
+                                batchStartIdx = rowIdx;
+                                batchStart = fetchChk;
+                            }
                         }
                     }
                 }
             }
             catch (SQLException fail) {
-                runningQueries.remove(sourceId);
-                cancelRequests.remove(sourceId);
+                removeRunning(req);
+                if (isCancelRequested(req, true)) {
+                    // the statement was cancelled in the database
+                    long totalMs = ms(System.nanoTime() - start);
+                    LOGGER.info("Cancelled [{}] from [{}], {} ms: {}", req.getKey(), sourceId, totalMs, fail.getMessage());
+                    eventListener.onSourceEvent(SQLExecutor.this, EventType.CANCELLED,
+                        new SQLExecResponse(req, conn, query, totalMs, 0L, 0L, table));
+                    return;
+                }
                 LOGGER.error("Failed [{}] from [{}]: {}", req.getKey(), sourceId, fail.getMessage());
                 eventListener.onSourceEvent(SQLExecutor.this, EventType.FAILURE,
                     new SQLExecResponse(req, ms(System.nanoTime() - start), fail, table));
                 return;
             }
-            runningQueries.remove(sourceId);
+            finally {
+                runningStatements.remove(req.getKey());
+                runningJobTags.remove(req.getKey());
+                if (stmt != null && !isStatementCached) {
+                    closeStatement(stmt); // cached statements are closed by the connection
+                }
+                if (streaming) {
+                    endStreaming(connection);
+                }
+            }
+            removeRunning(req);
             EventType eventType = EventType.COMPLETED;
             long end = System.nanoTime();
             long totalMs = ms(end - start);
             long fetchMs = ms(end - fetchStart);
-            reqKey = cancelRequests.remove(sourceId);
-            if (reqKey != null && reqKey.equals(req.getKey())) {
+            if (isCancelRequested(req, true)) {
                 eventType = EventType.CANCELLED;
             }
+            else if (truncation != null) {
+                eventType = EventType.TRUNCATED;
+                LOGGER.warn("Truncated [{}] at {} rows, {}", req.getKey(), rowIdx, truncation);
+            }
+            else if (resultCache != null && ResultCache.isCacheable(req)) {
+                resultCache.put(req, table);
+            }
             LOGGER.info("{} [{}] {} rows, {} ms (exec:{}, fetch:{})", eventType.name(), req.getKey(), table.size(), totalMs,
                 execMs, fetchMs);
             eventListener.onSourceEvent(SQLExecutor.this, eventType,
-                new SQLExecResponse(req, conn, query, totalMs, execMs, fetchMs, table));
+                new SQLExecResponse(req, conn, query, totalMs, execMs, fetchMs, table, batchStartIdx, rowIdx));
+        }
+    }
+
+    private void executeScript(SQLExecRequest req, List<String> statements, long start, SQLTable table,
+        EventConsumer<SQLExecutor, SQLExecResponse> eventListener) {
+        Conn conn = req.getConnection();
+        String script = req.getSQL();
+        table.setColMetadata(SCRIPT_COL_NAMES, SCRIPT_COL_TYPES);
+        int stmtIdx = 0;
+        int batchStartIdx = 0;
+        long batchStart = start;
+        SQLException failure = null;
+        String tag = jobTag(req);
+        try (Statement stmt = conn.getConnection().createStatement()) {
+            runningStatements.put(req.getKey(), stmt);
+            if (!tag.isEmpty()) {
+                runningJobTags.put(req.getKey(), tag);
+            }
+            stmt.setQueryTimeout(QUERY_EXECUTION_TIMEOUT_SECS);
+            while (stmtIdx < statements.size() && failure == null && !isCancelRequested(req, false)) {
+                int end = stmtIdx + 1;
+                if (SQLText.isBatchable(statements.get(stmtIdx))) {
+                    while (end < statements.size() && end - stmtIdx < scriptBatchSize
+                        && SQLText.isBatchable(statements.get(end))) {
+                        end++;
+                    }
+                }
+                failure = end - stmtIdx > 1 ? executeBatch(stmt, statements, stmtIdx, end, table, !conn.isCrateDB(), tag)
+                    : executeStatement(stmt, statements, stmtIdx, table, tag);
+                stmtIdx = table.size();
+                long chk = System.nanoTime();
+                if (chk - batchStart >= batchNanos) {
+                    eventListener.onSourceEvent(SQLExecutor.this, EventType.RESULTS_AVAILABLE,
+                        new SQLExecResponse(req, conn, script, ms(chk - start), ms(chk - start), 0L, table, batchStartIdx,
+                            stmtIdx));
+                    batchStartIdx = stmtIdx;
+                    batchStart = chk;
+                }
+            }
+        }
+        catch (SQLException fail) {
+            removeRunning(req);
+            isCancelRequested(req, true);
+            LOGGER.error("Failed [{}] from [{}]: {}", req.getKey(), req.getSourceId(), fail.getMessage());
+            eventListener.onSourceEvent(SQLExecutor.this, EventType.FAILURE,
+                new SQLExecResponse(req, ms(System.nanoTime() - start), fail, table));
+            return;
+        }
+        finally {
+            runningStatements.remove(req.getKey());
+            runningJobTags.remove(req.getKey());
+        }
+        for (int i = stmtIdx; i < statements.size(); i++) {
+            addOutcome(table, i, statements.get(i), "SKIPPED", null);
+        }
+        removeRunning(req);
+        EventType eventType = isCancelRequested(req, true) ? EventType.CANCELLED
+            : failure != null ? EventType.FAILURE : EventType.COMPLETED;
+        long totalMs = ms(System.nanoTime() - start);
+        LOGGER.info("{} [{}] script of {} statements, {}, {} ms", eventType.name(), req.getKey(), statements.size(),
+            failure != null ? "failed at #" + stmtIdx : "executed " + stmtIdx, totalMs);
+        // the outcomes table tells which statements were rolled back and skipped
+        eventListener.onSourceEvent(SQLExecutor.this, eventType, eventType == EventType.FAILURE
+            ? new SQLExecResponse(req, totalMs, failure, table)
+            : new SQLExecResponse(req, conn, script, totalMs, totalMs, 0L, table, batchStartIdx, table.size()));
+    }
+
+    /**
+     * Sends statements [from, to) to the database in one JDBC batch, a single
+     * round trip, each prefixed by the tag.
+     * 
+     * @return the failure of a statement, its outcome, the outcomes of the
+     *         statements that follow in the batch are not added, or null
+     */
+    private static SQLException executeBatch(Statement stmt, List<String> statements, int from, int to, SQLTable table,
+        boolean isTransactional, String tag) {
+        try {
+            for (int i = from; i < to; i++) {
+                stmt.addBatch(tag + statements.get(i));
+            }
+            int[] counts = stmt.executeBatch();
+            for (int i = from; i < to; i++) {
+                addOutcome(table, i, statements.get(i), "OK", updateCount(counts, i - from));
+            }
+            return null;
+        }
+        catch (BatchUpdateException fail) {
+            // the batch runs in one transaction, the statements before the failure
+            // do not take effect, except for CrateDB, which has no transactions
+            String outcome = isTransactional ? "ROLLED BACK" : "OK";
+            int[] counts = fail.getUpdateCounts();
+            int done = counts != null ? Math.min(counts.length, to - from - 1) : 0;
+            int failedIdx = from;
+            while (failedIdx - from < done && counts[failedIdx - from] != Statement.EXECUTE_FAILED) {
+                addOutcome(table, failedIdx, statements.get(failedIdx), outcome, isTransactional ? null
+                    : updateCount(counts, failedIdx - from));
+                failedIdx++;
+            }
+            addOutcome(table, failedIdx, statements.get(failedIdx), "FAILED: " + fail.getMessage(), null);
+            return fail;
+        }
+        catch (SQLException fail) {
+            addOutcome(table, from, statements.get(from), "FAILED: " + fail.getMessage(), null);
+            return fail;
+        }
+        finally {
+            try {
+                stmt.clearBatch();
+            }
+            catch (SQLException e) {
+                LOGGER.warn("Could not clear batch: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Executes statement idx on its own, prefixed by the tag. Results, if any,
+     * are counted and discarded.
+     * 
+     * @return the failure of the statement, or null
+     */
+    private static SQLException executeStatement(Statement stmt, List<String> statements, int idx, SQLTable table,
+        String tag) {
+        String statement = statements.get(idx);
+        try {
+            long rows;
+            if (stmt.execute(tag + statement)) {
+                rows = 0L;
+                try (ResultSet rs = stmt.getResultSet()) {
+                    while (rs.next()) {
+                        rows++;
+                    }
+                }
+            }
+            else {
+                rows = stmt.getUpdateCount();
+            }
+            addOutcome(table, idx, statement, "OK", rows >= 0L ? rows : null);
+            return null;
+        }
+        catch (SQLException fail) {
+            addOutcome(table, idx, statement, "FAILED: " + fail.getMessage(), null);
+            return fail;
+        }
+    }
+
+    private static Long updateCount(int[] counts, int i) {
+        return counts != null && i < counts.length && counts[i] >= 0 ? Long.valueOf(counts[i]) : null;
+    }
+
+    private static void addOutcome(SQLTable table, int idx, String statement, String outcome, Long rows) {
+        String text = statement.substring(SQLText.skipBlanks(statement, 0)); // leading comments
+        if (text.length() > SCRIPT_STATEMENT_MAX_LEN) {
+            text = text.substring(0, SCRIPT_STATEMENT_MAX_LEN) + "...";
+        }
+        table.addRow(new Object[]{idx + 1, text, outcome, rows});
+    }
+
+    /**
+     * Requests run as prepared statements, cached by the connection if isCached,
+     * keyed by their text without the tag, so that running the same SQL again
+     * reuses the statement. Parameter values are bound in the order of the
+     * placeholders. Text without parameters has its ? escaped, so that operators
+     * such as ?| are not taken for placeholders.
+     * 
+     * @return the prepared statement of the SQL prefixed by the tag, with the
+     *         parameters bound, and the tag its text starts with, which for a
+     *         cached statement is the tag it was first prepared with
+     */
+    private static Conn.TaggedStatement prepare(SQLExecRequest req, String tag, boolean isCached)
+        throws SQLException {
+        List<Object> bound = new ArrayList<>();
+        String jdbcSql;
+        try {
+            jdbcSql = req.hasParams() ? SQLText.toJdbcPlaceholders(req.getSQL(), req.getParams(), bound)
+                : SQLText.escapeJdbcPlaceholders(req.getSQL());
+        }
+        catch (IllegalArgumentException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+        Conn.TaggedStatement prepared = isCached ? req.getConnection().prepareCached(jdbcSql, tag)
+            : new Conn.TaggedStatement(req.getConnection().getConnection().prepareStatement(tag + jdbcSql,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY), tag);
+        PreparedStatement stmt = prepared.getStatement();
+        stmt.clearParameters();
+        for (int i = 0; i < bound.size(); i++) {
+            stmt.setObject(i + 1, bound.get(i));
+        }
+        return prepared;
+    }
+
+    /**
+     * @return for CrateDB, a comment with the request's key, to prefix the SQL
+     *         sent on behalf of the request, so that its job can be told apart
+     *         when it is killed, otherwise empty
+     */
+    private static String jobTag(SQLExecRequest req) {
+        return req.getConnection().isCrateDB() ? String.format("/* %s */ ", req.getKey()) : "";
+    }
+
+    /**
+     * @return the request's limit if set (greater than zero), otherwise the
+     *         executor's default if set, otherwise Long.MAX_VALUE
+     */
+    private static long limit(long requestLimit, long defaultLimit) {
+        if (requestLimit > 0L) {
+            return requestLimit;
+        }
+        return defaultLimit > 0L ? defaultLimit : Long.MAX_VALUE;
+    }
+
+    private void removeRunning(SQLExecRequest req) {
+        runningQueries.computeIfPresent(req.getSourceId(), (sourceId, exec) -> exec.req == req ? null : exec);
+    }
+
+    /**
+     * @param req    the request
+     * @param remove if true, a cancel request for the request is consumed
+     * @return true if the request was cancelled
+     */
+    private boolean isCancelRequested(SQLExecRequest req, boolean remove) {
+        String sourceId = req.getSourceId();
+        String reqKey = remove ? cancelRequests.remove(sourceId) : cancelRequests.get(sourceId);
+        if (reqKey != null && !reqKey.equals(req.getKey())) {
+            if (remove) {
+                cancelRequests.putIfAbsent(sourceId, reqKey); // belongs to another request by the source
+            }
+            return false;
+        }
+        return reqKey != null;
+    }
+
+    private static void closeStatement(Statement stmt) {
+        try {
+            stmt.close();
+        }
+        catch (SQLException e) {
+            LOGGER.warn("Could not close statement: {}", e.getMessage());
+        }
+    }
+
+    private static void cancelStatement(Statement stmt) {
+        try {
+            stmt.cancel();
+        }
+        catch (SQLException e) {
+            LOGGER.warn("Could not cancel statement: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Kills the CrateDB jobs whose statement carries the tag, over a new
+     * connection, as the connection running the query is busy.
+     */
+    private static void killCrateDBJob(Conn conn, String tag) {
+        try (Connection killConn = conn.connect()) {
+            killConn.setAutoCommit(true);
+            List<String> jobIds = new ArrayList<>(1);
+            try (PreparedStatement jobs = killConn.prepareStatement(
+                "SELECT id FROM sys.jobs WHERE stmt LIKE ? AND username = current_user")) {
+                jobs.setString(1, "%" + tag.trim() + "%");
+                try (ResultSet rs = jobs.executeQuery()) {
+                    while (rs.next()) {
+                        jobIds.add(rs.getString(1));
+                    }
+                }
+            }
+            try (Statement kill = killConn.createStatement()) {
+                for (String jobId : jobIds) {
+                    kill.execute(String.format("KILL '%s'", jobId));
+                    LOGGER.info("Killed CrateDB job [{}] on [{}]", jobId, conn.getKey());
+                }
+            }
+        }
+        catch (SQLException e) {
+            LOGGER.warn("Could not kill CrateDB job on [{}]: {}", conn.getKey(), e.getMessage());
+        }
+    }
+
+    /**
+     * @param req the request
+     * @return the table the results of the request are fetched into
+     */
+    SQLTable newTable(SQLExecRequest req) {
+        return new SQLTable(req.getKey());
+    }
+
+    /**
+     * Lowers the fetch size of a streamed result-set, once the first fetch is
+     * in, when the average row is so wide that fetching the configured number of
+     * rows at the time would hold more than 32 MB in the driver's buffer.
+     * 
+     * @return the fetch size from now on
+     */
+    private int boundFetchSize(ResultSet rs, SQLTable table) throws SQLException {
+        long tableBytes = table.getEstimatedBytes() + table.getSpilledBytes();
+        long avgRowBytes = Math.max(1L, tableBytes / Math.max(1, table.size()));
+        if (avgRowBytes * fetchSize > FETCH_BUFFER_MAX_BYTES) {
+            int bounded = (int) Math.max(1L, FETCH_BUFFER_MAX_BYTES / avgRowBytes);
+            rs.setFetchSize(bounded);
+            return bounded;
+        }
+        return fetchSize;
+    }
+
+    /**
+     * Ends the transaction opened to stream the results of a read query and
+     * restores auto commit. Commit rather than rollback, in case the query had
+     * side effects, as it would have had with auto commit. If the commit fails,
+     * as it does when a cancel or an error aborted the transaction, the
+     * transaction is rolled back. Auto commit is restored in any case, or the
+     * statements that follow on the connection would never be committed.
+     */
+    private static void endStreaming(Connection connection) {
+        try {
+            if (connection.isClosed()) {
+                return;
+            }
+            connection.commit();
+        }
+        catch (SQLException commitFail) {
+            LOGGER.warn("Could not commit, rolling back: {}", commitFail.getMessage());
+            try {
+                connection.rollback();
+            }
+            catch (SQLException e) {
+                LOGGER.warn("Could not roll back: {}", e.getMessage());
+            }
+        }
+        finally {
+            try {
+                if (!connection.isClosed()) {
+                    connection.setAutoCommit(true);
+                }
+            }
+            catch (SQLException e) {
+                LOGGER.warn("Could not restore auto commit: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Submitted request, as run by its lane.
+     */
+    private static class Execution extends FutureTask<Void> {
+
+        private final SQLExecRequest req;
+
+        private Execution(SQLExecRequest req, Runnable task) {
+            super(task, null);
+            this.req = req;
+        }
+    }
+
+    /**
+     * Serialises the execution of the requests submitted over a connection. At
+     * most one request per lane is running at any time, taking one worker from
+     * the shared pool. Once a request is done the lane yields the worker, and it
+     * is rescheduled at the back of the pool's queue if it still has pending
+     * requests, so that busy lanes do not starve the rest.
+     */
+    private static class Lane implements Runnable {
+
+        private final String key;
+        private final ExecutorService workers;
+        private final Deque<FutureTask<?>> pending;
+        private boolean isScheduled;
+
+        private Lane(String key, ExecutorService workers) {
+            this.key = key;
+            this.workers = workers;
+            this.pending = new ArrayDeque<>();
+        }
+
+        private synchronized boolean offer(FutureTask<?> task, int maxDepth) {
+            pending.removeIf(Future::isCancelled); // preempted requests
+            if (pending.size() >= maxDepth) {
+                return false;
+            }
+            pending.addLast(task);
+            if (!isScheduled) {
+                isScheduled = true;
+                workers.execute(this);
+            }
+            return true;
+        }
+
+        private synchronized FutureTask<?> poll() {
+            FutureTask<?> task;
+            do {
+                task = pending.pollFirst();
+            }
+            while (task != null && task.isCancelled());
+            if (task == null) {
+                isScheduled = false;
+            }
+            return task;
+        }
+
+        private synchronized void yieldWorker() {
+            if (pending.isEmpty()) {
+                isScheduled = false;
+            }
+            else {
+                try {
+                    workers.execute(this);
+                }
+                catch (RejectedExecutionException shutdown) {
+                    isScheduled = false;
+                    pending.clear();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            FutureTask<?> task = poll();
+            if (task != null) {
+                try {
+                    task.run();
+                }
+                finally {
+                    yieldWorker();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return key;
         }
     }
 
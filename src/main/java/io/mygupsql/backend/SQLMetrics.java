@@ -0,0 +1,279 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import io.mygupsql.EventConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Metrics registry fed by the {@link SQLExecutor} with the responses that end
+ * an execution (COMPLETED, TRUNCATED, CANCELLED, FAILURE). For each connection
+ * and event type it keeps {@link LatencyHistogram}s of the exec, fetch and total
+ * times, and for each connection the number of failures and the rows fetched
+ * per second of fetch time.
+ * <p>
+ * Metrics are cumulative since the registry was created, or last reset, and
+ * are exposed over JMX through {@link SQLMetricsMXBean}.
+ */
+public class SQLMetrics implements SQLMetricsMXBean, EventConsumer<SQLExecutor, SQLExecResponse> {
+
+    /**
+     * Latency percentiles of one timing, of the executions over a connection that
+     * ended with an event type, in milliseconds.
+     */
+    public static class Latency {
+
+        private final String connection;
+        private final String eventType;
+        private final String timing;
+        private final long count;
+        private final long min;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        @ConstructorProperties({"connection", "eventType", "timing", "count", "min", "mean", "p50", "p90", "p99",
+            "p999", "max"})
+        public Latency(String connection, String eventType, String timing, long count, long min, double mean,
+            long p50, long p90, long p99, long p999, long max) {
+            this.connection = connection;
+            this.eventType = eventType;
+            this.timing = timing;
+            this.count = count;
+            this.min = min;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        Latency(String connection, String eventType, String timing, LatencyHistogram histogram) {
+            this(connection, eventType, timing, histogram.getCount(), histogram.getMin(), histogram.getMean(),
+                histogram.getValueAtPercentile(50.0), histogram.getValueAtPercentile(90.0),
+                histogram.getValueAtPercentile(99.0), histogram.getValueAtPercentile(99.9), histogram.getMax());
+        }
+
+        public String getConnection() {
+            return connection;
+        }
+
+        public String getEventType() {
+            return eventType;
+        }
+
+        /**
+         * @return exec, fetch or total
+         */
+        public String getTiming() {
+            return timing;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s %s: count: %d, min: %d, mean: %.1f, p50: %d, p90: %d, p99: %d, p99.9: %d, max: %d",
+                connection, eventType, timing, count, min, mean, p50, p90, p99, p999, max);
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SQLMetrics.class);
+    private static final String OBJECT_NAME = "io.mygupsql:type=SQLMetrics";
+
+    /**
+     * Timings of the executions over a connection that ended with an event type.
+     */
+    private static class Timings {
+
+        private final LatencyHistogram exec = new LatencyHistogram();
+        private final LatencyHistogram fetch = new LatencyHistogram();
+        private final LatencyHistogram total = new LatencyHistogram();
+    }
+
+    /**
+     * Throughput and failures over a connection.
+     */
+    private static class Counters {
+
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong fetchMs = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+    }
+
+    private final ConcurrentMap<String, ConcurrentMap<SQLExecutor.EventType, Timings>> timings;
+    private final ConcurrentMap<String, Counters> counters;
+    private ObjectName objectName;
+
+    /**
+     * Constructor.
+     */
+    public SQLMetrics() {
+        timings = new ConcurrentHashMap<>();
+        counters = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Records the response if it ends an execution, other responses are ignored.
+     */
+    @Override
+    public void onSourceEvent(SQLExecutor source, Enum<?> eventType, SQLExecResponse res) {
+        SQLExecutor.EventType event = (SQLExecutor.EventType) eventType;
+        if (event == SQLExecutor.EventType.STARTED || event == SQLExecutor.EventType.RESULTS_AVAILABLE) {
+            return;
+        }
+        String connKey = res.getConnection().getKey();
+        Timings t = timings.computeIfAbsent(connKey, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(event, k -> new Timings());
+        t.exec.record(res.getExecMs());
+        t.fetch.record(res.getFetchMs());
+        t.total.record(res.getTotalMs());
+        Counters c = counters.computeIfAbsent(connKey, k -> new Counters());
+        if (event == SQLExecutor.EventType.FAILURE) {
+            c.failures.incrementAndGet();
+        }
+        else if (res.getFetchMs() > 0L) {
+            c.rows.addAndGet(res.getTable().size());
+            c.fetchMs.addAndGet(res.getFetchMs());
+        }
+    }
+
+    /**
+     * Registers the registry with the platform MBean server. Only one registry can
+     * be registered at the time, further attempts are logged and ignored.
+     */
+    public synchronized void register() {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                LOGGER.warn("{} is already registered", OBJECT_NAME);
+                return;
+            }
+            server.registerMBean(this, name);
+            objectName = name;
+        }
+        catch (JMException e) {
+            LOGGER.warn("Could not register {}: {}", OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    /**
+     * Unregisters the registry from the platform MBean server, if registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (JMException e) {
+            LOGGER.warn("Could not unregister {}: {}", OBJECT_NAME, e.getMessage());
+        }
+        finally {
+            objectName = null;
+        }
+    }
+
+    @Override
+    public List<Latency> getLatencies() {
+        List<Latency> latencies = new ArrayList<>();
+        new TreeMap<>(timings).forEach((connKey, byEvent) -> new TreeMap<>(byEvent).forEach((event, t) -> {
+            latencies.add(new Latency(connKey, event.name(), "exec", t.exec));
+            latencies.add(new Latency(connKey, event.name(), "fetch", t.fetch));
+            latencies.add(new Latency(connKey, event.name(), "total", t.total));
+        }));
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        Map<String, Long> failures = new TreeMap<>();
+        counters.forEach((connKey, c) -> failures.put(connKey, c.failures.get()));
+        return failures;
+    }
+
+    @Override
+    public Map<String, Double> getRowsPerSec() {
+        Map<String, Double> rowsPerSec = new TreeMap<>();
+        counters.forEach((connKey, c) -> {
+            long fetchMs = c.fetchMs.get();
+            rowsPerSec.put(connKey, fetchMs > 0L ? c.rows.get() * 1000.0 / fetchMs : 0.0);
+        });
+        return rowsPerSec;
+    }
+
+    @Override
+    public void reset() {
+        timings.clear();
+        counters.clear();
+    }
+}
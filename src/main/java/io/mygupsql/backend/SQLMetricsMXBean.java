@@ -0,0 +1,50 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Management interface of {@link SQLMetrics}, registered with the platform
+ * MBean server as "io.mygupsql:type=SQLMetrics", so that it can be watched
+ * with JConsole, VisualVM or any JMX client.
+ */
+public interface SQLMetricsMXBean {
+
+    /**
+     * @return latency percentiles, one entry per connection, event type and
+     *         timing (exec, fetch, total)
+     */
+    List<SQLMetrics.Latency> getLatencies();
+
+    /**
+     * @return number of failed executions, by connection key
+     */
+    Map<String, Long> getFailures();
+
+    /**
+     * @return rows fetched per second of fetch time, by connection key
+     */
+    Map<String, Double> getRowsPerSec();
+
+    /**
+     * Clears all metrics.
+     */
+    void reset();
+}
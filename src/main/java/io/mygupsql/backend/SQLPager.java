@@ -0,0 +1,468 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.mygupsql.EventConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Browses the results of a read query a page at the time, for results too big
+ * to be held client side. Only the pages that are asked for are fetched, and
+ * the most recently used pages are cached, so that client memory is bounded by
+ * system properties "pager.page.size" and "pager.cached.pages", 500 rows and 16
+ * pages by default.
+ * <p>
+ * Pages are fetched with queries that wrap the query as a sub query, through
+ * the {@link SQLExecutor}, in the lane of the request's connection and on
+ * behalf of the request's source, a page that is asked for preempts the fetch
+ * of a page that no longer is. When the query selects from a single table with
+ * a single column primary key, see {@link SQLText#singleTableName(String)},
+ * rows are ordered by the key, and a page that follows a page that has been
+ * fetched is fetched by keyset pagination, the rows whose key is greater than
+ * the last key of the previous page, which the database reads from an index.
+ * Otherwise pages are fetched with LIMIT/OFFSET.
+ * <p>
+ * Before the first page is fetched, the pager looks up the primary key and
+ * reads the column metadata. Rows are not counted, as that takes a full scan,
+ * the number of rows grows as pages are fetched, and it is exact once the
+ * last page is, see {@link #size()}. For PostgreSQL, the planner's estimate
+ * of the number of rows is read once no page is being fetched. The consumer
+ * receives the responses of the request, as if it had been executed by the
+ * executor: STARTED, COMPLETED once the first page arrives, carrying a table
+ * with the column metadata and no rows, and the range of rows of the page,
+ * and RESULTS_AVAILABLE as each further page arrives, or the number of rows
+ * changes. Page queries are not kept in the connection's statement cache.
+ * This class is thread-safe.
+ */
+public final class SQLPager implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SQLPager.class);
+    private static final String PAGE_SIZE_KEY = "pager.page.size";
+    private static final String CACHED_PAGES_KEY = "pager.cached.pages";
+    private static final int DEFAULT_PAGE_SIZE = 500;
+    private static final int DEFAULT_CACHED_PAGES = 16;
+    private static final int MAX_BOOKMARKS = 4_096; // pages whose last key is kept, for keyset pagination
+    private static final int MAX_WANTED_PAGES = 2; // a view spans at most two pages
+    private static final Set<String> PAGEABLE_KEYWORDS = Set.of("select", "with", "values", "table");
+    private static final String PRIMARY_KEY_SQL = "SELECT kcu.column_name"
+        + " FROM information_schema.table_constraints tc"
+        + " JOIN information_schema.key_column_usage kcu ON kcu.constraint_name = tc.constraint_name"
+        + " AND kcu.table_schema = tc.table_schema AND kcu.table_name = tc.table_name"
+        + " WHERE tc.constraint_type = 'PRIMARY KEY' AND tc.table_name = ? AND tc.table_schema = %s";
+    private static final Pattern PLAN_ROWS = Pattern.compile("\"Plan Rows\"\\s*:\\s*(\\d+)");
+
+    private enum Step {
+        PRIMARY_KEY, COLUMNS, PAGE, ESTIMATE
+    }
+
+    private static final class Fetch {
+
+        private final Step step;
+        private final int pageIdx;
+
+        private Fetch(Step step, int pageIdx) {
+            this.step = step;
+            this.pageIdx = pageIdx;
+        }
+    }
+
+    /**
+     * @param req the request
+     * @return true if the request's results can be paged, it is a single read
+     *         query, without parameters, that can be wrapped as a sub query
+     */
+    public static boolean isPageable(SQLExecRequest req) {
+        String sql = req.getSQL();
+        return !req.hasParams() && PAGEABLE_KEYWORDS.contains(SQLText.firstKeyword(sql))
+            && SQLText.splitStatements(sql).size() == 1;
+    }
+
+    private final SQLExecutor executor;
+    private final SQLExecRequest req;
+    private final EventConsumer<SQLExecutor, SQLExecResponse> consumer;
+    private final String sql;
+    private final int pageSize;
+    private final int cachedPages;
+    private final LinkedHashMap<Integer, SQLTable> pages;
+    private final LinkedHashMap<Integer, Object> bookmarks; // page index to key of its last row
+    private final Deque<Integer> wanted; // most recently asked for first
+    private final Map<String, Fetch> fetches; // by request key
+    private SQLExecRequest current; // latest submitted
+    private int fetchingPageIdx = -1;
+    private SQLTable table; // column metadata
+    private String keyColName;
+    private int keyColIdx = -1;
+    private long knownSize; // rows up to the end of the furthest page fetched
+    private long maxSize = Long.MAX_VALUE; // rows up to the end, once a page falls short
+    private long estimatedSize = -1L;
+    private boolean isEstimatePending;
+    private boolean isEstimating;
+    private boolean isStarted;
+    private boolean isCompleted; // the first page has arrived
+    private boolean isClosed;
+
+    /**
+     * Constructor. The page size and the number of cached pages are taken from
+     * system properties "pager.page.size" and "pager.cached.pages".
+     *
+     * @param executor executes the queries, must be started
+     * @param req      a pageable request, see {@link #isPageable(SQLExecRequest)}
+     * @param consumer receiver of responses to the request
+     */
+    public SQLPager(SQLExecutor executor, SQLExecRequest req, EventConsumer<SQLExecutor, SQLExecResponse> consumer) {
+        this(executor, req, consumer, Integer.getInteger(PAGE_SIZE_KEY, DEFAULT_PAGE_SIZE),
+            Integer.getInteger(CACHED_PAGES_KEY, DEFAULT_CACHED_PAGES));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param executor    executes the queries, must be started
+     * @param req         a pageable request, see {@link #isPageable(SQLExecRequest)}
+     * @param consumer    receiver of responses to the request
+     * @param pageSize    number of rows per page
+     * @param cachedPages max number of pages held
+     */
+    public SQLPager(SQLExecutor executor, SQLExecRequest req, EventConsumer<SQLExecutor, SQLExecResponse> consumer,
+        int pageSize, int cachedPages) {
+        if (!isPageable(req)) {
+            throw new IllegalArgumentException("not pageable: " + req.getSQL());
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+        this.executor = executor;
+        this.req = req;
+        this.consumer = consumer;
+        this.pageSize = pageSize;
+        this.cachedPages = Math.max(MAX_WANTED_PAGES, cachedPages);
+        sql = SQLText.normalize(req.getSQL());
+        pages = new LinkedHashMap<>(16, 0.75F, true);
+        bookmarks = new LinkedHashMap<>(16, 0.75F, true);
+        wanted = new ArrayDeque<>(MAX_WANTED_PAGES + 1);
+        fetches = new HashMap<>();
+    }
+
+    /**
+     * Looks up the primary key, if the query selects from a single table, or
+     * else reads the column metadata, and then fetches the first page.
+     */
+    public synchronized void start() {
+        String[] tableName = SQLText.singleTableName(sql);
+        if (tableName != null) {
+            String keySql = String.format(PRIMARY_KEY_SQL, tableName[0] != null ? "?" : "current_schema()");
+            List<Object> params = tableName[0] != null ? Arrays.asList(tableName[1], tableName[0])
+                : Collections.singletonList(tableName[1]);
+            submit(Step.PRIMARY_KEY, -1, keySql, params);
+        }
+        else {
+            submitColumns();
+        }
+    }
+
+    /**
+     * @return the request
+     */
+    public SQLExecRequest getRequest() {
+        return req;
+    }
+
+    /**
+     * @return number of rows per page
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return table with the column metadata and no rows, null until read
+     */
+    public synchronized SQLTable getTable() {
+        return table;
+    }
+
+    /**
+     * Until the last page is fetched, the number of rows is that up to the end
+     * of the furthest page fetched plus a page, so that the view can be
+     * scrolled further, or the database's estimate, if larger.
+     *
+     * @return number of rows, zero until the first page arrives
+     */
+    public synchronized long size() {
+        return isCompleted ? Math.min(maxSize, Math.max(estimatedSize, knownSize + pageSize)) : 0L;
+    }
+
+    /**
+     * @return true if the last page has been fetched, the size is exact
+     */
+    public synchronized boolean isSizeExact() {
+        return isCompleted && knownSize == maxSize;
+    }
+
+    /**
+     * @return the name of the column rows are ordered by, or null if pages are
+     *         fetched with LIMIT/OFFSET
+     */
+    public synchronized String getKeyColName() {
+        return keyColIdx != -1 ? keyColName : null;
+    }
+
+    /**
+     * The page that holds a row, if it is cached. Otherwise it is fetched, and
+     * the consumer receives RESULTS_AVAILABLE once it arrives.
+     *
+     * @param rowIdx index of the row
+     * @return the page, whose row (rowIdx % page size) is the row, or null if
+     *         it is not cached
+     */
+    public synchronized SQLTable getPageOf(int rowIdx) {
+        int pageIdx = rowIdx / pageSize;
+        SQLTable page = pages.get(pageIdx);
+        if (page == null && !isClosed) {
+            want(pageIdx);
+            if (fetchingPageIdx == -1 || !wanted.contains(fetchingPageIdx)) {
+                fetchNext();
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Stops fetching, and drops the cached pages. The request is cancelled by
+     * the next request submitted on behalf of its source, or explicitly.
+     */
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+        pages.clear();
+        bookmarks.clear();
+        wanted.clear();
+        fetches.clear();
+    }
+
+    private void want(int pageIdx) {
+        Integer first = wanted.peekFirst();
+        if (first == null || first != pageIdx) {
+            wanted.remove(pageIdx);
+            wanted.addFirst(pageIdx);
+            if (wanted.size() > MAX_WANTED_PAGES) {
+                wanted.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Fetches the most recently wanted page that is not cached, if any,
+     * otherwise the estimate, if pending. Fetches preempt one another.
+     */
+    private void fetchNext() {
+        if (isClosed || table == null) {
+            return;
+        }
+        for (Integer pageIdx : wanted) {
+            if (!pages.containsKey(pageIdx)) {
+                if (pageIdx != fetchingPageIdx) {
+                    submitPage(pageIdx);
+                }
+                return;
+            }
+        }
+        if (isEstimatePending && !isEstimating && fetchingPageIdx == -1) {
+            isEstimating = true;
+            submit(Step.ESTIMATE, -1, String.format("EXPLAIN (FORMAT JSON) %s", sql), null);
+        }
+    }
+
+    private void submitColumns() {
+        submit(Step.COLUMNS, -1, String.format("SELECT * FROM (%s) q LIMIT 0", sql), null);
+    }
+
+    private void submitPage(int pageIdx) {
+        Object afterKey = keyColIdx != -1 ? bookmarks.get(pageIdx - 1) : null;
+        String pageSql;
+        if (afterKey != null) {
+            String key = "q." + SQLText.quote(keyColName);
+            pageSql = String.format("SELECT * FROM (%s) q WHERE %s > ? ORDER BY %s LIMIT %d", sql, key, key, pageSize);
+        }
+        else {
+            String orderBy = keyColIdx != -1 ? " ORDER BY q." + SQLText.quote(keyColName) : "";
+            pageSql = String.format("SELECT * FROM (%s) q%s LIMIT %d OFFSET %d", sql, orderBy, pageSize,
+                (long) pageIdx * pageSize);
+        }
+        fetchingPageIdx = pageIdx;
+        submit(Step.PAGE, pageIdx, pageSql, afterKey != null ? Collections.singletonList(afterKey) : null);
+    }
+
+    private void submit(Step step, int pageIdx, String stepSql, List<Object> params) {
+        SQLExecRequest stepReq = new SQLExecRequest(req.getSourceId(), req.getConnection(), stepSql,
+            step == Step.PAGE ? new SQLExecRequest.Limits(pageSize, 0L, 0L) : SQLExecRequest.Limits.NONE, params, false);
+        if (step != Step.ESTIMATE) {
+            isEstimating = false; // preempted, it may not even get to be cancelled
+        }
+        current = stepReq;
+        fetches.put(stepReq.getKey(), new Fetch(step, pageIdx));
+        executor.submit(stepReq, this::onExecutorEvent);
+    }
+
+    private synchronized void onExecutorEvent(SQLExecutor source, Enum<?> eventType, SQLExecResponse res) {
+        Fetch fetch = fetches.get(res.getKey());
+        if (isClosed || fetch == null) {
+            return;
+        }
+        switch ((SQLExecutor.EventType) eventType) {
+            case STARTED:
+                if (!isStarted) {
+                    isStarted = true;
+                    consumer.onSourceEvent(source, eventType, forward(res, null, 0, 0));
+                }
+                break;
+
+            case RESULTS_AVAILABLE:
+                break; // pages are fetched whole
+
+            case COMPLETED:
+            case TRUNCATED:
+                fetches.remove(res.getKey());
+                onFetched(source, fetch, res);
+                break;
+
+            case CANCELLED:
+                fetches.remove(res.getKey());
+                if (fetch.step == Step.ESTIMATE) {
+                    break; // preempted, the estimate is read once no page is being fetched
+                }
+                if (fetch.pageIdx == fetchingPageIdx) {
+                    fetchingPageIdx = -1;
+                }
+                if (res.getKey().equals(current.getKey())) {
+                    // not preempted by a page fetch, cancelled on behalf of the source
+                    consumer.onSourceEvent(source, eventType, forward(res, table, 0, 0));
+                }
+                break;
+
+            case FAILURE:
+                fetches.remove(res.getKey());
+                if (fetch.step == Step.PRIMARY_KEY) {
+                    LOGGER.warn("Could not find the primary key, paging with offsets: {}", res.getError().getMessage());
+                    submitColumns();
+                    break;
+                }
+                if (fetch.step == Step.ESTIMATE) {
+                    LOGGER.warn("Could not estimate the number of rows: {}", res.getError().getMessage());
+                    isEstimatePending = false;
+                    isEstimating = false;
+                    fetchNext();
+                    break;
+                }
+                if (fetch.pageIdx == fetchingPageIdx) {
+                    fetchingPageIdx = -1;
+                }
+                consumer.onSourceEvent(source, eventType,
+                    new SQLExecResponse(req, res.getTotalMs(), res.getError(), table != null ? table : res.getTable()));
+                break;
+        }
+    }
+
+    private void onFetched(SQLExecutor source, Fetch fetch, SQLExecResponse res) {
+        SQLTable t = res.getTable();
+        switch (fetch.step) {
+            case PRIMARY_KEY:
+                keyColName = t.size() == 1 ? (String) t.getValueAt(0, 0) : null; // single column keys only
+                submitColumns();
+                break;
+
+            case COLUMNS:
+                table = t;
+                keyColIdx = -1;
+                for (int i = 0; keyColName != null && i < t.getColCount(); i++) {
+                    if (keyColName.equals(t.getColName(i))) {
+                        keyColIdx = i;
+                    }
+                }
+                isEstimatePending = !req.getConnection().isCrateDB(); // CrateDB's plans carry no row estimates
+                LOGGER.info("Paging [{}] from [{}] in pages of {}, {}", req.getKey(), req.getSourceId(), pageSize,
+                    keyColIdx != -1 ? "keyset on " + keyColName : "offset");
+                want(0);
+                fetchNext();
+                break;
+
+            case ESTIMATE:
+                isEstimatePending = false;
+                isEstimating = false;
+                Matcher plan = t.size() > 0 ? PLAN_ROWS.matcher(String.valueOf(t.getValueAt(0, 0))) : null;
+                if (plan != null && plan.find()) {
+                    estimatedSize = Long.parseLong(plan.group(1));
+                    consumer.onSourceEvent(source, SQLExecutor.EventType.RESULTS_AVAILABLE, forward(res, table, 0, 0));
+                }
+                fetchNext();
+                break;
+
+            case PAGE:
+                if (fetch.pageIdx == fetchingPageIdx) {
+                    fetchingPageIdx = -1;
+                }
+                pages.put(fetch.pageIdx, t);
+                while (pages.size() > cachedPages) {
+                    Integer eldest = pages.keySet().iterator().next();
+                    pages.remove(eldest); // may be in use by a reader, not cleared
+                }
+                if (keyColIdx != -1 && t.size() > 0) {
+                    bookmarks.put(fetch.pageIdx, t.getValueAt(t.size() - 1, keyColIdx));
+                    if (bookmarks.size() > MAX_BOOKMARKS) {
+                        bookmarks.remove(bookmarks.keySet().iterator().next());
+                    }
+                }
+                int fromRowIdx = fetch.pageIdx * pageSize;
+                if (t.size() > 0) {
+                    knownSize = Math.max(knownSize, fromRowIdx + t.size());
+                }
+                if (t.size() < pageSize) {
+                    maxSize = Math.max(knownSize, Math.min(maxSize, fromRowIdx + t.size()));
+                }
+                SQLExecutor.EventType eventType = isCompleted ? SQLExecutor.EventType.RESULTS_AVAILABLE
+                    : SQLExecutor.EventType.COMPLETED;
+                isCompleted = true;
+                consumer.onSourceEvent(source, eventType, forward(res, table, fromRowIdx, fromRowIdx + t.size()));
+                fetchNext();
+                break;
+        }
+    }
+
+    /**
+     * @return the response as a response to the request, with the timings of the
+     *         response
+     */
+    private SQLExecResponse forward(SQLExecResponse res, SQLTable t, int fromRowIdx, int toRowIdx) {
+        return new SQLExecResponse(req, req.getConnection(), req.getSQL(), res.getTotalMs(), res.getExecMs(),
+            res.getFetchMs(), t != null ? t : res.getTable(), fromRowIdx, toRowIdx);
+    }
+}
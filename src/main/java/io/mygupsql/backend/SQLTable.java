@@ -16,30 +16,53 @@
 
 package io.mygupsql.backend;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Types;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.mygupsql.WithKey;
 
 
 /**
  * A table is identified by a key, has column metadata (names and types) and a
- * list of {@link Row}s in insertion order. Rows are identified by both their
- * key and the row's values. A table cannot contain duplicate rows. This data
- * structure is thread-safe.
+ * list of {@link Row}s in insertion order. Rows are appended, they are
+ * identified by their index, and their key is the index as a string unless an
+ * explicit key is given when they are added. Duplicates are not checked for.
+ * This data structure is thread-safe.
+ * <p>
+ * Values are stored by column, in {@link Column}s chosen from the column types,
+ * which keep numbers, timestamps and booleans in primitive arrays and strings
+ * in char slabs. {@link Row}s are views built on request.
+ * <p>
+ * There is a single writer at the time, the executor fetching the results,
+ * while readers, the UI, do not lock. Each appended row is published by a
+ * volatile write of the row count, readers read the row count first and only
+ * then the rows below it. Clearing the table replaces the rows as a whole.
+ * <p>
+ * When the rows take more heap than the budget set by system property
+ * "table.heap.budget.mb" (default an eighth of the max heap, 0 to disable),
+ * the oldest chunks of rows are written to a {@link SpillFile}, under
+ * {@link Store#getDefaultRootPath()}, and dropped from the heap. Their values
+ * are read back from the file, transparently.
+ * <p>
+ * Statistics of each column's values ({@link ColumnStats}) are updated as rows
+ * are added, so that they are available while the results are being fetched.
  */
 public class SQLTable implements WithKey {
 
@@ -152,14 +175,48 @@ public class SQLTable implements WithKey {
         }
     }
 
-    private final ReadLock readLock;
-    private final WriteLock writeLock;
+    /**
+     * The rows, replaced as a whole when the table is cleared, so that readers
+     * holding the previous instance keep reading consistent, if stale, rows.
+     */
+    private static final class Rows {
+
+        private volatile Column[] columns; // a column promoted to Object[] storage is replaced in a copy
+        private final ColumnStats.Accumulator[] stats; // by column, guarded by the write lock
+        private volatile Column keys; // explicit keys, null until the first one is added
+        private volatile int size;
+        private volatile SpillFile.Chunk[] spilled; // by chunk index
+        private Map<String, Integer> keyToIdx; // built on the first key lookup
+        private SpillFile spillFile;
+        private int spilledChunks;
+        private boolean isSpillDisabled;
+
+        private Rows(Column[] columns) {
+            this.columns = columns;
+            stats = new ColumnStats.Accumulator[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                stats[i] = new ColumnStats.Accumulator(columns[i].sqlType);
+            }
+            spilled = NO_CHUNKS;
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SQLTable.class);
+    private static final String HEAP_BUDGET_MB_KEY = "table.heap.budget.mb";
+    private static final long HEAP_BUDGET_BYTES = Long.getLong(HEAP_BUDGET_MB_KEY,
+        Runtime.getRuntime().maxMemory() / (8L * 1024 * 1024)) * 1024 * 1024;
+    private static final SpillFile.Chunk[] NO_CHUNKS = new SpillFile.Chunk[0];
+
+    private final long heapBudgetBytes;
+    private final File spillFolder;
+    private final ReentrantLock writeLock;
     private final String key;
     private volatile String[] colNames;
     private volatile int[] colTypes;
-    private final List<Row> rows;
-    private final ConcurrentMap<String, Integer> rowKeyToIdx;
+    private volatile Rows rows;
     private final ConcurrentMap<String, Integer> colNameToColIdx;
+    private volatile long estimatedBytes;
+    private volatile long spilledBytes;
 
     /**
      * Constructor.
@@ -167,12 +224,23 @@ public class SQLTable implements WithKey {
      * @param key usually the key of the request
      */
     public SQLTable(String key) {
+        this(key, HEAP_BUDGET_BYTES, new File(Store.getDefaultRootPath(), SpillFile.SPILL_FOLDER));
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param key             usually the key of the request
+     * @param heapBudgetBytes rows beyond this heap footprint spill to disk, 0 to
+     *                        keep all rows in the heap
+     * @param spillFolder     where spill files are created
+     */
+    SQLTable(String key, long heapBudgetBytes, File spillFolder) {
         this.key = key;
-        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-        readLock = lock.readLock();
-        writeLock = lock.writeLock();
-        rows = new ArrayList<>();
-        rowKeyToIdx = new ConcurrentHashMap<>();
+        this.heapBudgetBytes = heapBudgetBytes;
+        this.spillFolder = spillFolder;
+        writeLock = new ReentrantLock();
+        rows = new Rows(new Column[0]);
         colNameToColIdx = new ConcurrentHashMap<>();
     }
 
@@ -243,8 +311,8 @@ public class SQLTable implements WithKey {
      * Sets the column metadata (names and types) as defined by the result-set's
      * metadata, and clears the table's rows. It does not change the table's key.
      * <p>
-     * This call needs to happen before {@link SQLTable#addRow(String, ResultSet)}
-     * can be called.
+     * This call needs to happen before {@link SQLTable#addRow(ResultSet)} can be
+     * called.
      * 
      * @param rs result-set in response to a SQL execution request
      * @throws SQLException could not access the result-set's metadata
@@ -257,19 +325,46 @@ public class SQLTable implements WithKey {
         }
         String[] names = new String[colCount];
         int[] types = new int[colCount];
-        Map<String, Integer> nameToIdx = new HashMap<>();
+        int[] precisions = new int[colCount];
         for (int i = 0; i < colCount; i++) {
             names[i] = metaData.getColumnName(i + 1);
             types[i] = metaData.getColumnType(i + 1);
+            precisions[i] = metaData.getPrecision(i + 1);
+        }
+        setColMetadata(names, types, precisions);
+    }
+
+    /**
+     * Sets the column metadata (names and types), and clears the table's rows. It
+     * does not change the table's key. Used for tables that are not the result of
+     * a query, the executor's report of a script's per statement outcomes.
+     * 
+     * @param names column names
+     * @param types column SQL types, as defined in {@link java.sql.Types}
+     */
+    public void setColMetadata(String[] names, int[] types) {
+        setColMetadata(names, types, new int[types != null ? types.length : 0]);
+    }
+
+    private void setColMetadata(String[] names, int[] types, int[] precisions) {
+        if (names == null || types == null || names.length == 0 || names.length != types.length) {
+            throw new IllegalArgumentException("no column metadata (names, types) were found");
+        }
+        Map<String, Integer> nameToIdx = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
             nameToIdx.put(names[i], i);
         }
         writeLock.lock();
         try {
-            colNames = names;
-            colTypes = types;
+            Column[] columns = new Column[types.length];
+            for (int i = 0; i < types.length; i++) {
+                columns[i] = Column.of(types[i], precisions[i]);
+            }
+            dropRows(new Rows(columns));
+            colNames = names.clone();
+            colTypes = types.clone();
             colNameToColIdx.clear();
             colNameToColIdx.putAll(nameToIdx);
-            lockFreeClearRows();
         }
         finally {
             writeLock.unlock();
@@ -277,37 +372,169 @@ public class SQLTable implements WithKey {
     }
 
     /**
-     * Table rows are added by this method. The row must not exist in the table,
-     * which is checked by method {@link SQLTable#containsRow(Row)}.
+     * Appends a row with the values of the result-set's current row. The row is
+     * identified by its index, there is no key to build or look up, and no check
+     * for duplicates, which keeps fetching cheap.
      * <p>
      * A call to {@link SQLTable#setColMetadata(ResultSet)} needs to happen before
      * rows can be added to the table through this method.
      * 
-     * @param rowKey the key for the row, usually a monotonic-incremental number
+     * @param rs result-set in response to a SQL execution request
+     * @throws SQLException could not access the result-set's data as defined by the
+     *                      metadata
+     */
+    public void addRow(ResultSet rs) throws SQLException {
+        addRow(null, rs);
+    }
+
+    /**
+     * Appends a row with the values of the result-set's current row, and an
+     * explicit key, which can later be looked up with
+     * {@link SQLTable#getRowIdx(String)}.
+     * 
+     * @param rowKey the key for the row, or null for the row's index
      * @param rs     result-set in response to a SQL execution request
      * @throws SQLException could not access the result-set's data as defined by the
      *                      metadata
      */
     public void addRow(String rowKey, ResultSet rs) throws SQLException {
+        if (colTypes == null) {
+            throw new IllegalArgumentException("column metadata (names, types) not defined");
+        }
+        append(rowKey, null, rs);
+    }
+
+    /**
+     * Appends a row with the values, one per column, in column order.
+     * 
+     * @param values the row's values
+     */
+    public void addRow(Object[] values) {
+        addRow((String) null, values);
+    }
+
+    /**
+     * Appends a row with the values, one per column, in column order, and an
+     * explicit key.
+     * 
+     * @param rowKey the key for the row, or null for the row's index
+     * @param values the row's values
+     */
+    public void addRow(String rowKey, Object[] values) {
         int[] types = colTypes;
         if (types == null) {
             throw new IllegalArgumentException("column metadata (names, types) not defined");
         }
-        Object[] values = new Object[types.length];
-        for (int i = 0; i < types.length; i++) {
-            values[i] = rs.getObject(i + 1);
+        if (values == null || values.length != types.length) {
+            throw new IllegalArgumentException(String.format("expected %d values", types.length));
+        }
+        try {
+            append(rowKey, values, null);
+        }
+        catch (SQLException e) {
+            throw new IllegalStateException(e); // not reading from a result-set
+        }
+    }
+
+    /**
+     * Values come from either the array, or the result-set's current row, which
+     * each column reads with the getter of its type.
+     */
+    private void append(String rowKey, Object[] values, ResultSet rs) throws SQLException {
+        writeLock.lock();
+        try {
+            Rows r = rows;
+            int rowIdx = r.size;
+            Column[] columns = r.columns;
+            long bytes = 0L;
+            for (int i = 0; i < columns.length; i++) {
+                while (rs != null ? !columns[i].read(rs, i + 1, rowIdx) : !columns[i].set(rowIdx, values[i])) {
+                    if (columns == r.columns) {
+                        columns = columns.clone();
+                    }
+                    columns[i] = columns[i].promote(r.spilledChunks << Column.CHUNK_BITS, rowIdx);
+                }
+                columns[i].addStats(rowIdx, r.stats[i]);
+                bytes += columns[i].getEstimatedBytes();
+            }
+            if (columns != r.columns) {
+                r.columns = columns;
+            }
+            if (rowKey != null || r.keys != null) {
+                bytes += addRowKey(r, rowIdx, rowKey);
+            }
+            estimatedBytes = bytes;
+            r.size = rowIdx + 1; // publishes the row
+            if ((rowIdx & Column.CHUNK_MASK) == Column.CHUNK_MASK && heapBudgetBytes > 0L && bytes > heapBudgetBytes) {
+                spill(r);
+            }
+        }
+        finally {
+            writeLock.unlock();
         }
-        Row row = new Row(this, rowKey, values);
-        if (!containsRow(row)) {
-            writeLock.lock();
+    }
+
+    private void spill(Rows r) {
+        int fullChunks = r.size >>> Column.CHUNK_BITS;
+        while (estimatedBytes > heapBudgetBytes && r.spilledChunks < fullChunks && !r.isSpillDisabled) {
+            int chunkIdx = r.spilledChunks;
+            Column[] columns = r.columns;
             try {
-                rows.add(row);
-                rowKeyToIdx.put(row.getKey(), rows.size() - 1);
+                if (r.spillFile == null) {
+                    r.spillFile = SpillFile.create(spillFolder, r);
+                    LOGGER.info("Table [{}] exceeds its heap budget, spilling to [{}]", key, r.spillFile);
+                }
+                SpillFile.Chunk chunk = r.spillFile.write(columns, chunkIdx << Column.CHUNK_BITS, Column.CHUNK_SIZE);
+                SpillFile.Chunk[] spilled = r.spilled;
+                if (chunkIdx < spilled.length) {
+                    spilled[chunkIdx] = chunk; // published when the columns drop the chunk
+                }
+                else {
+                    spilled = Arrays.copyOf(spilled, Math.max(16, spilled.length * 2));
+                    spilled[chunkIdx] = chunk;
+                    r.spilled = spilled;
+                }
+                long bytes = 0L;
+                for (Column column : columns) {
+                    column.dropChunk(chunkIdx);
+                    bytes += column.getEstimatedBytes();
+                }
+                Column keys = r.keys;
+                estimatedBytes = bytes + (keys != null ? keys.getEstimatedBytes() : 0L);
+                spilledBytes = r.spillFile.size();
+                r.spilledChunks++;
+            }
+            catch (IOException e) {
+                LOGGER.error("Could not spill table [{}], rows stay in the heap: {}", key, e.getMessage());
+                r.isSpillDisabled = true;
             }
-            finally {
-                writeLock.unlock();
+        }
+    }
+
+    private void dropRows(Rows newRows) {
+        SpillFile spillFile = rows.spillFile;
+        rows = newRows;
+        estimatedBytes = 0L;
+        spilledBytes = 0L;
+        if (spillFile != null) {
+            spillFile.close(); // chunks still being read remain mapped
+        }
+    }
+
+    private static long addRowKey(Rows r, int rowIdx, String rowKey) {
+        Column keys = r.keys;
+        if (keys == null) {
+            keys = new Column.StringColumn(Types.VARCHAR);
+            for (int i = 0; i < rowIdx; i++) {
+                keys.set(i, null);
             }
+            r.keys = keys;
+        }
+        keys.set(rowIdx, rowKey);
+        if (r.keyToIdx != null) {
+            r.keyToIdx.put(rowKey != null ? rowKey : String.valueOf(rowIdx), rowIdx);
         }
+        return keys.getEstimatedBytes();
     }
 
     /**
@@ -321,52 +548,107 @@ public class SQLTable implements WithKey {
      * @return number of rows
      */
     public int size() {
-        readLock.lock();
+        return rows.size;
+    }
+
+    /**
+     * @return rough estimate of the heap used by the table's rows, in bytes, rows
+     *         spilled to disk are not included
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return size of the rows spilled to disk, in bytes, 0 if none have
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Statistics are maintained as rows are added, a snapshot is taken under the
+     * writer's lock, which is held briefly.
+     * 
+     * @param colIdx index of the column
+     * @return the statistics of the column's values, as of the call
+     */
+    public ColumnStats getColStats(int colIdx) {
+        writeLock.lock();
         try {
-            return rows.size();
+            Rows r = rows;
+            Objects.checkIndex(colIdx, r.stats.length);
+            return r.stats[colIdx].snapshot(rowIdx -> valueAt(r, rowIdx, colIdx));
         }
         finally {
-            readLock.unlock();
+            writeLock.unlock();
         }
     }
 
     /**
-     * Clears the table's column metadata (names, types) and rows.
+     * Clears the table's column metadata (names, types) and rows. The rows are
+     * dropped, not wiped, readers that are still reading them are not affected.
      */
     public void clear() {
         writeLock.lock();
         try {
+            dropRows(new Rows(new Column[0]));
             colNames = null;
             colTypes = null;
             colNameToColIdx.clear();
-            lockFreeClearRows();
         }
         finally {
             writeLock.unlock();
         }
     }
 
-    private void lockFreeClearRows() {
-        rows.forEach(row -> {
-            Arrays.fill(row.values, null);
-            row.toString.set(null);
-        });
-        rows.clear();
-        rowKeyToIdx.clear();
-    }
-
     /**
+     * Rows added without a key are found by their index as a string. The index
+     * from keys to rows is built on the first call.
+     * 
      * @param rowKey row key
      * @return the index (array offset) of the row within the table, or -1 rowKey is
-     *         null or column metadata (names, types) have not been set, or the
-     *         rowKey is not found in the table
+     *         null or the rowKey is not found in the table
      */
     public int getRowIdx(String rowKey) {
         if (rowKey == null) {
             return -1;
         }
-        Integer i = rowKeyToIdx.get(rowKey);
-        return i != null ? i.intValue() : -1;
+        writeLock.lock();
+        try {
+            Rows r = rows;
+            if (r.keys == null) {
+                return implicitRowIdx(rowKey, r.size);
+            }
+            if (r.keyToIdx == null) {
+                int size = r.size;
+                r.keyToIdx = new HashMap<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    r.keyToIdx.put(rowKeyAt(r, i), i);
+                }
+            }
+            Integer i = r.keyToIdx.get(rowKey);
+            return i != null ? i.intValue() : -1;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static int implicitRowIdx(String rowKey, int size) {
+        try {
+            int idx = Integer.parseInt(rowKey);
+            return idx >= 0 && idx < size && String.valueOf(idx).equals(rowKey) ? idx : -1;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String rowKeyAt(Rows r, int rowIdx) {
+        Column keys = r.keys;
+        Object rowKey = keys != null ? keys.get(rowIdx) : null;
+        return rowKey != null ? (String) rowKey : String.valueOf(rowIdx);
     }
 
     /**
@@ -391,13 +673,9 @@ public class SQLTable implements WithKey {
      * @return the row at offset i
      */
     public Row getRow(int idx) {
-        readLock.lock();
-        try {
-            return rows.get(idx);
-        }
-        finally {
-            readLock.unlock();
-        }
+        Rows r = rows;
+        Objects.checkIndex(idx, r.size);
+        return new Row(this, rowKeyAt(r, idx), valuesAt(r, idx));
     }
 
     /**
@@ -406,7 +684,137 @@ public class SQLTable implements WithKey {
      * @return the value in the table's cell at rowIdx, colIdx
      */
     public Object getValueAt(int rowIdx, int colIdx) {
-        Row row = getRow(rowIdx);
-        return row != null ? row.getValueAt(colIdx) : null;
+        Rows r = rows;
+        Objects.checkIndex(rowIdx, r.size);
+        return valueAt(r, rowIdx, colIdx);
+    }
+
+    private static Object valueAt(Rows r, int rowIdx, int colIdx) {
+        Object value = r.columns[colIdx].get(rowIdx);
+        if (value == Column.SPILLED) {
+            value = r.spilled[rowIdx >>> Column.CHUNK_BITS].get(rowIdx & Column.CHUNK_MASK, colIdx);
+        }
+        return value;
+    }
+
+    /**
+     * Rows are in the heap, unless they have been spilled, in which case their
+     * chunks are loaded from the spill file into physical memory, so that they
+     * can be read without waiting on the disk. Meant to be called in the
+     * background, ahead of reading the rows, for instance those around the rows
+     * on display.
+     * 
+     * @param rowIdxs indexes of the rows, in any order
+     */
+    public void prefetch(int[] rowIdxs) {
+        SpillFile.Chunk[] spilled = rows.spilled;
+        int lastChunkIdx = -1;
+        for (int rowIdx : rowIdxs) {
+            int chunkIdx = rowIdx >>> Column.CHUNK_BITS;
+            if (chunkIdx != lastChunkIdx && chunkIdx < spilled.length && spilled[chunkIdx] != null) {
+                spilled[chunkIdx].load();
+            }
+            lastChunkIdx = chunkIdx;
+        }
+    }
+
+    /**
+     * Sorts the rows present at the time of the call by the values of a column,
+     * without moving them, in parallel. Numeric, timestamp, boolean and
+     * dictionary encoded string columns are sorted by primitive keys, other
+     * columns, and columns with rows spilled to disk, by their values. The sort
+     * is stable, and nulls come last in ascending order, first in descending
+     * order. Rows may be added while sorting.
+     * 
+     * @param colIdx      index of the column
+     * @param isAscending sort order
+     * @return the indexes of the rows, in order
+     */
+    public int[] sortRows(int colIdx, boolean isAscending) {
+        Rows r = rows;
+        int size = r.size;
+        Column column = r.columns[colIdx];
+        IntPredicate isNull = column.nullRows();
+        IntToLongFunction keys = column.sortKeys();
+        SpillFile.Chunk[] spilled = r.spilled; // read after the keys, chunks are dropped after they are spilled
+        if (keys != null && (spilled.length == 0 || spilled[0] == null)) {
+            return RowOrder.sort(size, isNull, keys, isAscending);
+        }
+        return RowOrder.sort(size, rowIdx -> valueAt(r, rowIdx, colIdx), isAscending);
+    }
+
+    private static Object[] valuesAt(Rows r, int rowIdx) {
+        Column[] columns = r.columns;
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = columns[i].get(rowIdx);
+            if (values[i] == Column.SPILLED) {
+                r.spilled[rowIdx >>> Column.CHUNK_BITS].getRow(rowIdx & Column.CHUNK_MASK, values);
+                break;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Filters rows by the values of a column, or of any column, scanning ranges
+     * of rows in parallel. Dictionary encoded string columns test each distinct
+     * value once. Rows may be added while filtering.
+     * 
+     * @param filter  the filter
+     * @param colIdx  index of the column, or -1 to match rows where any column
+     *                matches
+     * @param rowIdxs indexes of the rows to filter, in order, for instance the
+     *                rows sorted, or null for the rows present at the time of the
+     *                call in insertion order
+     * @return the indexes of the rows that match, in order
+     */
+    public int[] filterRows(RowFilter filter, int colIdx, int[] rowIdxs) {
+        Rows r = rows;
+        int size = rowIdxs != null ? rowIdxs.length : r.size;
+        Column[] columns = r.columns;
+        int from = colIdx == -1 ? 0 : colIdx;
+        int to = colIdx == -1 ? columns.length : colIdx + 1;
+        IntPredicate[] matches = new IntPredicate[to - from];
+        for (int i = from; i < to; i++) {
+            int c = i;
+            IntPredicate m = columns[c].matchRows(filter::test);
+            SpillFile.Chunk[] spilled = r.spilled; // read after the rows are matched, as in sortRows
+            if (m == null || spilled.length > 0 && spilled[0] != null) {
+                m = rowIdx -> filter.test(valueAt(r, rowIdx, c));
+            }
+            matches[i - from] = m;
+        }
+        return RowFilter.select(size, rowIdxs, rowIdx -> {
+            for (IntPredicate m : matches) {
+                if (m.test(rowIdx)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Deep copy, the copy's rows have their own values arrays, so that clearing
+     * either table does not affect the other. Row keys are kept.
+     * 
+     * @param key the copy's key
+     * @return a copy of the table, with the key
+     */
+    SQLTable copy(String key) {
+        SQLTable copy = new SQLTable(key);
+        String[] names = colNames;
+        int[] types = colTypes;
+        if (names != null && types != null) {
+            copy.setColMetadata(names, types);
+            Rows r = rows;
+            int size = r.size;
+            Column keys = r.keys;
+            for (int i = 0; i < size; i++) {
+                copy.addRow(keys != null ? (String) keys.get(i) : null, valuesAt(r, i));
+            }
+        }
+        return copy;
     }
 }
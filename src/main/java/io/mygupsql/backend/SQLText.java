@@ -0,0 +1,553 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+package io.mygupsql.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+
+/**
+ * Lexical helpers over SQL text. Comments, string literals and quoted
+ * identifiers are skipped where they matter, there is no actual parsing.
+ */
+final class SQLText {
+
+    private static final Set<String> READ_KEYWORDS = Set.of("select", "with", "show", "values", "table", "explain");
+    private static final Set<String> PLAIN_READ_KEYWORDS = Set.of("select", "show", "values", "table");
+    private static final List<String> WRITE_KEYWORDS = List.of("insert", "update", "delete", "merge", "share", "nextval",
+        "setval");
+    private static final Set<String> BATCHABLE_KEYWORDS = Set.of("insert", "update", "delete");
+    private static final Set<String> SINGLE_TABLE_REJECT_KEYWORDS = Set.of("join", "union", "intersect", "except",
+        "group", "having", "distinct", "order", "limit", "offset", "fetch");
+
+    /**
+     * @param sql SQL text
+     * @return true if the first keyword, ignoring leading white space, comments
+     *         and parentheses, denotes a query that only reads data
+     */
+    static boolean isReadQuery(String sql) {
+        String keyword = firstKeyword(sql);
+        return keyword != null && READ_KEYWORDS.contains(keyword);
+    }
+
+    /**
+     * @param sql SQL text
+     * @return true if the text is a plain query, whose first keyword is select,
+     *         show, values or table, which contains none of the keywords that
+     *         write or lock, such as in writable common table expressions,
+     *         select ... for update, or calls to nextval
+     */
+    static boolean isPlainReadQuery(String sql) {
+        String keyword = firstKeyword(sql);
+        if (keyword == null || !PLAIN_READ_KEYWORDS.contains(keyword)) {
+            return false;
+        }
+        for (String writeKeyword : WRITE_KEYWORDS) {
+            if (containsKeyword(sql, writeKeyword)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param sql SQL text
+     * @return true if the statement modifies data and returns no results, an
+     *         insert, update or delete without a returning clause, which can be
+     *         sent to the database in a JDBC batch
+     */
+    static boolean isBatchable(String sql) {
+        String keyword = firstKeyword(sql);
+        return keyword != null && BATCHABLE_KEYWORDS.contains(keyword) && !containsKeyword(sql, "returning");
+    }
+
+    /**
+     * Splits a script into its statements, which are separated by semicolons.
+     * Semicolons within comments, string literals, quoted identifiers and dollar
+     * quoted strings do not separate statements. Statements are trimmed, and
+     * those that are only white space or comments are dropped.
+     * 
+     * @param script SQL text
+     * @return the statements, without the separating semicolons
+     */
+    static List<String> splitStatements(String script) {
+        List<String> statements = new ArrayList<>();
+        int len = script.length();
+        int start = 0;
+        int i = 0;
+        while (i <= len) {
+            if (i == len || script.charAt(i) == ';') {
+                String statement = script.substring(start, i).trim();
+                if (skipBlanks(statement, 0) < statement.length()) {
+                    statements.add(statement);
+                }
+                start = ++i;
+                continue;
+            }
+            int next = skipToken(script, i);
+            i = next > i ? next : i + 1;
+        }
+        return statements;
+    }
+
+    /**
+     * Normalises the text so that statements that differ only in white space,
+     * comments, or trailing semicolons are equal. String literals and quoted
+     * identifiers are kept as they are.
+     * 
+     * @param sql SQL text
+     * @return the text without comments, with runs of white space collapsed to a
+     *         single space, trimmed, and without trailing semicolons
+     */
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        int len = sql.length();
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            int next = skipToken(sql, i);
+            if (next > i) {
+                if (c == '-' || c == '/') {
+                    appendSpace(sb); // comment
+                }
+                else {
+                    sb.append(sql, i, next);
+                }
+                i = next;
+            }
+            else if (Character.isWhitespace(c)) {
+                appendSpace(sb);
+                i++;
+            }
+            else {
+                sb.append(c);
+                i++;
+            }
+        }
+        int end = sb.length();
+        while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        return sb.substring(0, end);
+    }
+
+    private static void appendSpace(StringBuilder sb) {
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+            sb.append(' ');
+        }
+    }
+
+    /**
+     * @param sql     SQL text
+     * @param keyword lower case keyword
+     * @return true if the keyword appears in the text as a whole word, outside of
+     *         comments, string literals and quoted identifiers
+     */
+    static boolean containsKeyword(String sql, String keyword) {
+        int len = sql.length();
+        int i = 0;
+        while (i < len) {
+            int next = skipToken(sql, i);
+            if (next > i) {
+                i = next;
+            }
+            else if (Character.isLetter(sql.charAt(i)) || sql.charAt(i) == '_') {
+                int start = i;
+                while (i < len && isIdentifierPart(sql, i)) {
+                    i++;
+                }
+                if (sql.substring(start, i).equalsIgnoreCase(keyword)) {
+                    return true;
+                }
+            }
+            else {
+                i++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param sql SQL text
+     * @return the first keyword, lower case, ignoring leading white space,
+     *         comments and parentheses, or null if there is none
+     */
+    static String firstKeyword(String sql) {
+        if (sql == null) {
+            return null;
+        }
+        int len = sql.length();
+        int i = skipBlanks(sql, 0);
+        while (i < len && sql.charAt(i) == '(') {
+            i = skipBlanks(sql, i + 1);
+        }
+        int start = i;
+        while (i < len && Character.isLetter(sql.charAt(i))) {
+            i++;
+        }
+        return i > start ? sql.substring(start, i).toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * Recognises queries that select from a single table, or view, and whose rows
+     * are thus identified by the table's primary key: a select with a from
+     * clause naming one table, optionally aliased, and optionally a where clause,
+     * without joins, grouping, set operations, distinct, order, limit or offset.
+     * Unquoted names are folded to lower case, as the database does.
+     *
+     * @param sql SQL text
+     * @return the schema, null if not qualified, and the name of the table, or
+     *         null if the query does not select from a single table
+     */
+    static String[] singleTableName(String sql) {
+        if (!"select".equals(firstKeyword(sql))) {
+            return null;
+        }
+        List<String> tokens = topLevelTokens(sql);
+        int from = tokens.indexOf("from");
+        if (from == -1) {
+            return null;
+        }
+        for (String token : tokens) {
+            if (SINGLE_TABLE_REJECT_KEYWORDS.contains(token)) {
+                return null;
+            }
+        }
+        int i = from + 1;
+        List<String> name = new ArrayList<>(2);
+        while (i < tokens.size() && isName(tokens.get(i))) {
+            name.add(unquote(tokens.get(i++)));
+            if (i < tokens.size() && tokens.get(i).equals(".")) {
+                i++;
+            }
+            else {
+                break;
+            }
+        }
+        if (name.isEmpty() || name.size() > 2) {
+            return null;
+        }
+        if (i < tokens.size() && tokens.get(i).equals("as")) {
+            i++;
+        }
+        if (i < tokens.size() && !tokens.get(i).equals("where") && isName(tokens.get(i))) {
+            i++; // alias
+        }
+        if (i < tokens.size() && !tokens.get(i).equals("where")) {
+            return null;
+        }
+        return name.size() == 2 ? new String[]{name.get(0), name.get(1)} : new String[]{null, name.get(0)};
+    }
+
+    /**
+     * @return the words, lower case, quoted identifiers and literals, as they
+     *         are, and other characters, that are not within parentheses,
+     *         comments excluded. Parenthesised text is a single "(" token
+     */
+    private static List<String> topLevelTokens(String sql) {
+        List<String> tokens = new ArrayList<>();
+        int len = sql.length();
+        int depth = 0;
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            int next = skipToken(sql, i);
+            if (next > i) {
+                if (depth == 0 && c != '-' && c != '/') {
+                    tokens.add(sql.substring(i, next));
+                }
+                i = next;
+            }
+            else if (c == '(' || c == ')') {
+                if (c == '(' && depth++ == 0) {
+                    tokens.add("(");
+                }
+                else if (c == ')') {
+                    depth--;
+                }
+                i++;
+            }
+            else if (isIdentifierPart(sql, i)) {
+                int start = i;
+                while (i < len && isIdentifierPart(sql, i)) {
+                    i++;
+                }
+                if (depth == 0) {
+                    tokens.add(sql.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+            }
+            else {
+                if (depth == 0 && !Character.isWhitespace(c) && c != ';') {
+                    tokens.add(String.valueOf(c));
+                }
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isName(String token) {
+        char c = token.charAt(0);
+        return c == '"' || Character.isLetter(c) || c == '_';
+    }
+
+    private static String unquote(String token) {
+        if (token.length() > 1 && token.charAt(0) == '"') {
+            return token.substring(1, token.length() - 1).replace("\"\"", "\"");
+        }
+        return token;
+    }
+
+    /**
+     * @param name an identifier
+     * @return the identifier double quoted, so that it keeps its case
+     */
+    static String quote(String name) {
+        return '"' + name.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * @param sql   SQL text
+     * @param start offset to start from
+     * @return the offset of the first character, starting from start, that is
+     *         not white space or part of a comment
+     */
+    static int skipBlanks(String sql, int start) {
+        int len = sql.length();
+        int i = start;
+        while (i < len) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            }
+            else if (c == '-' && i + 1 < len && sql.charAt(i + 1) == '-') {
+                i = skipLineComment(sql, i);
+            }
+            else if (c == '/' && i + 1 < len && sql.charAt(i + 1) == '*') {
+                i = skipBlockComment(sql, i);
+            }
+            else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Translates numbered parameter placeholders ($1, $2, ...) into JDBC
+     * placeholders (?), which are positional, and lays out the parameter values
+     * in the order the placeholders appear in the text. The same numbered
+     * placeholder may appear many times. Text that already uses JDBC
+     * placeholders is returned as is, with the parameter values in the same
+     * order. Placeholders within string literals, quoted identifiers and
+     * comments are ignored. The jsonb operators ?| and ?&amp; are escaped as ??|
+     * and ??&amp;, which the driver sends as ?| and ?&amp;.
+     * 
+     * @param sql         SQL text
+     * @param params      parameter values, $n refers to params[n-1]
+     * @param boundParams receives the parameter values, in JDBC placeholder order
+     * @return the SQL text with JDBC placeholders
+     * @throws IllegalArgumentException when a placeholder has no value, or both
+     *                                  kinds of placeholder are used
+     */
+    static String toJdbcPlaceholders(String sql, List<?> params, List<Object> boundParams) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        int len = sql.length();
+        int jdbcCount = 0;
+        int numberedCount = 0;
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            int next = skipToken(sql, i);
+            if (next > i) {
+                sb.append(sql, i, next);
+                i = next;
+            }
+            else if (c == '?' && i + 1 < len && sql.charAt(i + 1) == '?') {
+                sb.append("??"); // the driver's escape for a literal ?
+                i += 2;
+            }
+            else if (c == '?' && isJsonbOperator(sql, i)) {
+                sb.append("??"); // the driver would take a bare ? for a placeholder
+                i++;
+            }
+            else if (c == '?') {
+                jdbcCount++;
+                sb.append(c);
+                i++;
+            }
+            else if (c == '$' && i + 1 < len && Character.isDigit(sql.charAt(i + 1)) && !isIdentifierPart(sql, i - 1)) {
+                int end = i + 1;
+                while (end < len && Character.isDigit(sql.charAt(end))) {
+                    end++;
+                }
+                int n = Integer.parseInt(sql.substring(i + 1, end));
+                if (n < 1 || n > params.size()) {
+                    throw new IllegalArgumentException(String.format("no value for parameter $%d, there are %d", n,
+                        params.size()));
+                }
+                boundParams.add(params.get(n - 1));
+                numberedCount++;
+                sb.append('?');
+                i = end;
+            }
+            else {
+                sb.append(c);
+                i++;
+            }
+        }
+        if (jdbcCount > 0 && numberedCount > 0) {
+            throw new IllegalArgumentException("cannot mix ? and $n parameter placeholders");
+        }
+        if (numberedCount == 0) {
+            if (jdbcCount != params.size()) {
+                throw new IllegalArgumentException(String.format("expected %d parameters, got %d", jdbcCount,
+                    params.size()));
+            }
+            boundParams.addAll(params);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Escapes each ? of text without parameters as ??, which the driver sends as
+     * a literal ?, so that the text can be prepared, operators such as ?| are
+     * not taken for placeholders. Text within string literals, quoted
+     * identifiers and comments is left as is.
+     * 
+     * @param sql SQL text, without parameter placeholders
+     * @return the SQL text to prepare
+     */
+    static String escapeJdbcPlaceholders(String sql) {
+        if (sql.indexOf('?') < 0) {
+            return sql;
+        }
+        StringBuilder sb = new StringBuilder(sql.length() + 8);
+        int len = sql.length();
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            int next = skipToken(sql, i);
+            if (next > i) {
+                sb.append(sql, i, next);
+                i = next;
+            }
+            else {
+                if (c == '?') {
+                    sb.append('?'); // doubled
+                }
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param sql   SQL text
+     * @param start offset to start from
+     * @return if a comment, string literal or quoted identifier starts at offset
+     *         start, the offset after its end, otherwise start
+     */
+    static int skipToken(String sql, int start) {
+        int len = sql.length();
+        char c = sql.charAt(start);
+        char next = start + 1 < len ? sql.charAt(start + 1) : '\0';
+        if (c == '-' && next == '-') {
+            return skipLineComment(sql, start);
+        }
+        if (c == '/' && next == '*') {
+            return skipBlockComment(sql, start);
+        }
+        if (c == '\'' || c == '"') {
+            boolean isEscapeString = start > 0 && c == '\'' && Character.toUpperCase(sql.charAt(start - 1)) == 'E'
+                && (start < 2 || !Character.isLetterOrDigit(sql.charAt(start - 2)));
+            return skipQuoted(sql, start, c, isEscapeString);
+        }
+        if (c == '$' && (start == 0 || !Character.isLetterOrDigit(sql.charAt(start - 1)))) {
+            // dollar quoted string, $$...$$ or $tag$...$tag$
+            int tagEnd = start + 1;
+            while (tagEnd < len && (Character.isLetterOrDigit(sql.charAt(tagEnd)) || sql.charAt(tagEnd) == '_')) {
+                tagEnd++;
+            }
+            if (tagEnd < len && sql.charAt(tagEnd) == '$' && !Character.isDigit(next)) {
+                String tag = sql.substring(start, tagEnd + 1);
+                int end = sql.indexOf(tag, tagEnd + 1);
+                return end != -1 ? end + tag.length() : len;
+            }
+        }
+        return start;
+    }
+
+    private static int skipQuoted(String sql, int start, char quote, boolean isEscapeString) {
+        int len = sql.length();
+        int i = start + 1;
+        while (i < len) {
+            char c = sql.charAt(i);
+            if (isEscapeString && c == '\\') {
+                i += 2;
+            }
+            else if (c == quote) {
+                if (i + 1 < len && sql.charAt(i + 1) == quote) {
+                    i += 2; // escaped quote
+                }
+                else {
+                    return i + 1;
+                }
+            }
+            else {
+                i++;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * ?| and ?&amp; are jsonb operators, but the driver parses any bare ? as a
+     * placeholder, only ?? is taken as a literal ?.
+     */
+    private static boolean isJsonbOperator(String sql, int i) {
+        if (i + 1 < sql.length()) {
+            char next = sql.charAt(i + 1);
+            return next == '|' || next == '&';
+        }
+        return false;
+    }
+
+    private static boolean isIdentifierPart(String sql, int i) {
+        if (i < 0) {
+            return false;
+        }
+        char c = sql.charAt(i);
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static int skipLineComment(String sql, int start) {
+        int end = sql.indexOf('\n', start + 2);
+        return end != -1 ? end + 1 : sql.length();
+    }
+
+    private static int skipBlockComment(String sql, int start) {
+        int end = sql.indexOf("*/", start + 2);
+        return end != -1 ? end + 2 : sql.length();
+    }
+
+    private SQLText() {
+        throw new IllegalStateException("not meant to be instantiated");
+    }
+}
@@ -0,0 +1,294 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Temporary file where a {@link SQLTable} writes chunks of rows that no longer
+ * fit in its heap budget. Each chunk is written once, in a compact binary row
+ * format, and then memory mapped for reading:
+ * <ul>
+ * <li>the offset of each row within the chunk, as an int.</li>
+ * <li>the rows, each a null bitmap of one bit per column, followed by the
+ * values of the columns that are not null, as written by
+ * {@link Column#writeValue(int, Out)}.</li>
+ * </ul>
+ * The file is deleted when it is closed, when the table that owns it is
+ * garbage collected, or at the latest when the process exits, unless the
+ * platform allows deleting open files, in which case it is deleted as soon as
+ * it is opened. Chunks that are still referenced remain readable after the
+ * file is closed.
+ */
+final class SpillFile implements Closeable {
+
+    static final String SPILL_FOLDER = "spill";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillFile.class);
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Creates a spill file in a folder, which is created if it does not exist.
+     *
+     * @param folder where the file is created
+     * @param owner  the file is closed once the owner is garbage collected
+     * @return the spill file
+     * @throws IOException the file could not be created
+     */
+    static SpillFile create(File folder, Object owner) throws IOException {
+        Path dir = Files.createDirectories(folder.toPath());
+        Path path = Files.createTempFile(dir, "table-", ".spill");
+        path.toFile().deleteOnExit();
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.DELETE_ON_CLOSE);
+        return new SpillFile(path, channel, owner);
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Cleaner.Cleanable cleanable;
+    private final Out out;
+    private long size;
+
+    private SpillFile(Path path, FileChannel channel, Object owner) {
+        this.path = path;
+        this.channel = channel;
+        out = new Out();
+        cleanable = CLEANER.register(owner, () -> closeChannel(path, channel));
+    }
+
+    /**
+     * @return the size of the file, in bytes
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Writes rows to the end of the file, and maps them.
+     *
+     * @param columns  the columns holding the rows
+     * @param fromRow  index of the first row
+     * @param rowCount number of rows
+     * @return the chunk, readable
+     * @throws IOException the chunk could not be written or mapped
+     */
+    Chunk write(Column[] columns, int fromRow, int rowCount) throws IOException {
+        int nullBytes = (columns.length + 7) >>> 3;
+        out.clear();
+        for (int i = 0; i < rowCount; i++) {
+            out.putInt(0); // row offsets, set below
+        }
+        for (int i = 0; i < rowCount; i++) {
+            int rowIdx = fromRow + i;
+            out.buf.putInt(i * Integer.BYTES, out.buf.position());
+            int nullMapPos = out.buf.position();
+            for (int b = 0; b < nullBytes; b++) {
+                out.put((byte) 0);
+            }
+            for (int c = 0; c < columns.length; c++) {
+                if (columns[c].isNull(rowIdx)) {
+                    int pos = nullMapPos + (c >>> 3);
+                    out.buf.put(pos, (byte) (out.buf.get(pos) | (1 << (c & 7))));
+                }
+                else {
+                    columns[c].writeValue(rowIdx, out);
+                }
+            }
+        }
+        ByteBuffer buf = out.buf.flip();
+        long position = size;
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, size, position - size);
+        size = position;
+        Column[] codecs = new Column[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            codecs[c] = columns[c].codec();
+        }
+        return new Chunk(codecs, mapped);
+    }
+
+    @Override
+    public void close() {
+        cleanable.clean();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%d bytes)", path, size);
+    }
+
+    private static void closeChannel(Path path, FileChannel channel) {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            LOGGER.warn("Could not delete spill file [{}]: {}", path, e.getMessage());
+        }
+    }
+
+    static String getString(ByteBuffer in) {
+        return new String(getBytes(in), StandardCharsets.UTF_8);
+    }
+
+    static byte[] getBytes(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+
+    static void skipBytes(ByteBuffer in) {
+        int len = in.getInt();
+        in.position(in.position() + len);
+    }
+
+    /**
+     * A chunk of rows, mapped from the file. Reads do not change its state, so
+     * they can happen concurrently.
+     */
+    static final class Chunk {
+
+        private final Column[] codecs;
+        private final MappedByteBuffer rows;
+
+        private Chunk(Column[] codecs, MappedByteBuffer rows) {
+            this.codecs = codecs;
+            this.rows = rows;
+        }
+
+        /**
+         * @param i      index of the row within the chunk
+         * @param colIdx index of the column
+         * @return the value
+         */
+        Object get(int i, int colIdx) {
+            ByteBuffer in = rows.duplicate();
+            int start = in.getInt(i * Integer.BYTES);
+            if (isNull(in, start, colIdx)) {
+                return null;
+            }
+            in.position(start + ((codecs.length + 7) >>> 3));
+            for (int c = 0; c < colIdx; c++) {
+                if (!isNull(in, start, c)) {
+                    codecs[c].skipValue(in);
+                }
+            }
+            return codecs[colIdx].readValue(in);
+        }
+
+        /**
+         * @param i      index of the row within the chunk
+         * @param values receives the values, one per column
+         */
+        void getRow(int i, Object[] values) {
+            ByteBuffer in = rows.duplicate();
+            int start = in.getInt(i * Integer.BYTES);
+            in.position(start + ((codecs.length + 7) >>> 3));
+            for (int c = 0; c < codecs.length; c++) {
+                values[c] = isNull(in, start, c) ? null : codecs[c].readValue(in);
+            }
+        }
+
+        /**
+         * Loads the chunk into physical memory, if it is not already, so that
+         * reading it does not fault on each page.
+         */
+        void load() {
+            if (!rows.isLoaded()) {
+                rows.load();
+            }
+        }
+
+        private static boolean isNull(ByteBuffer in, int start, int colIdx) {
+            return (in.get(start + (colIdx >>> 3)) & (1 << (colIdx & 7))) != 0;
+        }
+    }
+
+    /**
+     * Growable buffer the rows of a chunk are written into.
+     */
+    static final class Out {
+
+        private static final int INITIAL_CAPACITY = 64 * 1024;
+
+        private ByteBuffer buf = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+        void put(byte value) {
+            ensure(1);
+            buf.put(value);
+        }
+
+        void putInt(int value) {
+            ensure(Integer.BYTES);
+            buf.putInt(value);
+        }
+
+        void putLong(long value) {
+            ensure(Long.BYTES);
+            buf.putLong(value);
+        }
+
+        void putDouble(double value) {
+            ensure(Double.BYTES);
+            buf.putDouble(value);
+        }
+
+        void putString(String value) {
+            putBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void putBytes(byte[] value) {
+            ensure(Integer.BYTES + value.length);
+            buf.putInt(value.length);
+            buf.put(value);
+        }
+
+        private void clear() {
+            buf.clear();
+            if (buf.capacity() > INITIAL_CAPACITY * 64) {
+                buf = ByteBuffer.allocate(INITIAL_CAPACITY); // do not hold on to outliers
+            }
+        }
+
+        private void ensure(int bytes) {
+            if (buf.remaining() < bytes) {
+                int capacity = Math.max(buf.capacity() * 2, buf.position() + bytes);
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                buf.flip();
+                grown.put(buf);
+                buf = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+package io.mygupsql.backend;
+
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Access to virtual threads. This is the Java 11 version of the class, where
+ * virtual threads are not supported. The multi-release jar carries a Java 21
+ * version under META-INF/versions/21, which is picked up by the JVM when
+ * available.
+ */
+final class VirtualThreads {
+
+    /**
+     * @return true if the running JVM supports virtual threads
+     */
+    static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     * 
+     * @param name prefix for the name of the threads
+     * @return the executor
+     * @throws UnsupportedOperationException virtual threads are not supported
+     */
+    static ExecutorService newThreadPerTaskExecutor(String name) {
+        throw new UnsupportedOperationException("virtual threads require Java 21");
+    }
+
+    private VirtualThreads() {
+        throw new IllegalStateException("not meant to be instantiated");
+    }
+}
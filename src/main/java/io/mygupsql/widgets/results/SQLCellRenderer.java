@@ -18,9 +18,23 @@ package io.mygupsql.widgets.results;
 
 import java.awt.Color;
 import java.awt.Component;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import javax.swing.JTable;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
 
 import io.mygupsql.GTk;
 import io.mygupsql.backend.SQLExecutor;
@@ -35,33 +49,187 @@ import io.mygupsql.widgets.CellRenderer;
  * Column metadata are accessed through a {@link SQLTable} supplier. The table
  * is built by a {@link SQLExecutor} and thus it will be null until then SQL
  * query execution is started.
- * 
+ * <p>
+ * Each column's colour and text formatter are resolved once per table.
+ * Timestamps are formatted from their epoch time, through a formatter, and
+ * doubles with no fraction from their integral value, with the same text as
+ * their toString. Text of
+ * values that are costly to format, such as timestamps and doubles, is cached
+ * by cell, in a fixed size direct mapped cache that holds the cells in view,
+ * so that repainting them, as the view scrolls, does not format them again.
+ * The cache is cleared when the rows on display change, including when the
+ * rows of a page arrive, it is to be registered as a listener of the table
+ * model.
+ *
  * @see SQLType
  */
-class SQLCellRenderer extends CellRenderer {
+class SQLCellRenderer extends CellRenderer implements TableModelListener {
 
     private static final long serialVersionUID = 1L;
+    private static final int CACHE_SIZE = 1 << 13; // cells, a power of two
+    private static final long NO_CELL = -1L;
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER = new DateTimeFormatterBuilder() // as Timestamp
+        .appendPattern("uuuu-MM-dd HH:mm:ss")
+        .appendFraction(ChronoField.NANO_OF_SECOND, 1, 9, true)
+        .toFormatter();
+
+    /**
+     * How the values of a column are shown.
+     */
+    private static final class ColFormat {
+
+        private final Color color;
+        private final boolean isCached;
+        private final Function<Object, String> formatter;
+
+        private ColFormat(int sqlType) {
+            color = SQLType.resolveColor(sqlType);
+            isCached = isCostlyToFormat(sqlType);
+            formatter = formatterOf(sqlType);
+        }
+
+        private static Function<Object, String> formatterOf(int sqlType) {
+            switch (sqlType) {
+                case Types.TIMESTAMP:
+                case Types.TIMESTAMP_WITH_TIMEZONE:
+                    ZoneRules zoneRules = ZoneId.systemDefault().getRules();
+                    return value -> value instanceof Timestamp
+                        ? formatTimestamp((Timestamp) value, zoneRules) : value.toString();
+
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                case Types.REAL:
+                    return value -> value instanceof Double || value instanceof Float
+                        ? formatDouble(((Number) value).doubleValue(), value) : value.toString();
+
+                default:
+                    return Object::toString;
+            }
+        }
+
+        private static boolean isCostlyToFormat(int sqlType) {
+            switch (sqlType) {
+                case Types.BOOLEAN:
+                case Types.BIT:
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                case Types.CHAR:
+                case Types.VARCHAR:
+                case Types.LONGVARCHAR:
+                case Types.NCHAR:
+                case Types.NVARCHAR:
+                    return false; // text as is, or formatted without allocating more than the text
+
+                default:
+                    return true; // timestamps, floating point, decimals, arrays, objects
+            }
+        }
+
+        private String format(Object value) {
+            return value != null ? formatter.apply(value) : "";
+        }
+    }
+
+    /**
+     * @param ts        timestamp
+     * @param zoneRules rules of the default time zone
+     * @return the same text as {@link Timestamp#toString()}, which it falls back
+     *         to for years before 1900, which may predate the Gregorian calendar
+     *         or the zone's standard time, or after 9999
+     */
+    static String formatTimestamp(Timestamp ts, ZoneRules zoneRules) {
+        long epochSecond = Math.floorDiv(ts.getTime(), 1000L);
+        ZoneOffset offset = zoneRules.getOffset(Instant.ofEpochSecond(epochSecond));
+        LocalDateTime local = LocalDateTime.ofEpochSecond(epochSecond, ts.getNanos(), offset);
+        if (local.getYear() < 1900 || local.getYear() > 9999) {
+            return ts.toString();
+        }
+        return TIMESTAMP_FORMATTER.format(local);
+    }
+
+    /**
+     * @param d     value
+     * @param boxed the value as fetched, a Double or a Float
+     * @return the same text as the boxed value's toString, which for values with
+     *         no fraction, under 10^7, is their integral value followed by ".0"
+     */
+    static String formatDouble(double d, Object boxed) {
+        if (d == (long) d && Math.abs(d) < 1e7 && (d != 0.0 || 1.0 / d > 0.0)) {
+            return Long.toString((long) d).concat(".0");
+        }
+        return boxed.toString();
+    }
 
     private final Supplier<SQLTable> tableSupplier;
+    private final long[] cachedCells;
+    private final String[] cachedTexts;
+    private SQLTable formatsTable; // the table the formats were resolved for
+    private ColFormat[] formats;
 
     SQLCellRenderer(Supplier<SQLTable> tableSupplier) {
         super(GTk.TABLE_CELL_FONT, Color.BLACK, Color.BLACK);
         this.tableSupplier = tableSupplier;
+        cachedCells = new long[CACHE_SIZE];
+        cachedTexts = new String[CACHE_SIZE];
+        Arrays.fill(cachedCells, NO_CELL);
     }
 
     @Override
     public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus,
         int rowIdx, int colIdx) {
-        super.getTableCellRendererComponent(table, value, isSelected, hasFocus, rowIdx, colIdx);
         SQLTable sqlTable = tableSupplier.get();
-        if (sqlTable != null && !isSelected && rowIdx >= 0 && rowIdx < table.getModel().getRowCount()) {
-            if (colIdx >= 0) {
-                int[] columnTypes = sqlTable.getColTypes();
-                if (columnTypes != null) {
-                    setForeground(SQLType.resolveColor(columnTypes[colIdx]));
-                }
-            }
+        ColFormat format = sqlTable != null && colIdx >= 0 ? resolveFormats(sqlTable)[colIdx] : null;
+        Object text = format != null && rowIdx >= 0 ? formatText(format, value, rowIdx, colIdx) : value;
+        super.getTableCellRendererComponent(table, text, isSelected, hasFocus, rowIdx, colIdx);
+        if (format != null && !isSelected && rowIdx >= 0 && rowIdx < table.getModel().getRowCount()) {
+            setForeground(format.color);
         }
         return this;
     }
+
+    private ColFormat[] resolveFormats(SQLTable sqlTable) {
+        if (sqlTable != formatsTable) {
+            int[] colTypes = sqlTable.getColTypes();
+            ColFormat[] f = new ColFormat[colTypes.length];
+            for (int i = 0; i < colTypes.length; i++) {
+                f[i] = new ColFormat(colTypes[i]);
+            }
+            formats = f;
+            formatsTable = sqlTable;
+            clearCache();
+        }
+        return formats;
+    }
+
+    private String formatText(ColFormat format, Object value, int rowIdx, int colIdx) {
+        if (!format.isCached || value instanceof String) {
+            return format.format(value); // strings are also shown while rows are being fetched
+        }
+        long cell = (long) rowIdx << 32 | colIdx;
+        int slot = (int) ((cell * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - Integer.numberOfTrailingZeros(CACHE_SIZE)));
+        if (cachedCells[slot] != cell) {
+            cachedCells[slot] = cell;
+            cachedTexts[slot] = format.format(value);
+        }
+        return cachedTexts[slot];
+    }
+
+    private void clearCache() {
+        Arrays.fill(cachedCells, NO_CELL);
+        Arrays.fill(cachedTexts, null);
+    }
+
+    /**
+     * Rows added at the end do not change the rows on display, any other change
+     * to the model, such as the update of the rows in view when a page arrives,
+     * clears the cache.
+     */
+    @Override
+    public void tableChanged(TableModelEvent e) {
+        if (e.getType() != TableModelEvent.INSERT) {
+            clearCache();
+        }
+    }
 }
@@ -21,25 +21,39 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.SwingConstants;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.JViewport;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
 import javax.swing.border.BevelBorder;
+import javax.swing.event.ChangeEvent;
 import javax.swing.table.JTableHeader;
 import javax.swing.table.TableColumn;
 import javax.swing.table.TableColumnModel;
 
 import io.mygupsql.GTk;
+import io.mygupsql.backend.ColumnStats;
+import io.mygupsql.backend.RowFilter;
 import io.mygupsql.backend.SQLExecResponse;
+import io.mygupsql.backend.SQLPager;
 import io.mygupsql.backend.SQLTable;
 import io.mygupsql.widgets.InfiniteSpinnerPanel;
 import io.mygupsql.widgets.command.TextPane;
@@ -58,6 +72,15 @@ public class SQLResultsTable extends JPanel implements Closeable {
     private static final int TABLE_CELL_MIN_WIDTH = 300;
     private static final int TABLE_CELL_CHAR_WIDTH = 15;
     private static final int TABLE_HEADER_HEIGHT = 50;
+    private static final int FILTER_FIELD_COLUMNS = 40;
+    private static final int TOOLTIP_VALUE_MAX_LEN = 60;
+    private static final int PREFETCH_VIEWS = 2; // views worth of rows prefetched before and after the view
+    private static final String FILTER_ANY_COLUMN = "Any column";
+    private static final String FILTER_TOOLTIP = "<html>Press Enter to show the fetched rows that match, empty to show all:"
+        + "<br/>text: contains the text, ignoring case<br/>/regex/: contains a match of the regular expression"
+        + "<br/>from..to: a number within the range, either end may be omitted<br/>null, !null: is null, is not null"
+        + "</html>";
+    private static final String PAGED_TOOLTIP = "Fetch only the pages of rows in view, for results too big to hold";
 
     private enum Mode {
         INFINITE, TABLE, MESSAGE
@@ -65,13 +88,20 @@ public class SQLResultsTable extends JPanel implements Closeable {
 
     private final JTable table;
     private final JScrollPane tableScrollPanel;
-    private final PagedSQLTableModel tableModel;
+    private final SQLTableModel tableModel;
     private final AtomicReference<SQLTable> results;
     private final TextPane textPane;
     private final JLabel rowRangeLabel;
     private final JLabel statusLabel;
     private final JButton prevButton;
     private final JButton nextButton;
+    private final JComboBox<String> filterColumn;
+    private final JTextField filterField;
+    private final JButton clearFilterButton;
+    private final JCheckBox pagedCheckBox;
+    private RowFilter filter;
+    private int filterColIdx;
+    private int prefetchedFirstRow = -1;
     private final InfiniteSpinnerPanel infiniteSpinner;
     private Component currentModePanel;
     private Mode mode;
@@ -79,8 +109,22 @@ public class SQLResultsTable extends JPanel implements Closeable {
     public SQLResultsTable(int width, int height) {
         Dimension size = new Dimension(width, height);
         results = new AtomicReference<>();
-        tableModel = new PagedSQLTableModel(results::get);
-        table = new JTable(tableModel);
+        tableModel = new SQLTableModel(results::get);
+        table = new JTable(tableModel) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected JTableHeader createDefaultTableHeader() {
+                return new JTableHeader(columnModel) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public String getToolTipText(MouseEvent e) {
+                        return resolveColStatsTooltip(columnAtPoint(e.getPoint()));
+                    }
+                };
+            }
+        };
         table.setAutoCreateRowSorter(false);
         table.setRowSelectionAllowed(false);
         table.setColumnSelectionAllowed(false);
@@ -88,13 +132,23 @@ public class SQLResultsTable extends JPanel implements Closeable {
         table.setRowHeight(TABLE_ROW_HEIGHT);
         table.setGridColor(TABLE_GRID_COLOR);
         table.setFont(GTk.TABLE_CELL_FONT);
-        table.setDefaultRenderer(String.class, new SQLCellRenderer(results::get));
+        SQLCellRenderer cellRenderer = new SQLCellRenderer(results::get);
+        tableModel.addTableModelListener(cellRenderer);
+        table.setDefaultRenderer(String.class, cellRenderer);
         table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         table.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
         JTableHeader header = table.getTableHeader();
         header.setReorderingAllowed(false);
         header.setFont(GTk.TABLE_HEADER_FONT);
         header.setForeground(GTk.TABLE_HEADER_FONT_COLOR);
+        header.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (SwingUtilities.isLeftMouseButton(e)) {
+                    onHeaderClicked(header.columnAtPoint(e.getPoint()));
+                }
+            }
+        });
         statusLabel = new JLabel();
         statusLabel.setFont(TABLE_FOOTER_FONT);
         statusLabel.setForeground(TABLE_FOOTER_FONT_COLOR);
@@ -118,38 +172,82 @@ public class SQLResultsTable extends JPanel implements Closeable {
         nextButton.setIcon(GTk.Icon.NEXT.icon());
         nextButton.setHorizontalTextPosition(SwingConstants.LEFT);
         nextButton.addActionListener(this::onNextButtonEvent);
+        filterColumn = new JComboBox<>(new String[]{FILTER_ANY_COLUMN});
+        filterField = new JTextField(FILTER_FIELD_COLUMNS);
+        filterField.setFont(GTk.TABLE_CELL_FONT);
+        filterField.setToolTipText(FILTER_TOOLTIP);
+        filterField.addActionListener(this::onFilterEvent);
+        clearFilterButton = GTk.createButton("Clear", GTk.Icon.COMMAND_CLEAR, "Show all rows",
+            this::onClearFilterEvent);
+        pagedCheckBox = new JCheckBox("Paged");
+        pagedCheckBox.setFont(TABLE_FOOTER_FONT);
+        pagedCheckBox.setForeground(TABLE_FOOTER_FONT_COLOR);
+        pagedCheckBox.setToolTipText(PAGED_TOOLTIP);
+        JLabel filterLabel = new JLabel("Filter:");
+        filterLabel.setFont(TABLE_FOOTER_FONT);
+        filterLabel.setForeground(TABLE_FOOTER_FONT_COLOR);
         textPane = new TextPane();
         tableScrollPanel = new JScrollPane(table, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
             JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
         tableScrollPanel.getViewport().setBackground(Color.BLACK);
+        tableScrollPanel.getViewport().addChangeListener(this::onViewChanged);
         infiniteSpinner = new InfiniteSpinnerPanel();
         infiniteSpinner.setSize(size);
         changeMode(Mode.TABLE);
         setLayout(new BorderLayout());
         setPreferredSize(size);
         setBorder(BorderFactory.createBevelBorder(BevelBorder.RAISED));
+        add(GTk.createFlowPanel(filterLabel, filterColumn, filterField, clearFilterButton), BorderLayout.NORTH);
         add(currentModePanel, BorderLayout.CENTER);
-        add(GTk.createFlowPanel(statusLabel, rowRangeLabel, prevButton, nextButton), BorderLayout.SOUTH);
+        add(GTk.createFlowPanel(pagedCheckBox, statusLabel, rowRangeLabel, prevButton, nextButton), BorderLayout.SOUTH);
         updateRowNavigationComponents();
     }
 
     public void updateStats(String eventType, SQLExecResponse res) {
         if (res != null) {
-            statusLabel.setText(String.format("[%s]  Exec: %5d,  Fetch: %5d,  Total: %6d (ms)", eventType, res.getExecMs(),
-                res.getFetchMs(), res.getTotalMs()));
+            statusLabel.setText(String.format("[%s%s]  Exec: %5d,  Fetch: %5d,  Total: %6d (ms)", eventType,
+                res.isCached() ? ", cached" : "", res.getExecMs(), res.getFetchMs(), res.getTotalMs()));
         }
         else {
             statusLabel.setText("");
         }
     }
 
+    /**
+     * @return true if results are to be fetched a page at the time, as they are
+     *         viewed, see {@link #setPager(SQLPager)}
+     */
+    public boolean isPaged() {
+        return pagedCheckBox.isSelected();
+    }
+
+    /**
+     * Shows the rows served by the pager, whose responses are to be passed on to
+     * {@link #onRowsAddedEvent(SQLExecResponse)}. Sorting, filtering and column
+     * statistics apply to the rows held client side, and are thus not available
+     * while paging. The pager is closed by {@link #close()}.
+     * 
+     * @param pager fetches the pages in view
+     */
+    public void setPager(SQLPager pager) {
+        close();
+        tableModel.setPager(pager);
+        setFilterEnabled(false);
+    }
+
     public void onRowsAddedEvent(SQLExecResponse res) {
         SQLTable table = res.getTable();
+        SQLPager pager = tableModel.getPager();
+        if (pager != null) {
+            onPageAddedEvent(pager, res);
+            return;
+        }
         if (results.compareAndSet(null, table)) {
             resetTableHeader();
         }
-        else if (table.size() > 0) {
-            tableModel.fireTableDataChanged();
+        else {
+            // not only the response's range, also those of any responses merged into it
+            tableModel.fireTableRowsAdded();
         }
         updateRowNavigationComponents();
         infiniteSpinner.close();
@@ -168,12 +266,48 @@ public class SQLResultsTable extends JPanel implements Closeable {
         }
     }
 
+    /**
+     * Rows of a page have arrived, or the number of rows has changed, the table
+     * takes the pager's number of rows and repaints the rows in view, which
+     * covers the pages of any responses that were merged into this one, the
+     * renderer drops the text it cached for them.
+     */
+    private void onPageAddedEvent(SQLPager pager, SQLExecResponse res) {
+        SQLTable table = res.getTable();
+        if (table == null || table != pager.getTable()) {
+            return; // from a previous pager
+        }
+        if (results.compareAndSet(null, table)) {
+            resetTableHeader();
+        }
+        else {
+            tableModel.fireTableRowsAdded();
+            tableModel.fireTableRowsUpdated(0, Math.max(0, tableModel.getRowCount() - 1)); // repaints the rows in view
+        }
+        updateRowNavigationComponents();
+        infiniteSpinner.close();
+        if (pager.size() == 0L) {
+            textPane.displayMessage("OK.\n\nNo rows for query:\n" + pager.getRequest().getSQL());
+            changeMode(Mode.MESSAGE);
+        }
+        else {
+            changeMode(Mode.TABLE);
+        }
+    }
+
     @Override
     public void close() {
+        SQLPager pager = tableModel.getPager();
+        if (pager != null) {
+            pager.close();
+            tableModel.setPager(null);
+            setFilterEnabled(true);
+        }
         SQLTable table = results.getAndSet(null);
-        if (table != null) {
+        if (table != null && pager == null) {
             table.clear();
         }
+        resetFilter(new String[0]);
         tableModel.fireTableStructureChanged();
         infiniteSpinner.close();
         updateStats(null, null);
@@ -200,39 +334,220 @@ public class SQLResultsTable extends JPanel implements Closeable {
     }
 
     /**
-     * To be called when we want to move a page back in the GUI.
+     * To be called when we want to scroll a page (the rows in view) back in the
+     * GUI.
      * 
      * @param event event that triggered this method's call
      */
     public void onPrevButtonEvent(ActionEvent event) {
-        if (prevButton.isEnabled() && tableModel.canDecrPage()) {
-            tableModel.decrPage();
-            updateRowNavigationComponents();
+        if (prevButton.isEnabled()) {
+            scrollBy(-1);
         }
     }
 
     /**
-     * To be called when we want to move a page forward in the GUI.
+     * To be called when we want to scroll a page (the rows in view) forward in
+     * the GUI.
      * 
      * @param event event that triggered this method's call
      */
     public void onNextButtonEvent(ActionEvent event) {
-        if (nextButton.isEnabled() && tableModel.canIncrPage()) {
-            tableModel.incrPage();
-            updateRowNavigationComponents();
+        if (nextButton.isEnabled()) {
+            scrollBy(1);
+        }
+    }
+
+    private void scrollBy(int direction) {
+        JViewport viewport = tableScrollPanel.getViewport();
+        Rectangle view = viewport.getViewRect();
+        int maxY = Math.max(0, table.getHeight() - view.height);
+        int y = Math.max(0, Math.min(maxY, view.y + direction * view.height));
+        viewport.setViewPosition(new Point(view.x, y));
+    }
+
+    /**
+     * Rows are not paged, the table renders those in view. As the view moves,
+     * rows spilled to disk are prefetched around it, in the background, so
+     * that scrolling to them does not wait on the disk.
+     */
+    private void onViewChanged(ChangeEvent event) {
+        updateRowNavigationComponents();
+        SQLTable t = results.get();
+        int firstRow = firstRowInView();
+        if (t == null || firstRow == -1 || t.getSpilledBytes() == 0L) {
+            return;
+        }
+        int rowsInView = lastRowInView() - firstRow + 1;
+        if (prefetchedFirstRow != -1 && Math.abs(firstRow - prefetchedFirstRow) < rowsInView) {
+            return; // the rows in view were prefetched
+        }
+        prefetchedFirstRow = firstRow;
+        int from = Math.max(0, firstRow - PREFETCH_VIEWS * rowsInView);
+        int to = Math.min(tableModel.getRowCount(), firstRow + (PREFETCH_VIEWS + 1) * rowsInView);
+        int[] rowIdxs = new int[Math.max(0, to - from)];
+        for (int i = 0; i < rowIdxs.length; i++) {
+            rowIdxs[i] = tableModel.getTableRowIdx(from + i);
+        }
+        CompletableFuture.runAsync(() -> t.prefetch(rowIdxs));
+    }
+
+    private int firstRowInView() {
+        Rectangle view = tableScrollPanel.getViewport().getViewRect();
+        return table.rowAtPoint(new Point(0, view.y));
+    }
+
+    private int lastRowInView() {
+        Rectangle view = tableScrollPanel.getViewport().getViewRect();
+        int row = table.rowAtPoint(new Point(0, view.y + view.height - 1));
+        return row != -1 ? row : tableModel.getRowCount() - 1;
+    }
+
+    /**
+     * Clicking on a column's header sorts the rows fetched so far by the column,
+     * in ascending order, then descending order, then back to insertion order.
+     * Rows are sorted in the background, the query is not run again.
+     * 
+     * @param colIdx index of the column
+     */
+    private void onHeaderClicked(int colIdx) {
+        SQLTable t = results.get();
+        if (t == null || tableModel.getPager() != null || colIdx < 0 || colIdx >= t.getColCount()) {
+            return;
+        }
+        if (tableModel.getSortColIdx() != colIdx) {
+            updateView(t, colIdx, true);
+        }
+        else {
+            updateView(t, tableModel.isSortAscending() ? colIdx : -1, false);
         }
     }
 
+    /**
+     * Shows the rows fetched so far that match the filter in the filter field,
+     * or all of them if the field is empty.
+     * 
+     * @param event event that triggered this method's call
+     */
+    public void onFilterEvent(ActionEvent event) {
+        if (tableModel.getPager() != null) {
+            return;
+        }
+        SQLTable t = results.get();
+        String text = filterField.getText().trim();
+        filterField.setForeground(Color.BLACK);
+        filterField.setToolTipText(FILTER_TOOLTIP);
+        try {
+            filter = text.isEmpty() ? null : RowFilter.parse(text);
+        }
+        catch (IllegalArgumentException e) {
+            filterField.setForeground(Color.RED);
+            filterField.setToolTipText(e.getMessage());
+            return;
+        }
+        filterColIdx = filterColumn.getSelectedIndex() - 1; // -1 is any column
+        if (t != null) {
+            updateView(t, tableModel.getSortColIdx(), tableModel.isSortAscending());
+        }
+    }
+
+    /**
+     * Clears the filter, all rows are shown.
+     * 
+     * @param event event that triggered this method's call
+     */
+    public void onClearFilterEvent(ActionEvent event) {
+        filterField.setText("");
+        onFilterEvent(event);
+    }
+
+    /**
+     * Sorts and filters the rows in the background, then shows them.
+     */
+    private void updateView(SQLTable t, int sortColIdx, boolean isAscending) {
+        RowFilter f = filter;
+        int fColIdx = filterColIdx;
+        CompletableFuture.supplyAsync(() -> {
+            int[] rowOrder = sortColIdx >= 0 ? t.sortRows(sortColIdx, isAscending) : null;
+            int[] selection = f != null ? t.filterRows(f, fColIdx, rowOrder) : null;
+            return new int[][]{rowOrder, selection};
+        }).whenComplete((view, error) -> GTk.invokeLater(() -> {
+            if (results.get() != t) {
+                return; // results have changed meanwhile
+            }
+            if (error != null) {
+                displayError(error);
+            }
+            else {
+                tableModel.setView(sortColIdx, isAscending, view[0], view[1]);
+                prefetchedFirstRow = -1;
+                JViewport viewport = tableScrollPanel.getViewport();
+                viewport.setViewPosition(new Point(viewport.getViewPosition().x, 0));
+                updateHeaderValues();
+                updateRowNavigationComponents();
+            }
+        }));
+    }
+
+    /**
+     * The statistics of a column's values are computed as the rows are fetched,
+     * the tooltip shows them as of when it is displayed.
+     * 
+     * @param colIdx index of the column
+     * @return tooltip text for the column's header, or null if there is none
+     */
+    private String resolveColStatsTooltip(int colIdx) {
+        SQLTable t = results.get();
+        if (t == null || tableModel.getPager() != null || colIdx < 0 || colIdx >= t.getColCount()) {
+            return null;
+        }
+        ColumnStats stats = t.getColStats(colIdx);
+        long total = stats.getCount() + stats.getNullCount();
+        StringBuilder sb = new StringBuilder("<html><b>").append(escapeHtml(t.getColName(colIdx))).append("</b> [")
+            .append(SQLType.resolveName(t.getColType(colIdx))).append("]");
+        sb.append(String.format("<br/>rows: %d, nulls: %d (%.1f%%)", total, stats.getNullCount(),
+            total > 0 ? 100.0 * stats.getNullCount() / total : 0.0));
+        sb.append(String.format("<br/>distinct: ~%d", stats.getDistinctCount()));
+        sb.append("<br/>min: ").append(escapeHtml(abbreviate(stats.getMin())));
+        sb.append("<br/>max: ").append(escapeHtml(abbreviate(stats.getMax())));
+        if (stats.isNumeric()) {
+            sb.append(String.format("<br/>sum: %s, mean: %s", stats.getSum(), stats.getMean()));
+        }
+        return sb.append("</html>").toString();
+    }
+
+    private static String abbreviate(Object value) {
+        String text = String.valueOf(value);
+        return text.length() > TOOLTIP_VALUE_MAX_LEN ? text.substring(0, TOOLTIP_VALUE_MAX_LEN) + "..." : text;
+    }
+
+    private static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private void updateHeaderValues() {
+        TableColumnModel tcm = table.getColumnModel();
+        for (int i = 0; i < tcm.getColumnCount(); i++) {
+            tcm.getColumn(i).setHeaderValue(tableModel.getColumnName(i));
+        }
+        table.getTableHeader().repaint();
+    }
+
     private void updateRowNavigationComponents() {
-        prevButton.setEnabled(tableModel.canDecrPage());
-        nextButton.setEnabled(tableModel.canIncrPage());
-        int start = tableModel.getPageStartOffset();
-        int end = tableModel.getPageEndOffset();
-        int tableSize = tableModel.getTableSize();
-        if (tableSize > 0) {
-            start++;
-        }
-        rowRangeLabel.setText(String.format("Rows %d to %d of %-10d", start, end, tableSize));
+        int start = firstRowInView();
+        int end = start != -1 ? lastRowInView() + 1 : 0;
+        start = start != -1 ? start + 1 : 0;
+        SQLPager pager = tableModel.getPager();
+        long tableSize = pager != null ? pager.size() : tableModel.getTableSize();
+        prevButton.setEnabled(start > 1);
+        nextButton.setEnabled(end < tableModel.getRowCount());
+        String format = "Rows %d to %d of %-10d";
+        if (tableModel.isFiltered()) {
+            format = "Rows %d to %d of %d, filtered";
+        }
+        else if (pager != null) {
+            format = pager.isSizeExact() ? "Rows %d to %d of %d, paged" : "Rows %d to %d of ~%d, paged";
+        }
+        rowRangeLabel.setText(String.format(format, start, end, tableSize));
     }
 
     private void resetTableHeader() {
@@ -253,9 +568,30 @@ public class SQLResultsTable extends JPanel implements Closeable {
             col.setMinWidth(minWidth);
         }
         table.setAutoResizeMode(tableWidth < getWidth() ? JTable.AUTO_RESIZE_ALL_COLUMNS : JTable.AUTO_RESIZE_OFF);
+        resetFilter(colNames);
         tableModel.fireTableStructureChanged();
     }
 
+    private void setFilterEnabled(boolean isEnabled) {
+        filterColumn.setEnabled(isEnabled);
+        filterField.setEnabled(isEnabled);
+        clearFilterButton.setEnabled(isEnabled);
+    }
+
+    private void resetFilter(String[] colNames) {
+        prefetchedFirstRow = -1;
+        filter = null;
+        filterColIdx = -1;
+        filterField.setText("");
+        filterField.setForeground(Color.BLACK);
+        filterField.setToolTipText(FILTER_TOOLTIP);
+        filterColumn.removeAllItems();
+        filterColumn.addItem(FILTER_ANY_COLUMN);
+        for (String name : colNames) {
+            filterColumn.addItem(name);
+        }
+    }
+
     private static int resolveColWidth(String name, int type) {
         return Math.max(TABLE_CELL_MIN_WIDTH, TABLE_CELL_CHAR_WIDTH * (name.length() + SQLType.resolveName(type).length()));
     }
@@ -0,0 +1,263 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.widgets.results;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import javax.swing.table.AbstractTableModel;
+
+import io.mygupsql.backend.SQLExecutor;
+import io.mygupsql.backend.SQLPager;
+import io.mygupsql.backend.SQLTable;
+
+
+/**
+ * Exposes all the rows of a {@link SQLTable} to a {@link javax.swing.JTable}
+ * within a scroll pane, which only renders the rows in its viewport, so that
+ * there is no need for paging. Column metadata are accessed through a table
+ * supplier. The table is built by a {@link SQLExecutor} and thus it will be
+ * null until then SQL query execution is started.
+ * <p>
+ * The row count is the number of rows notified to listeners, rows added to the
+ * table are notified as inserted, at the end, with
+ * {@link #fireTableRowsAdded()}.
+ * <p>
+ * Rows can be shown sorted by a column, through a row order, the indexes of the
+ * table's rows in sorted order, and filtered, through a selection, the indexes
+ * of the rows that match the filter, in order. Rows are not copied. Rows added
+ * to the table after the row order was built follow the sorted rows, in
+ * insertion order, while rows added after the selection was built are not
+ * shown until the filter is applied again.
+ * <p>
+ * Alternatively, rows can be served a page at the time by a {@link SQLPager},
+ * which fetches the pages in view on demand, in which case the table only
+ * carries the column metadata, and the number of rows is the pager's, which
+ * changes as pages are fetched. Rows of pages that are being fetched show
+ * empty.
+ */
+class SQLTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 1L;
+    static final int MAX_PAGER_ROWS = 50_000_000; // shown through a pager, rows are laid out at int pixel offsets
+
+    private final Supplier<SQLTable> tableSupplier;
+    private SQLPager pager; // null unless paging
+    private int rowCount; // notified to listeners
+    private int[] rowOrder; // view row index to table row index, null if not sorted
+    private int[] selection; // view row index to table row index, null if not filtered
+    private int sortColIdx = -1;
+    private boolean isSortAscending;
+
+    /**
+     * Constructor.
+     * 
+     * @param tableSupplier provides access to the table, which may be null
+     */
+    SQLTableModel(Supplier<SQLTable> tableSupplier) {
+        this.tableSupplier = Objects.requireNonNull(tableSupplier);
+    }
+
+    /**
+     * Shows the rows sorted and/or filtered.
+     * 
+     * @param sortColIdx  index of the column the rows are sorted by, -1 if they
+     *                    are not
+     * @param isAscending sort order
+     * @param rowOrder    indexes of the table's rows, in sorted order, or null if
+     *                    not sorted
+     * @param selection   indexes of the table's rows that match the filter, in
+     *                    order, or null if not filtered
+     */
+    void setView(int sortColIdx, boolean isAscending, int[] rowOrder, int[] selection) {
+        this.sortColIdx = rowOrder != null ? sortColIdx : -1;
+        this.isSortAscending = isAscending;
+        this.rowOrder = rowOrder;
+        this.selection = selection;
+        fireTableDataChanged();
+    }
+
+    /**
+     * Serves the rows from the pager, instead of from the table, or from the
+     * table again if the pager is null.
+     * 
+     * @param pager fetches the pages in view, may be null
+     */
+    void setPager(SQLPager pager) {
+        this.pager = pager;
+    }
+
+    /**
+     * @return the pager, or null if not paging
+     */
+    SQLPager getPager() {
+        return pager;
+    }
+
+    /**
+     * @return true if only the rows that match a filter are shown
+     */
+    boolean isFiltered() {
+        return selection != null;
+    }
+
+    /**
+     * @return index of the column the rows are sorted by, -1 if they are not
+     */
+    int getSortColIdx() {
+        return sortColIdx;
+    }
+
+    /**
+     * @return true if the rows are sorted in ascending order
+     */
+    boolean isSortAscending() {
+        return isSortAscending;
+    }
+
+    /**
+     * To be called when rows have been added to the table, instead of
+     * {@link #fireTableDataChanged()}. The new rows are notified as inserted at
+     * the end, so that the rows on display are not laid out again, the table
+     * only repaints those of the new rows that are within its viewport. While
+     * paging, the number of rows may also shrink, once the pager finds the end
+     * of the rows before its estimate.
+     */
+    void fireTableRowsAdded() {
+        SQLTable table = tableSupplier.get();
+        if (table == null) {
+            return;
+        }
+        int size = viewSize(table);
+        if (size > rowCount) {
+            int firstRow = rowCount;
+            rowCount = size;
+            fireTableRowsInserted(firstRow, size - 1);
+        }
+        else if (size < rowCount) {
+            fireTableDataChanged();
+        }
+    }
+
+    @Override
+    public void fireTableStructureChanged() {
+        rowOrder = null;
+        selection = null;
+        sortColIdx = -1;
+        updateRowCount();
+        super.fireTableStructureChanged();
+    }
+
+    @Override
+    public void fireTableDataChanged() {
+        updateRowCount();
+        super.fireTableDataChanged();
+    }
+
+    private void updateRowCount() {
+        SQLTable table = tableSupplier.get();
+        rowCount = table != null ? viewSize(table) : 0;
+    }
+
+    private int viewSize(SQLTable table) {
+        SQLPager p = pager;
+        if (p != null) {
+            return (int) Math.min(p.size(), MAX_PAGER_ROWS);
+        }
+        int[] s = selection;
+        return s != null ? s.length : table.size();
+    }
+
+    /**
+     * @return the number of rows notified to listeners
+     */
+    @Override
+    public int getRowCount() {
+        return tableSupplier.get() != null ? rowCount : 0;
+    }
+
+    /**
+     * @return the total size of the table, or the number of rows that match the
+     *         filter, if filtered, which may be larger than the row count until
+     *         the rows added are notified
+     */
+    public int getTableSize() {
+        SQLTable table = tableSupplier.get();
+        return table != null ? viewSize(table) : 0;
+    }
+
+    /**
+     * @param rowIdx index of a row, as shown
+     * @return index of the row within the table
+     */
+    int getTableRowIdx(int rowIdx) {
+        int[] s = selection;
+        if (s != null) {
+            return s[rowIdx];
+        }
+        int[] order = rowOrder;
+        return order != null && rowIdx < order.length ? order[rowIdx] : rowIdx;
+    }
+
+    @Override
+    public int getColumnCount() {
+        SQLTable table = tableSupplier.get();
+        return table != null ? table.getColCount() : 0;
+    }
+
+    @Override
+    public String getColumnName(int colIdx) {
+        SQLTable table = tableSupplier.get();
+        if (table == null) {
+            return "";
+        }
+        String name = String.format("%s [%s]", table.getColName(colIdx), SQLType.resolveName(table.getColType(colIdx)));
+        if (colIdx == sortColIdx) {
+            name += isSortAscending ? " \u25B2" : " \u25BC";
+        }
+        return name;
+    }
+
+    @Override
+    public Class<?> getColumnClass(int colIdx) {
+        return String.class;
+    }
+
+    @Override
+    public Object getValueAt(int rowIdx, int colIdx) {
+        SQLTable table = tableSupplier.get();
+        if (table == null) {
+            return "";
+        }
+        SQLPager p = pager;
+        if (p != null) {
+            SQLTable page = p.getPageOf(rowIdx);
+            int pageRowIdx = rowIdx % p.getPageSize();
+            if (page == null || pageRowIdx >= page.size()) {
+                return colIdx == -1 ? null : ""; // being fetched
+            }
+            return colIdx == -1 ? page.getRow(pageRowIdx) : page.getValueAt(pageRowIdx, colIdx);
+        }
+        int idx = getTableRowIdx(rowIdx);
+        return colIdx == -1 ? table.getRow(idx) : table.getValueAt(idx, colIdx);
+    }
+
+    @Override
+    public boolean isCellEditable(int rowIdx, int colIdx) {
+        return false;
+    }
+}
@@ -0,0 +1,58 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+
+public class UpdateSchedulerTest {
+
+    @Test
+    public void test_updates_are_merged_per_frame() throws Exception {
+        List<String> applied = new ArrayList<>();
+        try (UpdateScheduler updates = new UpdateScheduler(10)) {
+            CountDownLatch first = new CountDownLatch(1);
+            updates.post("rows", () -> {
+                applied.add("rows-0");
+                first.countDown();
+            });
+            assertThat(first.await(1L, TimeUnit.SECONDS), is(true));
+
+            // within the frame, these wait for the next one
+            CountDownLatch done = new CountDownLatch(1);
+            updates.post("stats", () -> applied.add("stats-1"));
+            for (int i = 1; i <= 1000; i++) {
+                String row = "rows-" + i;
+                updates.post("rows", () -> applied.add(row));
+            }
+            updates.post(() -> applied.add("close"));
+            updates.post("stats", () -> applied.add("stats-2"));
+            updates.post(done::countDown);
+            assertThat(done.await(1L, TimeUnit.SECONDS), is(true));
+            EventQueue.invokeAndWait(() -> assertThat(applied, is(List.of("rows-0", "stats-2", "rows-1000", "close"))));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+package io.mygupsql.backend;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+
+import org.junit.jupiter.api.Test;
+
+
+public class ColumnTest {
+
+    @Test
+    public void test_of() {
+        assertThat(Column.of(Types.BIGINT), instanceOf(Column.LongColumn.class));
+        assertThat(Column.of(Types.INTEGER), instanceOf(Column.IntColumn.class));
+        assertThat(Column.of(Types.REAL), instanceOf(Column.DoubleColumn.class));
+        assertThat(Column.of(Types.TIMESTAMP), instanceOf(Column.TimestampColumn.class));
+        assertThat(Column.of(Types.BOOLEAN), instanceOf(Column.BooleanColumn.class));
+        assertThat(Column.of(Types.VARCHAR), instanceOf(Column.DictionaryColumn.class));
+        assertThat(Column.of(Types.NUMERIC), instanceOf(Column.ObjectColumn.class));
+    }
+
+    @Test
+    public void test_values_across_chunks() {
+        int size = Column.CHUNK_SIZE * 2 + 10;
+        Column longs = Column.of(Types.BIGINT);
+        Column ints = Column.of(Types.INTEGER);
+        Column doubles = Column.of(Types.DOUBLE);
+        Column floats = Column.of(Types.REAL);
+        Column booleans = Column.of(Types.BOOLEAN);
+        Column strings = new Column.StringColumn(Types.VARCHAR);
+        for (int i = 0; i < size; i++) {
+            boolean isNull = i % 7 == 0;
+            assertThat(longs.set(i, isNull ? null : Long.valueOf(i * 1_000_000_007L)), is(true));
+            assertThat(ints.set(i, isNull ? null : Integer.valueOf(-i)), is(true));
+            assertThat(doubles.set(i, isNull ? null : Double.valueOf(i / 3.0)), is(true));
+            assertThat(floats.set(i, isNull ? null : Float.valueOf(i / 3.0F)), is(true));
+            assertThat(booleans.set(i, isNull ? null : Boolean.valueOf(i % 2 == 0)), is(true));
+            assertThat(strings.set(i, isNull ? null : "value " + i), is(true));
+        }
+        for (int i = 0; i < size; i++) {
+            if (i % 7 == 0) {
+                assertThat(longs.get(i), nullValue());
+                assertThat(ints.get(i), nullValue());
+                assertThat(doubles.get(i), nullValue());
+                assertThat(floats.get(i), nullValue());
+                assertThat(booleans.get(i), nullValue());
+                assertThat(strings.get(i), nullValue());
+            }
+            else {
+                assertThat(longs.get(i), is(i * 1_000_000_007L));
+                assertThat(ints.get(i), is(-i));
+                assertThat(doubles.get(i), is(i / 3.0));
+                assertThat(floats.get(i), is(i / 3.0F));
+                assertThat(booleans.get(i), is(i % 2 == 0));
+                assertThat(strings.get(i), is("value " + i));
+            }
+        }
+    }
+
+    @Test
+    public void test_read() throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getLong(1)).thenReturn(0L);
+        when(rs.getString(2)).thenReturn("{\"a\": 1}");
+        when(rs.wasNull()).thenReturn(true);
+        Column longs = Column.of(Types.BIGINT);
+        Column objects = Column.of(Types.OTHER);
+        assertThat(longs.read(rs, 1, 0), is(true));
+        assertThat(objects.read(rs, 2, 0), is(true));
+        assertThat(longs.get(0), nullValue());
+        assertThat(objects.get(0), is("{\"a\": 1}"));
+    }
+
+    @Test
+    public void test_read_bit() throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getBoolean(1)).thenReturn(true);
+        when(rs.getObject(1)).thenReturn("101");
+        Column bool = Column.of(Types.BIT, 1); // how the driver reports bool
+        Column bits = Column.of(Types.BIT, 3);
+        assertThat(bool.read(rs, 1, 0), is(true));
+        assertThat(bool.get(0), is(true));
+        assertThat(bits.read(rs, 1, 0), is(false)); // a bit string, the column is to be promoted
+    }
+
+    @Test
+    public void test_text() {
+        Column column = Column.of(Types.OTHER);
+        assertThat(column, instanceOf(Column.TextColumn.class));
+        int size = Column.CHUNK_SIZE + 10;
+        for (int i = 0; i < size; i++) {
+            assertThat(column.set(i, i % 3 == 0 ? null : "{\"name\": \"n\u00f6de-" + i + "\"}"), is(true));
+        }
+        for (int i = 0; i < size; i++) {
+            assertThat(column.get(i), is(i % 3 == 0 ? null : "{\"name\": \"n\u00f6de-" + i + "\"}"));
+        }
+        assertThat(column.get(size - 1) == column.get(size - 1), is(true)); // as read
+        assertThat(column.set(size, new Object()), is(false));
+    }
+
+    @Test
+    public void test_timestamp() {
+        Column column = Column.of(Types.TIMESTAMP);
+        Timestamp ts = Timestamp.valueOf("1969-07-20 20:17:40.123456");
+        assertThat(column.set(0, ts), is(true));
+        assertThat(column.get(0), is(ts));
+        assertThat(column.set(1, new Timestamp(Long.MAX_VALUE)), is(false));
+    }
+
+    @Test
+    public void test_read_timestamp() throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getObject(1, LocalDateTime.class)).thenReturn(LocalDateTime.parse("1969-07-20T20:17:40.123456"));
+        when(rs.getObject(2, OffsetDateTime.class)).thenReturn(OffsetDateTime.parse("1969-07-20T20:17:40.123456Z"));
+        when(rs.getObject(3, LocalDateTime.class)).thenReturn(LocalDateTime.MAX); // infinity
+        Column local = Column.of(Types.TIMESTAMP);
+        Column zoned = Column.of(Types.TIMESTAMP_WITH_TIMEZONE);
+        Column infinity = Column.of(Types.TIMESTAMP);
+        assertThat(local.read(rs, 1, 0), is(true));
+        assertThat(zoned.read(rs, 2, 0), is(true));
+        assertThat(infinity.read(rs, 3, 0), is(false)); // the column is to be promoted
+        assertThat(local.get(0), is(Timestamp.valueOf("1969-07-20 20:17:40.123456")));
+        assertThat(((Timestamp) zoned.get(0)).toInstant(),
+            is(OffsetDateTime.parse("1969-07-20T20:17:40.123456Z").toInstant()));
+    }
+
+    @Test
+    public void test_dictionary() {
+        Column column = Column.of(Types.VARCHAR);
+        int size = Column.CHUNK_SIZE * 2;
+        for (int i = 0; i < size; i++) {
+            assertThat(column.set(i, i % 5 == 0 ? null : "state-" + i % 3), is(true));
+        }
+        assertThat(((Column.DictionaryColumn) column).getDictionarySize(), is(3));
+        assertThat(column.get(size - 1), is("state-" + (size - 1) % 3));
+        int i = size;
+        while (column.set(i, "unique-" + i)) {
+            i++;
+        }
+        assertThat(i - size, is(Column.MAX_DICTIONARY_SIZE - 3));
+        column = column.promote(0, i);
+        assertThat(column, instanceOf(Column.StringColumn.class));
+        assertThat(column.set(i, "unique-" + i), is(true));
+        assertThat(column.get(0), nullValue());
+        assertThat(column.get(1), is("state-1"));
+        assertThat(column.get(i), is("unique-" + i));
+    }
+
+    @Test
+    public void test_promote() {
+        Column column = Column.of(Types.INTEGER);
+        column.set(0, 1);
+        column.set(1, null);
+        assertThat(column.set(2, new BigDecimal("2.5")), is(false));
+        column = column.promote(0, 2);
+        assertThat(column.set(2, new BigDecimal("2.5")), is(true));
+        assertThat(column.get(0), is(1));
+        assertThat(column.get(1), nullValue());
+        assertThat(column.get(2), is(new BigDecimal("2.5")));
+    }
+}
@@ -0,0 +1,464 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+
+/**
+ * Stand-in for a database, reached through JDBC proxies, so that the executor
+ * can be tested end to end. Statements are answered by a {@link Handler}, and
+ * the calls that reach the database are logged, in order.
+ */
+final class FakeDatabase {
+
+    /**
+     * Answers a statement with {@link Rows}, or an update count (Integer), or
+     * by throwing.
+     */
+    interface Handler {
+        Object answer(String sql, List<Object> params) throws SQLException;
+    }
+
+    /**
+     * Results of a query, produced one row at the time as they are fetched.
+     */
+    static final class Rows {
+
+        private final String[] names;
+        private final int[] types;
+        private final int[] precisions;
+        private final int size;
+        private final IntFunction<Object[]> values;
+        private long rowDelayMs;
+        private int blockAtRowIdx = -1;
+        private CountDownLatch gate;
+
+        Rows(String[] names, int[] types, int size, IntFunction<Object[]> values) {
+            this(names, types, new int[types.length], size, values);
+        }
+
+        Rows(String[] names, int[] types, int[] precisions, int size, IntFunction<Object[]> values) {
+            this.names = names;
+            this.types = types;
+            this.precisions = precisions;
+            this.size = size;
+            this.values = values;
+        }
+
+        /**
+         * @param ms time it takes to fetch each row
+         * @return this
+         */
+        Rows delay(long ms) {
+            rowDelayMs = ms;
+            return this;
+        }
+
+        /**
+         * Fetching row rowIdx blocks until the gate opens, or the statement is
+         * cancelled.
+         *
+         * @return this
+         */
+        Rows blockAt(int rowIdx, CountDownLatch gate) {
+            blockAtRowIdx = rowIdx;
+            this.gate = gate;
+            return this;
+        }
+    }
+
+    private final Handler handler;
+    private final List<String> log;
+    private volatile boolean isCrateDB;
+    private volatile boolean isCommitFailing;
+
+    FakeDatabase(Handler handler) {
+        this.handler = handler;
+        log = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    /**
+     * @return a connection whose JDBC connections reach this database
+     */
+    Conn conn(String name) {
+        return new Conn(name) {
+
+            @Override
+            Connection connect() {
+                return connection();
+            }
+        };
+    }
+
+    /**
+     * The database answers the CrateDB probe, and its sys.jobs, through the
+     * handler.
+     */
+    void setCrateDB(boolean isCrateDB) {
+        this.isCrateDB = isCrateDB;
+    }
+
+    /**
+     * Commits fail, as they do once the transaction is aborted.
+     */
+    void setCommitFailing(boolean isCommitFailing) {
+        this.isCommitFailing = isCommitFailing;
+    }
+
+    /**
+     * @return calls that reached the database, such as "execute [sql]",
+     *         "prepare [sql]", "batch [sql, sql]", "cancel", "commit",
+     *         "autocommit [bool]", "fetch size [n]"
+     */
+    List<String> log() {
+        synchronized (log) {
+            return new ArrayList<>(log);
+        }
+    }
+
+    /**
+     * @return the logged calls that start with the prefix
+     */
+    List<String> log(String prefix) {
+        List<String> calls = new ArrayList<>();
+        for (String call : log()) {
+            if (call.startsWith(prefix)) {
+                calls.add(call);
+            }
+        }
+        return calls;
+    }
+
+    static Rows rows(int size, String... names) {
+        int[] types = new int[names.length];
+        Arrays.fill(types, Types.BIGINT);
+        return new Rows(names, types, size, rowIdx -> {
+            Object[] row = new Object[names.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (long) rowIdx;
+            }
+            return row;
+        });
+    }
+
+    private Connection connection() {
+        boolean[] isClosed = {false};
+        return proxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "createStatement":
+                    return statement(null);
+                case "prepareStatement":
+                    log.add("prepare " + args[0]);
+                    return statement((String) args[0]);
+                case "isValid":
+                    return !isClosed[0];
+                case "isClosed":
+                    return isClosed[0];
+                case "close":
+                    isClosed[0] = true;
+                    return null;
+                case "commit":
+                case "rollback":
+                    log.add(method.getName());
+                    if (isCommitFailing && method.getName().equals("commit")) {
+                        throw new SQLException("current transaction is aborted");
+                    }
+                    return null;
+                case "setAutoCommit":
+                    log.add("autocommit " + args[0]);
+                    return null;
+                case "getMetaData":
+                    return proxy(DatabaseMetaData.class, (mdProxy, mdMethod, mdArgs) -> mdMethod.getName()
+                        .equals("getDatabaseProductName") ? "PostgreSQL" // the driver's, also for CrateDB
+                            : defaultValue(mdProxy, mdMethod.getName(), mdMethod.getReturnType(), mdArgs));
+                default:
+                    return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+            }
+        });
+    }
+
+    /**
+     * A plain statement when sql is null, prepared otherwise.
+     */
+    private Statement statement(String preparedSql) {
+        List<Object> params = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        CountDownLatch[] cancelled = {new CountDownLatch(1)}; // of the current execution
+        Object[] state = {null, -1, 0}; // result-set, update count, max rows
+        Class<? extends Statement> type = preparedSql != null ? PreparedStatement.class : Statement.class;
+        return proxy(type, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "execute":
+                case "executeQuery":
+                    String sql = args != null ? (String) args[0] : preparedSql;
+                    log.add("execute " + sql);
+                    if (preparedSql != null) {
+                        checkParams(preparedSql, params);
+                    }
+                    Object answer = answer(sql, new ArrayList<>(params));
+                    cancelled[0] = new CountDownLatch(1);
+                    if (answer instanceof Rows) {
+                        state[0] = resultSet((Rows) answer, (Integer) state[2], cancelled[0]);
+                        state[1] = -1;
+                    }
+                    else {
+                        state[0] = null;
+                        state[1] = answer != null ? (Integer) answer : 0;
+                    }
+                    return method.getName().equals("execute") ? Boolean.valueOf(state[0] != null) : state[0];
+                case "getResultSet":
+                    return state[0];
+                case "getUpdateCount":
+                    return state[1];
+                case "setMaxRows":
+                    state[2] = args[0];
+                    return null;
+                case "setFetchSize":
+                    log.add("fetch size " + args[0]);
+                    return null;
+                case "setObject":
+                case "setString":
+                    int idx = (Integer) args[0] - 1;
+                    while (params.size() <= idx) {
+                        params.add(null);
+                    }
+                    params.set(idx, args[1]);
+                    return null;
+                case "clearParameters":
+                    params.clear();
+                    return null;
+                case "addBatch":
+                    batch.add((String) args[0]);
+                    return null;
+                case "clearBatch":
+                    batch.clear();
+                    return null;
+                case "executeBatch":
+                    log.add("batch " + batch);
+                    return executeBatch(batch);
+                case "cancel":
+                    log.add("cancel");
+                    cancelled[0].countDown();
+                    return null;
+                default:
+                    return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+            }
+        });
+    }
+
+    /**
+     * As the driver does, any bare ? outside of literals, quoted identifiers
+     * and comments is a placeholder, ?? is a literal ?.
+     */
+    private static void checkParams(String sql, List<Object> params) throws SQLException {
+        int count = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            int next = SQLText.skipToken(sql, i);
+            if (next > i) {
+                i = next;
+            }
+            else if (sql.startsWith("??", i)) {
+                i += 2;
+            }
+            else if (sql.charAt(i++) == '?' && ++count > params.size()) {
+                throw new SQLException(String.format("No value specified for parameter %d.", count));
+            }
+        }
+    }
+
+    private Object answer(String sql, List<Object> params) throws SQLException {
+        if (sql.startsWith("SELECT name FROM sys.cluster") && !isCrateDB) {
+            throw new SQLException("relation \"sys.cluster\" does not exist");
+        }
+        return handler.answer(sql, params);
+    }
+
+    private int[] executeBatch(List<String> batch) throws SQLException {
+        int[] counts = new int[batch.size()];
+        for (int i = 0; i < counts.length; i++) {
+            try {
+                Object answer = answer(batch.get(i), List.of());
+                counts[i] = answer instanceof Integer ? (Integer) answer : Statement.SUCCESS_NO_INFO;
+            }
+            catch (SQLException fail) {
+                throw new BatchUpdateException(fail.getMessage(), Arrays.copyOf(counts, i));
+            }
+        }
+        return counts;
+    }
+
+    private static ResultSet resultSet(Rows rows, int maxRows, CountDownLatch cancelled) {
+        int size = maxRows > 0 ? Math.min(maxRows, rows.size) : rows.size;
+        Object[] state = {-1, null, false}; // row idx, values, was null
+        ResultSetMetaData metaData = proxy(ResultSetMetaData.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount":
+                    return rows.names.length;
+                case "getColumnName":
+                case "getColumnLabel":
+                    return rows.names[(Integer) args[0] - 1];
+                case "getColumnType":
+                    return rows.types[(Integer) args[0] - 1];
+                case "getPrecision":
+                    return rows.precisions[(Integer) args[0] - 1];
+                default:
+                    return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+            }
+        });
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            String name = method.getName();
+            switch (name) {
+                case "next":
+                    int rowIdx = (Integer) state[0] + 1;
+                    if (rowIdx >= size) {
+                        return false;
+                    }
+                    if (rowIdx == rows.blockAtRowIdx) {
+                        await(rows.gate, cancelled, TimeUnit.SECONDS.toMillis(10L));
+                    }
+                    if (rows.rowDelayMs > 0L) {
+                        await(new CountDownLatch(1), cancelled, rows.rowDelayMs);
+                    }
+                    if (cancelled.getCount() == 0L) {
+                        throw new SQLException("canceling statement due to user request");
+                    }
+                    state[0] = rowIdx;
+                    state[1] = rows.values.apply(rowIdx);
+                    return true;
+                case "getMetaData":
+                    return metaData;
+                case "wasNull":
+                    return state[2];
+                default:
+                    if (name.startsWith("get") && args != null && args[0] instanceof Integer) {
+                        Object value = ((Object[]) state[1])[(Integer) args[0] - 1];
+                        state[2] = value == null;
+                        if (value instanceof Number && method.getReturnType() != Object.class) {
+                            Number n = (Number) value;
+                            if (method.getReturnType() == long.class) {
+                                return n.longValue();
+                            }
+                            if (method.getReturnType() == int.class) {
+                                return n.intValue();
+                            }
+                            if (method.getReturnType() == double.class) {
+                                return n.doubleValue();
+                            }
+                            if (method.getReturnType() == float.class) {
+                                return n.floatValue();
+                            }
+                        }
+                        if (value instanceof Boolean && method.getReturnType() == boolean.class) {
+                            return value;
+                        }
+                        if (value != null && method.getReturnType() == String.class) {
+                            return value.toString();
+                        }
+                        return value != null ? value : defaultValue(proxy, name, method.getReturnType(), args);
+                    }
+                    return defaultValue(proxy, name, method.getReturnType(), args);
+            }
+        });
+    }
+
+    /**
+     * Waits for the gate to open, or the statement to be cancelled, up to ms.
+     * Like a driver blocked on a socket read, it is not interrupted.
+     */
+    private static void await(CountDownLatch gate, CountDownLatch cancelled, long ms) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+        boolean isInterrupted = false;
+        while (gate.getCount() > 0L && cancelled.getCount() > 0L && System.nanoTime() < deadline) {
+            try {
+                gate.await(Math.min(5_000_000L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(), new Class<?>[]{type}, (proxy, method,
+            args) -> {
+            try {
+                return handler.invoke(proxy, method, args);
+            }
+            catch (ClassCastException | IndexOutOfBoundsException e) {
+                throw new SQLException(method.getName() + ": " + e.getMessage(), e);
+            }
+        });
+    }
+
+    private static Object defaultValue(Object proxy, String name, Class<?> returnType, Object[] args) {
+        switch (name) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return FakeDatabase.class.getSimpleName();
+            default:
+                break;
+        }
+        if (returnType == boolean.class) {
+            return false;
+        }
+        if (returnType == int.class) {
+            return 0;
+        }
+        if (returnType == long.class) {
+            return 0L;
+        }
+        if (returnType == double.class) {
+            return 0.0D;
+        }
+        if (returnType == float.class) {
+            return 0.0F;
+        }
+        if (returnType == short.class) {
+            return (short) 0;
+        }
+        if (returnType == byte.class) {
+            return (byte) 0;
+        }
+        return null;
+    }
+}
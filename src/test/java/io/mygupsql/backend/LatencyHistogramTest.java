@@ -0,0 +1,67 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+package io.mygupsql.backend;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.junit.jupiter.api.Test;
+
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void test_empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getMin(), is(0L));
+        assertThat(histogram.getMax(), is(0L));
+        assertThat(histogram.getValueAtPercentile(99.0), is(0L));
+    }
+
+    @Test
+    public void test_percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 10_000L; v++) {
+            histogram.record(v);
+        }
+        histogram.record(-1L);
+        assertThat(histogram.getCount(), is(10_000L));
+        assertThat(histogram.getMin(), is(1L));
+        assertThat(histogram.getMax(), is(10_000L));
+        assertThat(histogram.getMean(), is(5_000.5));
+        assertWithinPrecision(histogram.getValueAtPercentile(50.0), 5_000L);
+        assertWithinPrecision(histogram.getValueAtPercentile(90.0), 9_000L);
+        assertWithinPrecision(histogram.getValueAtPercentile(99.9), 9_990L);
+        assertThat(histogram.getValueAtPercentile(100.0), is(10_000L));
+        histogram.reset();
+        assertThat(histogram.getCount(), is(0L));
+    }
+
+    @Test
+    public void test_buckets() {
+        for (long v : new long[]{0L, 127L, 128L, 255L, 256L, 1_000_000L, Long.MAX_VALUE}) {
+            long highest = LatencyHistogram.highestEquivalentValue(LatencyHistogram.bucketIdx(v));
+            assertThat(v, lessThanOrEqualTo(highest));
+            assertThat(highest - v, lessThanOrEqualTo(v / 64L));
+        }
+    }
+
+    private static void assertWithinPrecision(long actual, long expected) {
+        assertThat(Math.abs(actual - expected), lessThanOrEqualTo(expected / 64L));
+    }
+}
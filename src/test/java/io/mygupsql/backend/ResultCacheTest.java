@@ -0,0 +1,99 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+package io.mygupsql.backend;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+
+public class ResultCacheTest {
+
+    private static final Conn CONN = new Conn("cache-test");
+
+    @Test
+    public void test_hit_is_a_copy() {
+        ResultCache cache = new ResultCache(1024 * 1024, TimeUnit.MINUTES.toNanos(1));
+        cache.put(request("select * from  t -- comment\n;"), table(3));
+        SQLExecRequest req = request("select * from t");
+        SQLTable hit = cache.get(req);
+        assertThat(hit.getKey(), is(req.getKey()));
+        assertThat(hit.size(), is(3));
+        assertThat(hit.getValueAt(2, 0), is("v2"));
+        hit.clear();
+        assertThat(cache.get(req).size(), is(3));
+        assertThat(cache.get(request("select * from t where a = 'x'")), nullValue());
+    }
+
+    @Test
+    public void test_ttl_and_invalidate() throws InterruptedException {
+        ResultCache cache = new ResultCache(1024 * 1024, TimeUnit.MILLISECONDS.toNanos(20));
+        cache.put(request("show tables"), table(1));
+        assertThat(cache.size(), is(1));
+        cache.invalidate(CONN.getKey());
+        assertThat(cache.size(), is(0));
+        cache.put(request("show tables"), table(1));
+        Thread.sleep(40L);
+        assertThat(cache.get(request("show tables")), nullValue());
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void test_lru_eviction() {
+        SQLTable table = table(10);
+        ResultCache cache = new ResultCache(table.getEstimatedBytes() * 2, TimeUnit.MINUTES.toNanos(1));
+        cache.put(request("select 1"), table);
+        cache.put(request("select 2"), table);
+        cache.get(request("select 1"));
+        cache.put(request("select 3"), table);
+        assertThat(cache.size(), is(2));
+        assertThat(cache.get(request("select 2")), nullValue());
+        cache.put(request("select 4"), table(10_000));
+        assertThat(cache.get(request("select 4")), nullValue());
+    }
+
+    @Test
+    public void test_isCacheable() {
+        assertThat(ResultCache.isCacheable(request("select 1")), is(true));
+        assertThat(ResultCache.isCacheable(request("select 1; select 2")), is(false));
+        assertThat(ResultCache.isCacheable(request("insert into t values(1)")), is(false));
+        assertThat(ResultCache.isCacheable(request("with d as (delete from t returning *) select * from d")), is(false));
+        assertThat(ResultCache.isCacheable(request("with q as (select 1) select * from q")), is(false));
+        assertThat(ResultCache.isCacheable(request("explain analyze delete from t")), is(false));
+        assertThat(ResultCache.isCacheable(request("select * from t for update")), is(false));
+        assertThat(ResultCache.isCacheable(request("select nextval('s')")), is(false));
+        assertThat(ResultCache.isCacheable(request("select 'update', \"delete\" from t -- insert")), is(true));
+        assertThat(ResultCache.isCacheable(request("show tables")), is(true));
+    }
+
+    private static SQLExecRequest request(String sql) {
+        return new SQLExecRequest("cache-test", CONN, sql);
+    }
+
+    private static SQLTable table(int rows) {
+        SQLTable table = new SQLTable("t");
+        table.setColMetadata(new String[]{"name"}, new int[]{Types.VARCHAR});
+        for (int i = 0; i < rows; i++) {
+            table.addRow(new Object[]{"v" + i});
+        }
+        return table;
+    }
+}
@@ -0,0 +1,497 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.mygupsql.EventConsumer;
+
+
+/**
+ * Runs the executor against a {@link FakeDatabase}, checking the events it
+ * produces and the calls that reach the database.
+ */
+public class SQLExecutorEventsTest {
+
+    private SQLExecutor executor;
+
+    @BeforeEach
+    public void setUp() {
+        executor = new SQLExecutor(2, 8);
+        executor.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.close();
+    }
+
+    @Test
+    public void test_lanes_run_concurrently_and_serialise_per_connection() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        FakeDatabase slowDb = new FakeDatabase((sql, params) -> sql.contains("slow")
+            ? FakeDatabase.rows(10, "id").blockAt(1, gate) : FakeDatabase.rows(3, "id"));
+        FakeDatabase quickDb = new FakeDatabase((sql, params) -> FakeDatabase.rows(3, "id"));
+        Conn slowConn = open(slowDb, "slow");
+        Events slow = submit(new SQLExecRequest("analytics", slowConn, "select * from slow"));
+        assertTrue(slow.awaitStarted());
+
+        // another connection is not blocked by the slow query
+        Events lookup = submit(new SQLExecRequest("lookup", open(quickDb, "quick"), "select * from t"));
+        assertThat(lookup.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+
+        // the same connection waits for it
+        Events queued = submit(new SQLExecRequest("other", slowConn, "select * from t"));
+        Thread.sleep(200L);
+        assertThat(queued.types().size(), is(0));
+        gate.countDown();
+        assertThat(slow.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        assertThat(queued.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        assertThat(slowDb.log("execute select"), is(List.of("execute select * from slow", "execute select * from t")));
+    }
+
+    @Test
+    public void test_submit_preempts_the_queued_request_of_the_same_source() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        FakeDatabase db = new FakeDatabase((sql, params) -> sql.contains("slow")
+            ? FakeDatabase.rows(10, "id").blockAt(1, gate) : FakeDatabase.rows(3, "id"));
+        Conn conn = open(db, "preempt");
+        Events slow = submit(new SQLExecRequest("analytics", conn, "select * from slow"));
+        assertTrue(slow.awaitStarted());
+        Events first = submit(new SQLExecRequest("src", conn, "select * from first"));
+        Events second = submit(new SQLExecRequest("src", conn, "select * from second"));
+        gate.countDown();
+        assertThat(slow.awaitEnd(), is(SQLExecutor.EventType.COMPLETED)); // other sources are not affected
+        assertThat(second.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        assertThat(first.types().size(), is(0));
+        assertThat(db.log("execute select"), is(List.of("execute select * from slow", "execute select * from second")));
+    }
+
+    @Test
+    public void test_read_queries_are_streamed_within_a_transaction() throws Exception {
+        FakeDatabase db = new FakeDatabase((sql, params) -> sql.startsWith("select")
+            ? FakeDatabase.rows(2_500, "id") : Integer.valueOf(1));
+        Conn conn = open(db, "stream");
+        int opened = db.log().size();
+        Events events = submit(new SQLExecRequest("src", conn, "select * from t"));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        assertThat(db.log().subList(opened, db.log().size()), is(List.of(
+            "autocommit false", "prepare select * from t", "fetch size 1000", "execute select * from t", "commit",
+            "autocommit true")));
+
+        opened = db.log().size();
+        events = submit(new SQLExecRequest("src", conn, "insert into t values(1)"));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        assertThat(db.log().subList(opened, db.log().size()), is(List.of(
+            "prepare insert into t values(1)", "fetch size 0", "execute insert into t values(1)")));
+    }
+
+    @Test
+    public void test_auto_commit_is_restored_when_the_commit_fails() throws Exception {
+        FakeDatabase db = new FakeDatabase((sql, params) -> FakeDatabase.rows(3, "id"));
+        Conn conn = open(db, "abort");
+        db.setCommitFailing(true);
+        int opened = db.log().size();
+        Events events = submit(new SQLExecRequest("src", conn, "select * from t"));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        List<String> calls = db.log().subList(opened, db.log().size());
+        assertThat(calls.subList(calls.size() - 3, calls.size()), is(List.of("commit", "rollback", "autocommit true")));
+    }
+
+    @Test
+    public void test_jsonb_operators_are_escaped() throws Exception {
+        FakeDatabase db = new FakeDatabase((sql, params) -> FakeDatabase.rows(1, "doc"));
+        Conn conn = open(db, "jsonb");
+        Events events = submit(new SQLExecRequest("src", conn, "select * from t where doc ?| array['a', '?']"));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        assertThat(db.log("prepare"), is(List.of("prepare select * from t where doc ??| array['a', '?']")));
+
+        events = submit(new SQLExecRequest("src", conn, "select * from t where doc ?& array['a'] and id = $1",
+            SQLExecRequest.Limits.NONE, List.of(7)));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        assertThat(db.log("prepare").get(1), is("prepare select * from t where doc ??& array['a'] and id = ?"));
+    }
+
+    @Test
+    public void test_running_the_same_SQL_again_reuses_the_statement() throws Exception {
+        FakeDatabase db = new FakeDatabase((sql, params) -> FakeDatabase.rows(3, "id"));
+        Conn conn = open(db, "reuse");
+        for (int i = 0; i < 2; i++) {
+            // as the command board submits it
+            Events events = submit(new SQLExecRequest("board", conn, "select * from dashboard"));
+            assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        }
+        assertThat(db.log("prepare"), is(List.of("prepare select * from dashboard")));
+        assertThat(db.log("execute select"), is(List.of("execute select * from dashboard",
+            "execute select * from dashboard")));
+        assertThat(conn.getStatementCacheSize(), is(1));
+    }
+
+    @Test
+    public void test_cancel_running_request() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        FakeDatabase db = new FakeDatabase((sql, params) -> FakeDatabase.rows(10, "id").blockAt(5, gate));
+        Conn conn = open(db, "cancel");
+        SQLExecRequest req = new SQLExecRequest("src", conn, "select * from t");
+        Events events = submit(req);
+        awaitLog(db, "execute select * from t");
+        executor.cancelSubmittedRequest(req);
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.CANCELLED));
+        assertThat(db.log("cancel").size(), is(1));
+        assertThat(db.log("execute").size(), is(2)); // the CrateDB probe, and the query, no job is killed
+        gate.countDown();
+
+        // the connection takes new requests
+        events = submit(new SQLExecRequest("src", conn, "select * from t where id < 5"));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+    }
+
+    @Test
+    public void test_cancel_kills_the_tagged_CrateDB_job() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        List<Object> jobLookups = Collections.synchronizedList(new ArrayList<>());
+        FakeDatabase db = new FakeDatabase((sql, params) -> {
+            if (sql.startsWith("SELECT name FROM sys.cluster")) {
+                return FakeDatabase.rows(1, "name");
+            }
+            if (sql.startsWith("SELECT id FROM sys.jobs")) {
+                jobLookups.addAll(params);
+                return new FakeDatabase.Rows(new String[]{"id"}, new int[]{Types.VARCHAR}, 1,
+                    rowIdx -> new Object[]{"job-1"});
+            }
+            if (sql.startsWith("KILL")) {
+                return 0;
+            }
+            return FakeDatabase.rows(10, "id").blockAt(5, gate);
+        });
+        db.setCrateDB(true);
+        Conn conn = open(db, "crate");
+        assertThat(conn.isCrateDB(), is(true));
+        SQLExecRequest first = new SQLExecRequest("src", conn, "select * from t");
+        Events firstEvents = submit(first);
+        awaitLog(db, "execute /* " + first.getKey() + " */ select * from t");
+
+        // the same SQL, by the same source, cancels the first request
+        SQLExecRequest second = new SQLExecRequest("src", conn, "select * from t");
+        Events secondEvents = submit(second);
+        assertThat(firstEvents.awaitEnd(), is(SQLExecutor.EventType.CANCELLED));
+        awaitLog(db, "execute KILL 'job-1'");
+        assertThat(jobLookups, is(List.of("%/* " + first.getKey() + " */%")));
+        gate.countDown();
+        assertThat(secondEvents.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        assertThat(secondEvents.responses().get(secondEvents.responses().size() - 1).getTable().size(), is(10));
+        // the statement is cached, it keeps the tag of the request it was prepared for
+        assertThat(db.log("prepare /* "), is(List.of("prepare /* " + first.getKey() + " */ select * from t")));
+        assertThat(db.log("execute /* " + first.getKey() + " */ select * from t").size(), is(2));
+        assertThat(db.log("cancel").size(), is(1));
+    }
+
+    @Test
+    public void test_reconnecting_does_not_probe_for_CrateDB_again() throws Exception {
+        FakeDatabase db = new FakeDatabase((sql, params) -> FakeDatabase.rows(1, "name"));
+        db.setCrateDB(true);
+        Conn conn = open(db, "reconnect");
+        conn.close();
+        conn.open();
+        assertThat(conn.isCrateDB(), is(true));
+        assertThat(db.log("execute SELECT name FROM sys.cluster").size(), is(1));
+    }
+
+    @Test
+    public void test_rows_are_published_before_the_next_fetch() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        FakeDatabase db = new FakeDatabase((sql, params) -> FakeDatabase.rows(1_500, "id").blockAt(1_000, gate));
+        Events events = submit(new SQLExecRequest("src", open(db, "fetch"), "select * from t"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+        int published = 0;
+        while (published < 1_000 && System.nanoTime() < deadline) { // the default fetch size
+            Thread.sleep(5L);
+            for (SQLExecResponse res : events.responses()) {
+                published = Math.max(published, res.getToRowIdx());
+            }
+        }
+        assertThat(published, is(1_000));
+        gate.countDown();
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        List<SQLExecResponse> responses = events.responses();
+        assertThat(responses.get(responses.size() - 1).getToRowIdx(), is(1_500));
+    }
+
+    @Test
+    public void test_truncation_at_the_request_limits() throws Exception {
+        FakeDatabase db = new FakeDatabase((sql, params) -> sql.contains("slow")
+            ? FakeDatabase.rows(1_000, "id").delay(2L) : FakeDatabase.rows(100_000, "id"));
+        Conn conn = open(db, "limits");
+
+        SQLTable table = awaitTruncated(new SQLExecRequest("rows", conn, "select * from t",
+            new SQLExecRequest.Limits(5L, 0L, 0L)));
+        assertThat(table.size(), is(5));
+
+        table = awaitTruncated(new SQLExecRequest("bytes", conn, "select * from t",
+            new SQLExecRequest.Limits(0L, 64L * 1024, 0L)));
+        assertTrue(table.size() > 0 && table.size() < 100_000);
+        assertTrue(table.getEstimatedBytes() >= 64L * 1024);
+
+        table = awaitTruncated(new SQLExecRequest("time", conn, "select * from slow",
+            new SQLExecRequest.Limits(0L, 0L, 100L)));
+        assertTrue(table.size() > 0 && table.size() < 1_000);
+    }
+
+    @Test
+    public void test_spilled_rows_have_their_own_limit() throws Exception {
+        File spillFolder = Files.createTempDirectory("spill-test").toFile();
+        spillFolder.deleteOnExit();
+        executor.close();
+        System.setProperty("executor.fetch.max.disk.mb", "1");
+        try {
+            executor = new SQLExecutor(2, 8) {
+                @Override
+                SQLTable newTable(SQLExecRequest req) {
+                    return new SQLTable(req.getKey(), 1L, spillFolder); // only the last chunk stays in the heap
+                }
+            };
+        }
+        finally {
+            System.clearProperty("executor.fetch.max.disk.mb");
+        }
+        executor.start();
+        Conn conn = open(new FakeDatabase((sql, params) -> FakeDatabase.rows(sql.contains("large")
+            ? 64 * Column.CHUNK_SIZE : 10 * Column.CHUNK_SIZE, "id")), "spill");
+        SQLExecRequest.Limits limits = new SQLExecRequest.Limits(0L, 3L * Column.CHUNK_SIZE * Long.BYTES, 0L);
+
+        // spilled rows do not count against the heap limit
+        Events events = submit(new SQLExecRequest("src", conn, "select * from t", limits));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        List<SQLExecResponse> responses = events.responses();
+        SQLTable table = responses.get(responses.size() - 1).getTable();
+        assertThat(table.size(), is(10 * Column.CHUNK_SIZE));
+        assertTrue(table.getSpilledBytes() > limits.getMaxBytes());
+        table.clear();
+
+        // they count against the disk limit
+        events = submit(new SQLExecRequest("src", conn, "select * from large", limits));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.TRUNCATED));
+        responses = events.responses();
+        table = responses.get(responses.size() - 1).getTable();
+        assertTrue(table.getSpilledBytes() >= 1024L * 1024);
+        assertTrue(table.size() < 64 * Column.CHUNK_SIZE);
+        table.clear();
+    }
+
+    @Test
+    public void test_cache_hits_are_started_and_completed_by_a_worker() throws Exception {
+        executor.close();
+        System.setProperty("executor.result.cache.mb", "1");
+        try {
+            executor = new SQLExecutor(2, 8);
+        }
+        finally {
+            System.clearProperty("executor.result.cache.mb");
+        }
+        executor.start();
+        FakeDatabase db = new FakeDatabase((sql, params) -> FakeDatabase.rows(3, "id"));
+        Conn conn = open(db, "result-cache");
+        Events miss = submit(new SQLExecRequest("src", conn, "select * from t"));
+        assertThat(miss.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        int executed = db.log("execute").size();
+
+        Thread caller = Thread.currentThread();
+        List<Thread> threads = new ArrayList<>();
+        Events hit = new Events() {
+            @Override
+            public synchronized void onSourceEvent(SQLExecutor source, Enum<?> event, SQLExecResponse res) {
+                threads.add(Thread.currentThread());
+                super.onSourceEvent(source, event, res);
+            }
+        };
+        executor.submit(new SQLExecRequest("src", conn, "select * from t"), hit);
+        assertThat(hit.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        assertThat(hit.types(), is(List.of(SQLExecutor.EventType.STARTED, SQLExecutor.EventType.COMPLETED)));
+        assertThat(db.log("execute").size(), is(executed));
+        for (SQLExecResponse res : hit.responses()) {
+            assertTrue(res.isCached());
+        }
+        SQLExecResponse completed = hit.responses().get(1);
+        assertThat(completed.getToRowIdx(), is(3));
+        assertThat(completed.getTable().size(), is(3));
+        for (Thread thread : threads) {
+            assertTrue(thread != caller);
+        }
+        long completions = executor.getMetrics().getLatencies().stream()
+            .filter(l -> l.getEventType().equals("COMPLETED") && l.getTiming().equals("total"))
+            .mapToLong(SQLMetrics.Latency::getCount)
+            .sum();
+        assertThat(completions, is(2L)); // the hit is counted
+    }
+
+    @Test
+    public void test_row_ranges_add_up_to_the_table() throws Exception {
+        int rows = 45_000; // over two batches of 20_000 rows
+        FakeDatabase db = new FakeDatabase((sql, params) -> FakeDatabase.rows(rows, "id"));
+        Events events = submit(new SQLExecRequest("src", open(db, "ranges"), "select * from t"));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        int toRowIdx = 0;
+        int rowsAvailable = 0;
+        for (SQLExecResponse res : events.responses()) {
+            assertThat(res.getFromRowIdx(), is(toRowIdx));
+            assertTrue(res.getToRowIdx() >= res.getFromRowIdx());
+            toRowIdx = res.getToRowIdx();
+            if (res.getToRowIdx() > res.getFromRowIdx()) {
+                rowsAvailable++;
+            }
+        }
+        assertThat(toRowIdx, is(rows));
+        assertTrue(rowsAvailable >= 3);
+        List<SQLExecResponse> responses = events.responses();
+        assertThat(responses.get(responses.size() - 1).getTable().size(), is(rows));
+    }
+
+    @Test
+    public void test_script_batches_consecutive_DML() throws Exception {
+        FakeDatabase db = new FakeDatabase((sql, params) -> sql.startsWith("select")
+            ? FakeDatabase.rows(2, "id") : Integer.valueOf(1));
+        Events events = submit(new SQLExecRequest("src", open(db, "script"),
+            "create table t (a int); insert into t values(1); insert into t values(2); select * from t"));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.COMPLETED));
+        assertThat(db.log("execute create"), is(List.of("execute create table t (a int)")));
+        assertThat(db.log("batch"), is(List.of("batch [insert into t values(1), insert into t values(2)]")));
+        assertThat(db.log("execute select"), is(List.of("execute select * from t")));
+        List<SQLExecResponse> responses = events.responses();
+        SQLTable outcomes = responses.get(responses.size() - 1).getTable();
+        assertThat(outcomes.size(), is(4));
+        for (int i = 0; i < 4; i++) {
+            assertThat(outcomes.getValueAt(i, 2), is("OK"));
+        }
+        assertThat(outcomes.getValueAt(1, 3), is(1L));
+        assertThat(outcomes.getValueAt(3, 3), is(2L));
+    }
+
+    @Test
+    public void test_script_failure_rolls_back_the_batch() throws Exception {
+        FakeDatabase db = new FakeDatabase((sql, params) -> {
+            if (sql.contains("values(3)")) {
+                throw new SQLException("duplicate key value violates unique constraint");
+            }
+            return Integer.valueOf(1);
+        });
+        Events events = submit(new SQLExecRequest("src", open(db, "rollback"),
+            "insert into t values(1); insert into t values(2); insert into t values(3); insert into t values(4);"
+                + " create index i on t (a)"));
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.FAILURE));
+        assertThat(db.log("batch").size(), is(1));
+        assertThat(db.log("execute create").size(), is(0));
+        List<SQLExecResponse> responses = events.responses();
+        SQLExecResponse failure = responses.get(responses.size() - 1);
+        assertThat(failure.getError().getMessage(), is("duplicate key value violates unique constraint"));
+        SQLTable outcomes = failure.getTable();
+        assertThat(outcomes.size(), is(5));
+        assertThat(outcomes.getValueAt(0, 2), is("ROLLED BACK"));
+        assertThat(outcomes.getValueAt(1, 2), is("ROLLED BACK"));
+        assertThat(outcomes.getValueAt(2, 2), is("FAILED: duplicate key value violates unique constraint"));
+        assertThat(outcomes.getValueAt(3, 2), is("SKIPPED"));
+        assertThat(outcomes.getValueAt(4, 2), is("SKIPPED"));
+    }
+
+    private SQLTable awaitTruncated(SQLExecRequest req) throws InterruptedException {
+        Events events = submit(req);
+        assertThat(events.awaitEnd(), is(SQLExecutor.EventType.TRUNCATED));
+        List<SQLExecResponse> responses = events.responses();
+        return responses.get(responses.size() - 1).getTable();
+    }
+
+    private static void awaitLog(FakeDatabase db, String call) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+        while (!db.log().contains(call)) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError(call + " not in " + db.log());
+            }
+            Thread.sleep(5L);
+        }
+    }
+
+    private static Conn open(FakeDatabase db, String name) throws SQLException {
+        Conn conn = db.conn(name);
+        conn.open();
+        return conn;
+    }
+
+    private Events submit(SQLExecRequest req) {
+        Events events = new Events();
+        executor.submit(req, events);
+        return events;
+    }
+
+    /**
+     * Events received for a request.
+     */
+    private static class Events implements EventConsumer<SQLExecutor, SQLExecResponse> {
+
+        private final List<SQLExecutor.EventType> types = new ArrayList<>();
+        private final List<SQLExecResponse> responses = new ArrayList<>();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch ended = new CountDownLatch(1);
+
+        @Override
+        public synchronized void onSourceEvent(SQLExecutor source, Enum<?> event, SQLExecResponse res) {
+            SQLExecutor.EventType eventType = (SQLExecutor.EventType) event;
+            types.add(eventType);
+            responses.add(res);
+            if (eventType == SQLExecutor.EventType.STARTED) {
+                started.countDown();
+            }
+            else if (eventType != SQLExecutor.EventType.RESULTS_AVAILABLE) {
+                ended.countDown();
+            }
+        }
+
+        boolean awaitStarted() throws InterruptedException {
+            return started.await(5L, TimeUnit.SECONDS);
+        }
+
+        SQLExecutor.EventType awaitEnd() throws InterruptedException {
+            if (!ended.await(5L, TimeUnit.SECONDS)) {
+                throw new AssertionError("request did not end, events: " + types());
+            }
+            List<SQLExecutor.EventType> t = types();
+            return t.get(t.size() - 1);
+        }
+
+        synchronized List<SQLExecutor.EventType> types() {
+            return new ArrayList<>(types);
+        }
+
+        synchronized List<SQLExecResponse> responses() {
+            return new ArrayList<>(responses);
+        }
+    }
+}
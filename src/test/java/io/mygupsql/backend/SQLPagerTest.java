@@ -0,0 +1,243 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.backend;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import io.mygupsql.EventConsumer;
+
+
+public class SQLPagerTest {
+
+    private static final Conn CONN = new Conn("pager-test");
+    private static final int PAGE_SIZE = 10;
+
+    /**
+     * Records the requests submitted, which are answered by the test.
+     */
+    private static class RecordingExecutor extends SQLExecutor {
+
+        private final List<SQLExecRequest> requests = new ArrayList<>();
+        private final List<EventConsumer<SQLExecutor, SQLExecResponse>> consumers = new ArrayList<>();
+
+        private RecordingExecutor() {
+            super(1, 1);
+        }
+
+        @Override
+        public synchronized void submit(SQLExecRequest req, EventConsumer<SQLExecutor, SQLExecResponse> consumer) {
+            requests.add(req);
+            consumers.add(consumer);
+        }
+
+        private String lastSQL() {
+            return requests.get(requests.size() - 1).getSQL();
+        }
+
+        private void complete(SQLTable table) {
+            int last = requests.size() - 1;
+            consumers.get(last).onSourceEvent(this, EventType.COMPLETED,
+                new SQLExecResponse(requests.get(last), CONN, lastSQL(), 1L, 1L, 0L, table, 0, table.size()));
+        }
+    }
+
+    @Test
+    public void test_keyset_paging() {
+        RecordingExecutor executor = new RecordingExecutor();
+        List<Enum<?>> events = new ArrayList<>();
+        SQLPager pager = new SQLPager(executor, request("select * from trips where fare > 0"),
+            (source, event, res) -> events.add(event), PAGE_SIZE, 2);
+        pager.start();
+        assertThat(executor.lastSQL().contains("information_schema.table_constraints"), is(true));
+        assertThat(executor.requests.get(0).getParams(), is(List.of("trips")));
+        assertThat(executor.requests.get(0).isStatementCached(), is(false));
+        executor.complete(table(new String[]{"column_name"}, new Object[]{"id"}));
+        assertThat(executor.lastSQL(), is("SELECT * FROM (select * from trips where fare > 0) q LIMIT 0"));
+        executor.complete(table(new String[]{"id", "fare"}));
+        assertThat(pager.getKeyColName(), is("id"));
+
+        // the first page is fetched right away, no rows are counted
+        assertThat(executor.lastSQL(),
+            is("SELECT * FROM (select * from trips where fare > 0) q ORDER BY q.\"id\" LIMIT 10 OFFSET 0"));
+        assertThat(events.size(), is(0));
+        executor.complete(page(0, PAGE_SIZE));
+        assertThat(events, is(List.of(SQLExecutor.EventType.COMPLETED)));
+        assertThat(pager.size(), is(2L * PAGE_SIZE));
+        assertThat(pager.isSizeExact(), is(false));
+        assertThat(pager.getPageOf(3).getValueAt(3, 0), is(3L));
+
+        // then the estimate, once no page is being fetched
+        assertThat(executor.lastSQL(), is("EXPLAIN (FORMAT JSON) select * from trips where fare > 0"));
+        executor.complete(table(new String[]{"QUERY PLAN"}, new Object[]{"[{\"Plan\": {\"Plan Rows\": 42}}]"}));
+        assertThat(pager.size(), is(42L));
+        assertThat(events.get(1), is(SQLExecutor.EventType.RESULTS_AVAILABLE));
+
+        assertThat(pager.getPageOf(PAGE_SIZE), nullValue());
+        assertThat(executor.lastSQL(),
+            is("SELECT * FROM (select * from trips where fare > 0) q WHERE q.\"id\" > ? ORDER BY q.\"id\" LIMIT 10"));
+        assertThat(executor.requests.get(executor.requests.size() - 1).getParams(), is(List.of(9L)));
+        executor.complete(page(PAGE_SIZE, PAGE_SIZE));
+        assertThat(pager.getPageOf(PAGE_SIZE).getValueAt(0, 0), is(10L));
+        assertThat(events.size(), is(3));
+        assertThat(events.get(2), is(SQLExecutor.EventType.RESULTS_AVAILABLE));
+
+        // the last page falls short, the size is exact, a third page evicts the least recently used
+        assertThat(pager.getPageOf(2 * PAGE_SIZE), nullValue());
+        executor.complete(page(2 * PAGE_SIZE, 5));
+        assertThat(pager.getPageOf(2 * PAGE_SIZE + 4).getValueAt(4, 0), is(24L));
+        assertThat(pager.size(), is(25L));
+        assertThat(pager.isSizeExact(), is(true));
+        int submitted = executor.requests.size();
+        assertThat(pager.getPageOf(0), nullValue());
+        assertThat(executor.requests.size(), is(submitted + 1));
+        pager.close();
+        assertThat(pager.getPageOf(0), nullValue());
+        assertThat(executor.requests.size(), is(submitted + 1));
+    }
+
+    @Test
+    public void test_offset_paging() {
+        RecordingExecutor executor = new RecordingExecutor();
+        SQLPager pager = new SQLPager(executor, request("select a, count(*) from t group by a;"),
+            (source, event, res) -> {}, PAGE_SIZE, 4);
+        pager.start();
+        assertThat(executor.lastSQL(), is("SELECT * FROM (select a, count(*) from t group by a) q LIMIT 0"));
+        executor.complete(table(new String[]{"a", "count"}));
+        assertThat(executor.lastSQL(), is("SELECT * FROM (select a, count(*) from t group by a) q LIMIT 10 OFFSET 0"));
+        executor.complete(page(0, PAGE_SIZE));
+        executor.complete(table(new String[]{"QUERY PLAN"}, new Object[]{"[{\"Plan\": {\"Plan Rows\": 1000000}}]"}));
+        assertThat(pager.getKeyColName(), nullValue());
+        assertThat(pager.size(), is(1_000_000L));
+        assertThat(pager.getPageOf(500_005), nullValue());
+        assertThat(executor.lastSQL(),
+            is("SELECT * FROM (select a, count(*) from t group by a) q LIMIT 10 OFFSET 500000"));
+
+        // past the end of the rows, before the estimate
+        executor.complete(page(0, 0));
+        assertThat(pager.size(), is(500_000L));
+        assertThat(pager.isSizeExact(), is(false));
+        assertThat(SQLPager.isPageable(request("insert into t values (1)")), is(false));
+        assertThat(SQLPager.isPageable(new SQLExecRequest("test", CONN, "select $1", null, List.of(1))), is(false));
+    }
+
+    @Test
+    public void test_no_rows() {
+        RecordingExecutor executor = new RecordingExecutor();
+        List<Enum<?>> events = new ArrayList<>();
+        SQLPager pager = new SQLPager(executor, request("values (1)"), (source, event, res) -> events.add(event),
+            PAGE_SIZE, 4);
+        pager.start();
+        executor.complete(table(new String[]{"id", "fare"}));
+        executor.complete(page(0, 0));
+        assertThat(events, is(List.of(SQLExecutor.EventType.COMPLETED)));
+        assertThat(pager.size(), is(0L));
+        assertThat(pager.isSizeExact(), is(true));
+    }
+
+    @Test
+    public void test_paging_through_the_executor() throws Exception {
+        Pattern offset = Pattern.compile("OFFSET (\\d+)");
+        FakeDatabase db = new FakeDatabase((sql, params) -> {
+            if (sql.contains("information_schema")) {
+                return new FakeDatabase.Rows(new String[]{"column_name"}, new int[]{Types.VARCHAR}, 1,
+                    rowIdx -> new Object[]{"id"});
+            }
+            if (sql.endsWith("LIMIT 0")) {
+                return FakeDatabase.rows(0, "id", "fare");
+            }
+            if (sql.startsWith("EXPLAIN")) {
+                return new FakeDatabase.Rows(new String[]{"QUERY PLAN"}, new int[]{Types.VARCHAR}, 1,
+                    rowIdx -> new Object[]{"[{\"Plan\": {\"Plan Rows\": 24}}]"});
+            }
+            Matcher m = offset.matcher(sql);
+            long first = m.find() ? Long.parseLong(m.group(1)) : (Long) params.get(0) + 1L;
+            return new FakeDatabase.Rows(new String[]{"id", "fare"}, new int[]{Types.BIGINT, Types.BIGINT},
+                (int) Math.max(0L, Math.min(PAGE_SIZE, 25L - first)), rowIdx -> new Object[]{first + rowIdx, 1L});
+        });
+        Conn conn = db.conn("pager-executor-test");
+        conn.open();
+        SQLExecutor executor = new SQLExecutor(1, 4);
+        executor.start();
+        try {
+            BlockingQueue<Enum<?>> events = new LinkedBlockingQueue<>();
+            SQLPager pager = new SQLPager(executor, new SQLExecRequest("test", conn, "select * from trips"),
+                (source, event, res) -> events.add(event), PAGE_SIZE, 4);
+            pager.start();
+            assertThat(events.poll(5L, TimeUnit.SECONDS), is(SQLExecutor.EventType.STARTED));
+            assertThat(events.poll(5L, TimeUnit.SECONDS), is(SQLExecutor.EventType.COMPLETED));
+            assertThat(pager.getTable().getColCount(), is(2));
+            assertThat(pager.getKeyColName(), is("id"));
+            assertThat(pager.getPageOf(9).getValueAt(9, 0), is(9L));
+
+            // the estimate and the second page, in either order
+            assertThat(pager.getPageOf(PAGE_SIZE + 9), nullValue());
+            assertThat(events.poll(5L, TimeUnit.SECONDS), is(SQLExecutor.EventType.RESULTS_AVAILABLE));
+            assertThat(events.poll(5L, TimeUnit.SECONDS), is(SQLExecutor.EventType.RESULTS_AVAILABLE));
+            assertThat(pager.getPageOf(PAGE_SIZE + 9).getValueAt(9, 0), is(19L));
+            assertThat(pager.getPageOf(2 * PAGE_SIZE), nullValue());
+            assertThat(events.poll(5L, TimeUnit.SECONDS), is(SQLExecutor.EventType.RESULTS_AVAILABLE));
+            assertThat(pager.size(), is(25L));
+            assertThat(pager.isSizeExact(), is(true));
+
+            // page queries are prepared each time, they do not take a place in the statement cache
+            assertThat(db.log("prepare SELECT * FROM (select * from trips) q WHERE q.\"id\" > ?").size(), is(2));
+            assertThat(conn.getStatementCacheSize(), is(0));
+            pager.close();
+        }
+        finally {
+            executor.close();
+        }
+    }
+
+    private static SQLExecRequest request(String sql) {
+        return new SQLExecRequest("test", CONN, sql);
+    }
+
+    private static SQLTable table(String[] colNames, Object[]... rows) {
+        SQLTable table = new SQLTable("pager-test");
+        int[] colTypes = new int[colNames.length];
+        for (int i = 0; i < colTypes.length; i++) {
+            colTypes[i] = i == 0 && rows.length > 0 && rows[0][0] instanceof String ? Types.VARCHAR : Types.BIGINT;
+        }
+        table.setColMetadata(colNames, colTypes);
+        for (Object[] row : rows) {
+            table.addRow(row);
+        }
+        return table;
+    }
+
+    private static SQLTable page(long firstId, int size) {
+        Object[][] rows = new Object[size][];
+        for (int i = 0; i < size; i++) {
+            rows[i] = new Object[]{firstId + i, 1L};
+        }
+        return table(new String[]{"id", "fare"}, rows);
+    }
+}
@@ -23,10 +23,16 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.hamcrest.Matchers;
 import org.junit.jupiter.api.BeforeEach;
@@ -62,6 +68,9 @@ public class SQLTableTest {
         when(rs.getObject(1)).thenReturn(COL_VALUES[0]);
         when(rs.getObject(2)).thenReturn(COL_VALUES[1]);
         when(rs.getObject(3)).thenReturn(COL_VALUES[2]);
+        when(rs.getString(1)).thenReturn((String) COL_VALUES[0]);
+        when(rs.getString(2)).thenReturn((String) COL_VALUES[1]);
+        when(rs.getInt(3)).thenReturn((Integer) COL_VALUES[2]);
     }
 
     @Test
@@ -98,4 +107,189 @@ public class SQLTableTest {
         assertThat(table.getRow(0), Matchers.is(new SQLTable.Row(null, rowKey, COL_VALUES)));
         table.clear();
     }
+
+    @Test
+    public void test_addRow_implicit_keys() throws SQLException {
+        SQLTable table = new SQLTable(null);
+        table.setColMetadata(rs);
+        table.addRow(rs);
+        table.addRow(rs);
+        assertThat(table.size(), is(2));
+        assertThat(table.getRow(1), Matchers.is(new SQLTable.Row(null, "1", COL_VALUES)));
+        assertThat(table.getRowIdx("1"), is(1));
+        assertThat(table.getRowIdx("01"), is(-1));
+        assertThat(table.getRowIdx("2"), is(-1));
+        table.addRow("last", rs);
+        assertThat(table.getRowIdx("last"), is(2));
+        assertThat(table.getRowIdx("0"), is(0));
+        table.clear();
+    }
+
+    @Test
+    public void test_spill_while_reading() throws Exception {
+        File spillFolder = Files.createTempDirectory("spill-test").toFile();
+        spillFolder.deleteOnExit();
+        SQLTable table = new SQLTable(null, 1L, spillFolder);
+        table.setColMetadata(new String[]{"id", "flag", "ts"}, new int[]{Types.BIGINT, Types.BOOLEAN, Types.TIMESTAMP});
+        int rows = 16 * Column.CHUNK_SIZE;
+        AtomicBoolean isWriting = new AtomicBoolean(true);
+        AtomicReference<String> mismatch = new AtomicReference<>();
+        Thread[] readers = new Thread[2];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                while (isWriting.get() && mismatch.get() == null) {
+                    int size = table.size();
+                    for (int i = Math.max(0, size - 2 * Column.CHUNK_SIZE); i < size; i++) {
+                        boolean isNull = i % 3 == 0;
+                        Object id = table.getValueAt(i, 0);
+                        Object flag = table.getValueAt(i, 1);
+                        Object ts = table.getValueAt(i, 2);
+                        if (isNull ? id != null || flag != null || ts != null
+                            : !Long.valueOf(i).equals(id) || !Boolean.TRUE.equals(flag)
+                                || !new Timestamp(i).equals(ts)) {
+                            mismatch.compareAndSet(null, String.format("row %d: %s, %s, %s", i, id, flag, ts));
+                        }
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        try {
+            for (int i = 0; i < rows; i++) {
+                boolean isNull = i % 3 == 0;
+                table.addRow(new Object[]{isNull ? null : (long) i, isNull ? null : true, isNull ? null : new Timestamp(i)});
+            }
+        }
+        finally {
+            isWriting.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertThat(mismatch.get(), nullValue());
+        assertThat(table.getSpilledBytes() > 0L, is(true));
+        table.clear();
+    }
+
+    @Test
+    public void test_spill() throws IOException {
+        File spillFolder = Files.createTempDirectory("spill-test").toFile();
+        spillFolder.deleteOnExit();
+        SQLTable table = new SQLTable(null, 1L, spillFolder);
+        table.setColMetadata(new String[]{"id", "name", "price", "ts", "flag", "other"}, new int[]{
+            Types.BIGINT, Types.VARCHAR, Types.DOUBLE, Types.TIMESTAMP, Types.BOOLEAN, Types.OTHER
+        });
+        int rows = 3 * Column.CHUNK_SIZE + 10;
+        for (int i = 0; i < rows; i++) {
+            table.addRow(new Object[]{
+                (long) i, i % 7 == 0 ? null : "name-" + i, i * 0.5, new Timestamp(i * 1000L), i % 2 == 0, "o" + i
+            });
+        }
+        assertThat(table.size(), is(rows));
+        assertThat(table.getSpilledBytes() > 0L, is(true));
+        for (int i = 0; i < rows; i += 97) {
+            assertThat(table.getValueAt(i, 0), is((long) i));
+            assertThat(table.getValueAt(i, 1), is(i % 7 == 0 ? null : "name-" + i));
+            assertThat(table.getValueAt(i, 3), is(new Timestamp(i * 1000L)));
+            assertThat(table.getRow(i).getValueAt(2), is(i * 0.5));
+            assertThat(table.getRow(i).getValueAt(4), is(i % 2 == 0));
+            assertThat(table.getRow(i).getValueAt(5), is("o" + i));
+        }
+        table.clear();
+        assertThat(table.getSpilledBytes(), is(0L));
+        assertThat(spillFolder.list().length, is(0));
+    }
+
+    @Test
+    public void test_sortRows() {
+        SQLTable table = new SQLTable(null);
+        table.setColMetadata(new String[]{"id", "price", "name", "other"}, new int[]{
+            Types.BIGINT, Types.DOUBLE, Types.VARCHAR, Types.OTHER
+        });
+        int rows = 20_000;
+        for (int i = 0; i < rows; i++) {
+            long id = (i * 7919L) % rows;
+            table.addRow(new Object[]{
+                id, id % 10 == 0 ? null : id - rows / 2.0, "n" + (id % 100), "o" + (rows - id)
+            });
+        }
+        int[] order = table.sortRows(0, true);
+        for (int i = 0; i < rows; i++) {
+            assertThat(table.getValueAt(order[i], 0), is((long) i));
+        }
+        order = table.sortRows(1, false);
+        for (int i = 1; i < rows; i++) {
+            Object prev = table.getValueAt(order[i - 1], 1);
+            Object value = table.getValueAt(order[i], 1);
+            assertThat(value == null ? prev == null : prev == null || (Double) prev >= (Double) value, is(true));
+        }
+        order = table.sortRows(2, true); // stable, ties keep insertion order
+        for (int i = 1; i < rows; i++) {
+            int cmp = ((String) table.getValueAt(order[i - 1], 2)).compareTo((String) table.getValueAt(order[i], 2));
+            assertThat(cmp < 0 || cmp == 0 && order[i - 1] < order[i], is(true));
+        }
+        order = table.sortRows(3, true);
+        assertThat(table.getValueAt(order[0], 3), is("o1"));
+        assertThat(table.getValueAt(order[rows - 1], 3), is("o9999"));
+        table.clear();
+    }
+
+    @Test
+    public void test_filterRows() {
+        SQLTable table = new SQLTable(null);
+        table.setColMetadata(new String[]{"id", "name"}, new int[]{Types.BIGINT, Types.VARCHAR});
+        int rows = 10_000;
+        for (int i = 0; i < rows; i++) {
+            table.addRow(new Object[]{(long) i, i % 10 == 0 ? null : "Name-" + (i % 100)});
+        }
+        assertThat(table.filterRows(RowFilter.parse("null"), 1, null).length, is(rows / 10));
+        assertThat(table.filterRows(RowFilter.parse("!null"), 1, null).length, is(rows - rows / 10));
+        assertThat(table.filterRows(RowFilter.parse("name-42"), 1, null).length, is(rows / 100));
+        assertThat(table.filterRows(RowFilter.parse("/-4[0-9]$/"), -1, null).length, is(9 * rows / 100));
+        int[] selected = table.filterRows(RowFilter.parse("100..199.5"), -1, null);
+        assertThat(selected.length, is(100));
+        assertThat(selected[0], is(100));
+        assertThat(selected[99], is(199));
+        assertThat(table.filterRows(RowFilter.parse("..9"), 0, null).length, is(10));
+        assertThat(table.filterRows(RowFilter.parse("\"null\""), -1, null).length, is(0));
+        int[] order = table.sortRows(0, false);
+        selected = table.filterRows(RowFilter.parse("9990.."), 0, order);
+        assertThat(selected.length, is(10));
+        assertThat(selected[0], is(rows - 1));
+        table.clear();
+    }
+
+    @Test
+    public void test_getColStats() {
+        SQLTable table = new SQLTable(null);
+        table.setColMetadata(new String[]{"id", "price", "name", "ts"}, new int[]{
+            Types.INTEGER, Types.DOUBLE, Types.VARCHAR, Types.TIMESTAMP
+        });
+        int rows = 50_000;
+        for (int i = 0; i < rows; i++) {
+            table.addRow(new Object[]{
+                i, i % 4 == 0 ? null : i * 0.5, "n" + (i % 1000), new Timestamp(i * 1000L)
+            });
+        }
+        ColumnStats id = table.getColStats(0);
+        assertThat(id.getCount(), is((long) rows));
+        assertThat(id.getNullCount(), is(0L));
+        assertThat(id.getMin(), is(0));
+        assertThat(id.getMax(), is(rows - 1));
+        assertThat(id.getMean(), is((rows - 1) / 2.0));
+        assertThat(Math.abs(id.getDistinctCount() - rows) < rows * 0.05, is(true));
+        ColumnStats price = table.getColStats(1);
+        assertThat(price.getNullCount(), is((long) rows / 4));
+        assertThat(price.getMin(), is(0.5));
+        assertThat(price.getMax(), is((rows - 1) * 0.5));
+        ColumnStats name = table.getColStats(2);
+        assertThat(name.isNumeric(), is(false));
+        assertThat(name.getMin(), is("n0"));
+        assertThat(name.getMax(), is("n999"));
+        assertThat(Math.abs(name.getDistinctCount() - 1000) < 30, is(true));
+        ColumnStats ts = table.getColStats(3);
+        assertThat(ts.isNumeric(), is(false));
+        assertThat(ts.getMax(), is(new Timestamp((rows - 1) * 1000L)));
+        table.clear();
+    }
 }
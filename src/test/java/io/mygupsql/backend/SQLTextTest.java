@@ -0,0 +1,142 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+package io.mygupsql.backend;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+public class SQLTextTest {
+
+    @Test
+    public void test_firstKeyword() {
+        assertThat(SQLText.firstKeyword(null), nullValue());
+        assertThat(SQLText.firstKeyword("  \n "), nullValue());
+        assertThat(SQLText.firstKeyword("SELECT * FROM sys.nodes"), is("select"));
+        assertThat(SQLText.firstKeyword("-- comment\n  /* block\n comment */ Insert into t values(1)"), is("insert"));
+        assertThat(SQLText.firstKeyword("((select 1) union (select 2))"), is("select"));
+        assertThat(SQLText.firstKeyword("-- only a comment"), nullValue());
+    }
+
+    @Test
+    public void test_isReadQuery() {
+        assertThat(SQLText.isReadQuery("select 1"), is(true));
+        assertThat(SQLText.isReadQuery("with t as (select 1) select * from t"), is(true));
+        assertThat(SQLText.isReadQuery("show tables"), is(true));
+        assertThat(SQLText.isReadQuery("values (1), (2)"), is(true));
+        assertThat(SQLText.isReadQuery("delete from t"), is(false));
+        assertThat(SQLText.isReadQuery("create table t (a int)"), is(false));
+        assertThat(SQLText.isReadQuery(""), is(false));
+    }
+
+    @Test
+    public void test_singleTableName() {
+        assertThat(SQLText.singleTableName("select a, b from t"), is(new String[]{null, "t"}));
+        assertThat(SQLText.singleTableName("SELECT * FROM Doc.\"Trips\" AS tr WHERE (a, b) IN ((1, 2))"),
+            is(new String[]{"doc", "Trips"}));
+        assertThat(SQLText.singleTableName("select count(*) filter (where x) from t t1 -- comment"),
+            is(new String[]{null, "t"}));
+        assertThat(SQLText.singleTableName("select * from t1, t2"), nullValue());
+        assertThat(SQLText.singleTableName("select * from t1 join t2 on t1.a = t2.a"), nullValue());
+        assertThat(SQLText.singleTableName("select * from (select 1) q"), nullValue());
+        assertThat(SQLText.singleTableName("select a from t order by a"), nullValue());
+        assertThat(SQLText.singleTableName("select distinct a from t"), nullValue());
+        assertThat(SQLText.singleTableName("select 1"), nullValue());
+        assertThat(SQLText.singleTableName("with q as (select 1) select * from q"), nullValue());
+    }
+
+    @Test
+    public void test_toJdbcPlaceholders_numbered() {
+        List<Object> bound = new ArrayList<>();
+        String sql = SQLText.toJdbcPlaceholders("select * from t where b = $2 and a = $1 or c = $2", Arrays.asList(1, "x"),
+            bound);
+        assertThat(sql, is("select * from t where b = ? and a = ? or c = ?"));
+        assertThat(bound, is(Arrays.asList("x", 1, "x")));
+    }
+
+    @Test
+    public void test_toJdbcPlaceholders_ignoresQuotedAndOperators() {
+        List<Object> bound = new ArrayList<>();
+        String sql = SQLText.toJdbcPlaceholders(
+            "select '$1', \"a$1\", b$1, $$ $1 $$, data ?| array['k'] -- $1\nfrom t where a = $1", Arrays.asList(7), bound);
+        assertThat(sql, is("select '$1', \"a$1\", b$1, $$ $1 $$, data ??| array['k'] -- $1\nfrom t where a = ?"));
+        assertThat(bound, is(Arrays.asList(7)));
+    }
+
+    @Test
+    public void test_toJdbcPlaceholders_escapesJsonbOperators() {
+        List<Object> bound = new ArrayList<>();
+        assertThat(SQLText.toJdbcPlaceholders("select * from t where a ?| ? and b ?& $$?$$ and c ?? 'k'",
+            Arrays.asList(1), bound), is("select * from t where a ??| ? and b ??& $$?$$ and c ?? 'k'"));
+        assertThat(bound, is(Arrays.asList(1)));
+    }
+
+    @Test
+    public void test_escapeJdbcPlaceholders() {
+        assertThat(SQLText.escapeJdbcPlaceholders("select 1"), is("select 1"));
+        assertThat(SQLText.escapeJdbcPlaceholders("select * from t where a ?| b and c ? 'k?' -- ?\n and d ?& e"),
+            is("select * from t where a ??| b and c ?? 'k?' -- ?\n and d ??& e"));
+    }
+
+    @Test
+    public void test_toJdbcPlaceholders_jdbc() {
+        List<Object> bound = new ArrayList<>();
+        assertThat(SQLText.toJdbcPlaceholders("select ? , ?", Arrays.asList(1, 2), bound), is("select ? , ?"));
+        assertThat(bound, is(Arrays.asList(1, 2)));
+        assertThrows(IllegalArgumentException.class,
+            () -> SQLText.toJdbcPlaceholders("select ?", Arrays.asList(), new ArrayList<>()));
+        assertThrows(IllegalArgumentException.class,
+            () -> SQLText.toJdbcPlaceholders("select ?, $1", Arrays.asList(1), new ArrayList<>()));
+        assertThrows(IllegalArgumentException.class,
+            () -> SQLText.toJdbcPlaceholders("select $2", Arrays.asList(1), new ArrayList<>()));
+    }
+
+    @Test
+    public void test_splitStatements() {
+        assertThat(SQLText.splitStatements("select 1"), is(Arrays.asList("select 1")));
+        assertThat(SQLText.splitStatements(" select 1 ;\n; -- only comment;\n ; insert into t values(';', $$;$$) ;"),
+            is(Arrays.asList("select 1", "insert into t values(';', $$;$$)")));
+        assertThat(SQLText.splitStatements("select \"a;b\" from t /* ; */; select 2"),
+            is(Arrays.asList("select \"a;b\" from t /* ; */", "select 2")));
+        assertThat(SQLText.splitStatements(" ; \n "), is(Arrays.asList()));
+    }
+
+    @Test
+    public void test_isBatchable() {
+        assertThat(SQLText.isBatchable("insert into t values(1)"), is(true));
+        assertThat(SQLText.isBatchable("-- seed\nUPDATE t SET a = 'returning'"), is(true));
+        assertThat(SQLText.isBatchable("delete from t where returning_col = 1"), is(true));
+        assertThat(SQLText.isBatchable("delete from t returning *"), is(false));
+        assertThat(SQLText.isBatchable("select 1"), is(false));
+        assertThat(SQLText.isBatchable("create table t (a int)"), is(false));
+    }
+
+    @Test
+    public void test_normalize() {
+        assertThat(SQLText.normalize("  select *\n\tfrom  t -- all\n where a = '  x ' ;; "),
+            is("select * from t where a = '  x '"));
+        assertThat(SQLText.normalize("select/* c */1"), is("select 1"));
+        assertThat(SQLText.normalize(" ; "), is(""));
+    }
+}
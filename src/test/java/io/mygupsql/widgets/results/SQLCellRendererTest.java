@@ -0,0 +1,65 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+package io.mygupsql.widgets.results;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.sql.Timestamp;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.jupiter.api.Test;
+
+
+public class SQLCellRendererTest {
+
+    @Test
+    public void test_formatTimestamp() {
+        TimeZone defaultZone = TimeZone.getDefault();
+        try {
+            for (String zone : new String[]{"UTC", "Europe/Madrid", "America/St_Johns", "Asia/Kathmandu"}) {
+                TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                ZoneRules zoneRules = ZoneId.systemDefault().getRules();
+                Random rand = new Random(zone.hashCode());
+                for (int i = 0; i < 10_000; i++) {
+                    long millis = rand.nextLong() % 300_000_000_000_000L; // beyond years 1900 to 9999
+                    Timestamp ts = new Timestamp(millis);
+                    ts.setNanos(i % 3 == 0 ? 0 : i % 3 == 1 ? rand.nextInt(1_000) * 1_000_000 : rand.nextInt(1_000_000_000));
+                    assertThat(SQLCellRenderer.formatTimestamp(ts, zoneRules), is(ts.toString()));
+                }
+                Timestamp epoch = new Timestamp(0L);
+                assertThat(SQLCellRenderer.formatTimestamp(epoch, zoneRules), is(epoch.toString()));
+            }
+        }
+        finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+
+    @Test
+    public void test_formatDouble() {
+        double[] values = {0.0, -0.0, 1.0, -3.0, 9_999_999.0, 1e7, 0.5, -2.25, 1e-5, 123_456.789, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.MAX_VALUE, Long.MAX_VALUE};
+        for (double d : values) {
+            assertThat(SQLCellRenderer.formatDouble(d, d), is(Double.toString(d)));
+            float f = (float) d;
+            assertThat(SQLCellRenderer.formatDouble(f, f), is(Float.toString(f)));
+        }
+    }
+}
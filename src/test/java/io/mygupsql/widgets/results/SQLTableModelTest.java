@@ -0,0 +1,92 @@
+/* **
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright 2020, Miguel Arregui a.k.a. marregui
+ */
+
+package io.mygupsql.widgets.results;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.event.TableModelEvent;
+
+import org.junit.jupiter.api.Test;
+
+import io.mygupsql.backend.SQLTable;
+
+
+public class SQLTableModelTest {
+
+    @Test
+    public void test_fireTableRowsAdded() {
+        SQLTable table = new SQLTable(null);
+        table.setColMetadata(new String[]{"id"}, new int[]{Types.BIGINT});
+        SQLTableModel model = new SQLTableModel(() -> table);
+        List<TableModelEvent> events = new ArrayList<>();
+        model.addTableModelListener(events::add);
+        model.fireTableDataChanged();
+        events.clear();
+
+        addRows(table, 600);
+        model.fireTableRowsAdded();
+        assertThat(events.size(), is(1));
+        assertThat(events.get(0).getType(), is(TableModelEvent.INSERT));
+        assertThat(events.get(0).getFirstRow(), is(0));
+        assertThat(events.get(0).getLastRow(), is(599));
+
+        addRows(table, 5000);
+        assertThat(model.getRowCount(), is(600)); // until notified
+        model.fireTableRowsAdded();
+        assertThat(events.size(), is(2));
+        assertThat(events.get(1).getFirstRow(), is(600));
+        assertThat(events.get(1).getLastRow(), is(5599));
+        assertThat(model.getRowCount(), is(5600));
+        assertThat(model.getValueAt(4321, 0), is(4321L));
+
+        model.fireTableRowsAdded(); // nothing new
+        assertThat(events.size(), is(2));
+        table.clear();
+    }
+
+    @Test
+    public void test_setView() {
+        SQLTable table = new SQLTable(null);
+        table.setColMetadata(new String[]{"id"}, new int[]{Types.BIGINT});
+        SQLTableModel model = new SQLTableModel(() -> table);
+        addRows(table, 100);
+        model.fireTableDataChanged();
+        model.setView(0, false, table.sortRows(0, false), null);
+        addRows(table, 10);
+        model.fireTableRowsAdded();
+        assertThat(model.getRowCount(), is(110));
+        assertThat(model.getValueAt(0, 0), is(99L));
+        assertThat(model.getValueAt(100, 0), is(100L)); // added after sorting, in insertion order
+        assertThat(model.getColumnName(0).endsWith("\u25BC"), is(true));
+        model.setView(-1, true, null, new int[]{7, 3});
+        assertThat(model.isFiltered(), is(true));
+        assertThat(model.getRowCount(), is(2));
+        assertThat(model.getValueAt(1, 0), is(3L));
+        table.clear();
+    }
+
+    private static void addRows(SQLTable table, int count) {
+        for (int i = 0; i < count; i++) {
+            table.addRow(new Object[]{(long) table.size()});
+        }
+    }
+}